@@ -16,6 +16,11 @@
 
 package org.wso2.carbon.identity.agent.onprem.userstore;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerHolder;
 import org.wso2.carbon.identity.agent.onprem.userstore.resource.Authenticate;
 import org.wso2.carbon.identity.agent.onprem.userstore.resource.GroupResource;
 import org.wso2.carbon.identity.agent.onprem.userstore.resource.Status;
@@ -29,10 +34,23 @@ import org.wso2.msf4j.MicroservicesRunner;
  * @since 0.1
  */
 public class Application {
+    private static Logger log = LoggerFactory.getLogger(Application.class);
+
     public static void main(String[] args) {
         new SecretManagerInitializer().init();
+        final UserStoreManagerHolder userStoreManagerHolder = new UserStoreManagerHolder();
+        try {
+            userStoreManagerHolder.init(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+        } catch (UserStoreException e) {
+            // without a user store manager every request would fail, so the agent does not start.
+            log.error("Error while initializing the user store manager. The agent is not started. "
+                    + e.getMessage(), e);
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(userStoreManagerHolder::shutdown));
         new MicroservicesRunner()
-                .deploy(new UserResource(), new Authenticate(), new GroupResource(), new Status())
+                .deploy(new UserResource(userStoreManagerHolder), new Authenticate(userStoreManagerHolder),
+                        new GroupResource(userStoreManagerHolder), new Status(userStoreManagerHolder))
                 .start();
         }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cached attribute values of a user, keyed by attribute name, each with its own expiry time. All attributes of a
+ * user are cached as one entry, and an attribute cached later does not extend the life of the ones cached before
+ * it. Instances are immutable.
+ */
+public final class CachedAttributes {
+
+    public static final CachedAttributes EMPTY = new CachedAttributes(Collections.emptyMap());
+
+    private final Map<String, Value> values;
+
+    private CachedAttributes(Map<String, Value> values) {
+        this.values = values;
+    }
+
+    /**
+     * @return the value of the attribute, or null if it is not cached or has expired.
+     */
+    public String get(String name, long now) {
+        Value value = values.get(name);
+        return value == null || value.isExpired(now) ? null : value.value;
+    }
+
+    /**
+     * @return a copy with the values added, expiring at the given time. Expired values are left out of the copy.
+     */
+    public CachedAttributes with(Map<String, String> addedValues, long expiryTime, long now) {
+        Map<String, Value> merged = new HashMap<>((values.size() + addedValues.size()) * 4 / 3 + 1);
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+            if (!entry.getValue().isExpired(now)) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> entry : addedValues.entrySet()) {
+            merged.put(entry.getKey(), new Value(entry.getValue(), expiryTime));
+        }
+        return new CachedAttributes(merged);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /*
+     * Passes the name, value and expiry time of each attribute to the consumer, for encoding.
+     */
+    void forEach(AttributeConsumer consumer) {
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().value, entry.getValue().expiryTime);
+        }
+    }
+
+    /*
+     * Builds an instance from decoded attributes, with the names, values and expiry times at the same index.
+     */
+    static CachedAttributes of(String[] names, String[] attributeValues, long[] expiryTimes) {
+        Map<String, Value> values = new HashMap<>(names.length * 4 / 3 + 1);
+        for (int i = 0; i < names.length; i++) {
+            values.put(names[i], new Value(attributeValues[i], expiryTimes[i]));
+        }
+        return new CachedAttributes(values);
+    }
+
+    interface AttributeConsumer {
+
+        void accept(String name, String value, long expiryTime);
+    }
+
+    private static final class Value {
+        private final String value;
+        private final long expiryTime;
+
+        private Value(String value, long expiryTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiryTime;
+        }
+    }
+}
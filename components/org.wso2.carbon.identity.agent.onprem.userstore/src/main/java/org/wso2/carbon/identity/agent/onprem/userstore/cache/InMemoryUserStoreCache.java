@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * On-heap {@link UserStoreCache} backed by a {@link ConcurrentHashMap}. Lookups do not lock. When the cache grows
+ * beyond its maximum size, expired entries are dropped first and then a batch of the least recently used ones.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class InMemoryUserStoreCache<K, V> implements UserStoreCache<K, V> {
+
+    // share of the entries evicted at once, so that eviction does not run on every put of a full cache.
+    private static final int EVICTION_BATCH_DIVISOR = 10;
+
+    private final ConcurrentHashMap<K, CacheEntry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long defaultTimeToLive;
+    private final Object evictionLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param maxSize           maximum number of entries.
+     * @param defaultTimeToLive time to live of entries in milliseconds.
+     */
+    public InMemoryUserStoreCache(int maxSize, long defaultTimeToLive) {
+        this.maxSize = Math.max(1, maxSize);
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    @Override
+    public V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            if (entries.remove(key, entry)) {
+                expirations.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastAccessTime = now;
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        put(key, value, defaultTimeToLive);
+    }
+
+    @Override
+    public void put(K key, V value, long timeToLive) {
+        if (timeToLive <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.put(key, new CacheEntry<>(value, now + timeToLive, now));
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+    }
+
+    @Override
+    public void compute(K key, UnaryOperator<V> remapping, long timeToLive) {
+        long now = System.currentTimeMillis();
+        entries.compute(key, (k, entry) -> {
+            V value = remapping.apply(entry == null || entry.isExpired(now) ? null : entry.value);
+            return value == null || timeToLive <= 0 ? null : new CacheEntry<>(value, now + timeToLive, now);
+        });
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+    }
+
+    @Override
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public void removeIf(Predicate<K> predicate) {
+        entries.keySet().removeIf(predicate);
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("size", (long) entries.size());
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("evictions", evictions.get());
+        statistics.put("expirations", expirations.get());
+        return statistics;
+    }
+
+    private void evict(long now) {
+        synchronized (evictionLock) {
+            if (entries.size() <= maxSize) {
+                return;
+            }
+            for (Map.Entry<K, CacheEntry<V>> entry : entries.entrySet()) {
+                if (entry.getValue().isExpired(now) && entries.remove(entry.getKey(), entry.getValue())) {
+                    expirations.incrementAndGet();
+                }
+            }
+            int excess = entries.size() - maxSize;
+            if (excess <= 0) {
+                return;
+            }
+            // access times are read once, since lookups keep changing them while the candidates are sorted.
+            List<EvictionCandidate<K, V>> candidates = new ArrayList<>(entries.size());
+            for (Map.Entry<K, CacheEntry<V>> entry : entries.entrySet()) {
+                candidates.add(new EvictionCandidate<>(entry.getKey(), entry.getValue()));
+            }
+            int batchSize = Math.min(candidates.size(), excess + maxSize / EVICTION_BATCH_DIVISOR);
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccessTime));
+            for (int i = 0; i < batchSize; i++) {
+                EvictionCandidate<K, V> candidate = candidates.get(i);
+                if (entries.remove(candidate.key, candidate.entry)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static final class EvictionCandidate<K, V> {
+        private final K key;
+        private final CacheEntry<V> entry;
+        private final long lastAccessTime;
+
+        private EvictionCandidate(K key, CacheEntry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccessTime = entry.lastAccessTime;
+        }
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long expiryTime;
+        private volatile long lastAccessTime;
+
+        private CacheEntry(V value, long expiryTime, long lastAccessTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+            this.lastAccessTime = lastAccessTime;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiryTime;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Returns a canonical instance for equal values, so that cached entries share one copy of values that repeat
+ * across users, such as role names. Once the interner holds its maximum number of values, new values are
+ * returned as they are.
+ *
+ * @param <T> value type, with value based equals and hashCode.
+ */
+public class Interner<T> {
+
+    private final ConcurrentHashMap<T, T> values = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public Interner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        T canonical = values.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (values.size() >= maxSize) {
+            return value;
+        }
+        canonical = values.putIfAbsent(value, value);
+        return canonical == null ? value : canonical;
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link UserStoreCache} that keeps its values outside of the Java heap, in direct {@link ByteBuffer}s, so that
+ * large values such as photos or long member lists neither fill the heap nor lengthen garbage collection. Keys and
+ * a small record per entry stay on the heap.
+ * <p>
+ * Values are encoded to bytes by a {@link Codec} and stored in a chain of fixed size chunks. Chunks are carved
+ * from segments that are allocated as the cache grows, up to the maximum number of bytes, and freed chunks are
+ * reused. When a value does not fit, the least recently used entries are evicted until it does. All operations
+ * take the lock of the cache, since they are short copies.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public class OffHeapUserStoreCache<K, V> implements UserStoreCache<K, V> {
+
+    /**
+     * UTF-8 encoding of string values.
+     */
+    public static final Codec<String> STRING_CODEC = new Codec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Compact encoding of string maps. The number of entries is followed by the length and UTF-8 bytes of each key
+     * and value, lengths as variable length integers.
+     */
+    public static final Codec<Map<String, String>> STRING_MAP_CODEC = new Codec<Map<String, String>>() {
+        @Override
+        public byte[] encode(Map<String, String> value) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeLength(out, value.size());
+            for (Map.Entry<String, String> entry : value.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public Map<String, String> decode(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            int size = readLength(in);
+            Map<String, String> value = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                value.put(readString(in), readString(in));
+            }
+            return value;
+        }
+    };
+
+    /**
+     * Encoding of all cached attributes of a user in one value. Each attribute keeps its own expiry time in the
+     * record, so that it still expires on its own once the record is off the heap. Encoded as the map of
+     * {@link #STRING_MAP_CODEC} with the expiry time in milliseconds, eight bytes, after each value.
+     */
+    public static final Codec<CachedAttributes> CACHED_ATTRIBUTES_CODEC = new Codec<CachedAttributes>() {
+        @Override
+        public byte[] encode(CachedAttributes value) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeLength(out, value.size());
+            value.forEach((name, attributeValue, expiryTime) -> {
+                writeString(out, name);
+                writeString(out, attributeValue);
+                for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+                    out.write((int) (expiryTime >>> shift));
+                }
+            });
+            return out.toByteArray();
+        }
+
+        @Override
+        public CachedAttributes decode(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            int size = readLength(in);
+            String[] names = new String[size];
+            String[] values = new String[size];
+            long[] expiryTimes = new long[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = readString(in);
+                values[i] = readString(in);
+                expiryTimes[i] = in.getLong();
+            }
+            return CachedAttributes.of(names, values, expiryTimes);
+        }
+    };
+
+    private static final int CHUNK_SIZE = 64;
+    // each chunk starts with the index of the next chunk of the value.
+    private static final int CHUNK_HEADER_SIZE = Integer.BYTES;
+    private static final int CHUNK_DATA_SIZE = CHUNK_SIZE - CHUNK_HEADER_SIZE;
+    private static final int CHUNKS_PER_SEGMENT = 1 << 20;
+    private static final int NO_CHUNK = -1;
+
+    private final Codec<V> codec;
+    private final int maxSize;
+    private final int maxChunks;
+    private final long defaultTimeToLive;
+    // entries in access order, the least recently used first.
+    private final LinkedHashMap<K, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    // first chunk of the list of freed chunks, linked through their headers.
+    private int freeChunk = NO_CHUNK;
+    // chunks below this index have been handed out at least once.
+    private int allocatedChunks;
+    private int usedChunks;
+    private long valueBytes;
+    private long allocatedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxSize           maximum number of entries.
+     * @param maxBytes          maximum number of bytes of off-heap memory.
+     * @param defaultTimeToLive time to live of entries in milliseconds.
+     * @param codec             encodes values to bytes and back.
+     */
+    public OffHeapUserStoreCache(int maxSize, long maxBytes, long defaultTimeToLive, Codec<V> codec) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxChunks = (int) Math.max(1, Math.min(maxBytes / CHUNK_SIZE, Integer.MAX_VALUE));
+        this.defaultTimeToLive = defaultTimeToLive;
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            free(entries.remove(key));
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return codec.decode(read(entry));
+    }
+
+    @Override
+    public void put(K key, V value) {
+        put(key, value, defaultTimeToLive);
+    }
+
+    @Override
+    public void put(K key, V value, long timeToLive) {
+        if (timeToLive <= 0) {
+            return;
+        }
+        // encoded outside of the lock, it is the costly part of a put.
+        byte[] bytes = codec.encode(value);
+        int chunkCount = (bytes.length + CHUNK_DATA_SIZE - 1) / CHUNK_DATA_SIZE;
+        synchronized (this) {
+            free(entries.remove(key));
+            if (chunkCount > maxChunks) {
+                // larger than the whole cache.
+                return;
+            }
+            Iterator<CacheEntry> leastRecentlyUsed = entries.values().iterator();
+            while (entries.size() >= maxSize || usedChunks + chunkCount > maxChunks) {
+                free(leastRecentlyUsed.next());
+                leastRecentlyUsed.remove();
+                evictions++;
+            }
+            entries.put(key, new CacheEntry(write(bytes, chunkCount), bytes.length,
+                    System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * The value is decoded and encoded under the lock of the cache, so that no other update of the key is lost.
+     */
+    @Override
+    public synchronized void compute(K key, UnaryOperator<V> remapping, long timeToLive) {
+        CacheEntry entry = entries.get(key);
+        V value = remapping.apply(entry == null || entry.isExpired(System.currentTimeMillis()) ? null
+                : codec.decode(read(entry)));
+        if (value == null || timeToLive <= 0) {
+            free(entries.remove(key));
+        } else {
+            put(key, value, timeToLive);
+        }
+    }
+
+    @Override
+    public synchronized void remove(K key) {
+        free(entries.remove(key));
+    }
+
+    @Override
+    public synchronized void removeIf(Predicate<K> predicate) {
+        for (Iterator<Map.Entry<K, CacheEntry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<K, CacheEntry> entry = iterator.next();
+            if (predicate.test(entry.getKey())) {
+                free(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        // the segments are kept and handed out again from the start, so a reload reuses them.
+        freeChunk = NO_CHUNK;
+        allocatedChunks = 0;
+        usedChunks = 0;
+        valueBytes = 0;
+    }
+
+    /**
+     * Drops all entries and the segments, so that their off-heap memory is freed once they are collected.
+     */
+    @Override
+    public synchronized void close() {
+        clear();
+        segments.clear();
+        allocatedBytes = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("size", (long) entries.size());
+        statistics.put("hits", hits);
+        statistics.put("misses", misses);
+        statistics.put("evictions", evictions);
+        statistics.put("expirations", expirations);
+        statistics.put("valueBytes", valueBytes);
+        statistics.put("usedBytes", (long) usedChunks * CHUNK_SIZE);
+        statistics.put("allocatedBytes", allocatedBytes);
+        statistics.put("maxBytes", (long) maxChunks * CHUNK_SIZE);
+        return statistics;
+    }
+
+    /*
+     * Copies the bytes into newly allocated chunks and returns the first chunk, or NO_CHUNK for no bytes.
+     */
+    private int write(byte[] bytes, int chunkCount) {
+        int firstChunk = NO_CHUNK;
+        int previousChunk = NO_CHUNK;
+        for (int i = 0; i < chunkCount; i++) {
+            int chunk = allocateChunk();
+            if (previousChunk == NO_CHUNK) {
+                firstChunk = chunk;
+            } else {
+                getSegment(previousChunk).putInt(getOffset(previousChunk), chunk);
+            }
+            ByteBuffer segment = getSegment(chunk);
+            int offset = getOffset(chunk);
+            segment.putInt(offset, NO_CHUNK);
+            segment.position(offset + CHUNK_HEADER_SIZE);
+            segment.put(bytes, i * CHUNK_DATA_SIZE, Math.min(CHUNK_DATA_SIZE, bytes.length - i * CHUNK_DATA_SIZE));
+            previousChunk = chunk;
+        }
+        usedChunks += chunkCount;
+        valueBytes += bytes.length;
+        return firstChunk;
+    }
+
+    private byte[] read(CacheEntry entry) {
+        byte[] bytes = new byte[entry.length];
+        int chunk = entry.firstChunk;
+        for (int read = 0; read < bytes.length; read += CHUNK_DATA_SIZE) {
+            ByteBuffer segment = getSegment(chunk);
+            int offset = getOffset(chunk);
+            segment.position(offset + CHUNK_HEADER_SIZE);
+            segment.get(bytes, read, Math.min(CHUNK_DATA_SIZE, bytes.length - read));
+            chunk = segment.getInt(offset);
+        }
+        return bytes;
+    }
+
+    /*
+     * Returns the chunks of the entry to the free list.
+     */
+    private void free(CacheEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        int chunk = entry.firstChunk;
+        while (chunk != NO_CHUNK) {
+            ByteBuffer segment = getSegment(chunk);
+            int offset = getOffset(chunk);
+            int nextChunk = segment.getInt(offset);
+            segment.putInt(offset, freeChunk);
+            freeChunk = chunk;
+            usedChunks--;
+            chunk = nextChunk;
+        }
+        valueBytes -= entry.length;
+    }
+
+    private int allocateChunk() {
+        if (freeChunk != NO_CHUNK) {
+            int chunk = freeChunk;
+            freeChunk = getSegment(chunk).getInt(getOffset(chunk));
+            return chunk;
+        }
+        if (allocatedChunks / CHUNKS_PER_SEGMENT == segments.size()) {
+            int segmentChunks = Math.min(CHUNKS_PER_SEGMENT, maxChunks - allocatedChunks);
+            segments.add(ByteBuffer.allocateDirect(segmentChunks * CHUNK_SIZE));
+            allocatedBytes += (long) segmentChunks * CHUNK_SIZE;
+        }
+        return allocatedChunks++;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLength(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readLength(in);
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // seven bits per byte, the high bit tells that more bytes follow.
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+    }
+
+    private static int readLength(ByteBuffer in) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+    }
+
+    private ByteBuffer getSegment(int chunk) {
+        return segments.get(chunk / CHUNKS_PER_SEGMENT);
+    }
+
+    private static int getOffset(int chunk) {
+        return (chunk % CHUNKS_PER_SEGMENT) * CHUNK_SIZE;
+    }
+
+    private static final class CacheEntry {
+        private final int firstChunk;
+        private final int length;
+        private final long expiryTime;
+
+        private CacheEntry(int firstChunk, int length, long expiryTime) {
+            this.firstChunk = firstChunk;
+            this.length = length;
+            this.expiryTime = expiryTime;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiryTime;
+        }
+    }
+
+    /**
+     * Encodes values of the cache to bytes and back.
+     *
+     * @param <V> value type.
+     */
+    public interface Codec<V> {
+
+        byte[] encode(V value);
+
+        V decode(byte[] bytes);
+    }
+}
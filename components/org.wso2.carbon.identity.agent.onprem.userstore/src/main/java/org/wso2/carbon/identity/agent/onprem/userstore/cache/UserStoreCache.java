@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded, thread safe cache used in front of the user store. Entries expire after their time to live and the
+ * least recently used entries are evicted when the cache is full.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ */
+public interface UserStoreCache<K, V> {
+
+    /**
+     * @return the cached value, or null if there is no live entry for the key.
+     */
+    V get(K key);
+
+    /**
+     * Caches the value with the default time to live of the cache.
+     */
+    void put(K key, V value);
+
+    /**
+     * Caches the value with the given time to live in milliseconds.
+     */
+    void put(K key, V value, long timeToLive);
+
+    /**
+     * Replaces the value with the one computed from the current value, or from null if there is no live entry,
+     * atomically with other updates of the key. The computed value is cached with the given time to live in
+     * milliseconds, and a null value removes the entry.
+     */
+    void compute(K key, UnaryOperator<V> remapping, long timeToLive);
+
+    void remove(K key);
+
+    /**
+     * Removes the entries whose keys match the predicate. This visits every entry of the cache.
+     */
+    void removeIf(Predicate<K> predicate);
+
+    void clear();
+
+    int size();
+
+    /**
+     * Drops all entries and releases what the cache holds. The cache is not used afterwards.
+     */
+    default void close() {
+        clear();
+    }
+
+    /**
+     * @return hit, miss and eviction counters of the cache.
+     */
+    Map<String, Long> getStatistics();
+}
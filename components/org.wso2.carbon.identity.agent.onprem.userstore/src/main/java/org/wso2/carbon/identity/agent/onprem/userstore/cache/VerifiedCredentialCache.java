@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers credentials that were recently verified against the user store, so that repeated authentications of
+ * the same user do not need an LDAP bind. Passwords are never kept. Each entry holds a random salt and an
+ * HMAC-SHA256 of the salt, user and password, keyed with a secret that is generated when the cache is created
+ * and only lives in memory.
+ */
+public class VerifiedCredentialCache {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int SALT_LENGTH = 16;
+
+    private final UserStoreCache<String, byte[]> entries;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * @param maxSize    maximum number of users.
+     * @param timeToLive time in milliseconds a verified credential is trusted without a bind.
+     */
+    public VerifiedCredentialCache(int maxSize, long timeToLive) {
+        this.entries = new InMemoryUserStoreCache<>(maxSize, timeToLive);
+        byte[] key = new byte[KEY_LENGTH];
+        random.nextBytes(key);
+        SecretKeySpec secretKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(secretKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+            }
+        });
+    }
+
+    /**
+     * @return true if the credential matches the one last verified for the user and has not expired.
+     */
+    public boolean verify(String userKey, String credential) {
+        byte[] entry = entries.get(userKey);
+        if (entry == null) {
+            return false;
+        }
+        byte[] salt = Arrays.copyOfRange(entry, 0, SALT_LENGTH);
+        byte[] expected = Arrays.copyOfRange(entry, SALT_LENGTH, entry.length);
+        return MessageDigest.isEqual(expected, hash(salt, userKey, credential));
+    }
+
+    /**
+     * Records a credential that was just verified by the user store.
+     */
+    public void put(String userKey, String credential) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = hash(salt, userKey, credential);
+        byte[] entry = Arrays.copyOf(salt, SALT_LENGTH + hash.length);
+        System.arraycopy(hash, 0, entry, SALT_LENGTH, hash.length);
+        entries.put(userKey, entry);
+    }
+
+    public void remove(String userKey) {
+        entries.remove(userKey);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public Map<String, Long> getStatistics() {
+        return entries.getStatistics();
+    }
+
+    private byte[] hash(byte[] salt, String userKey, String credential) {
+        Mac mac = macs.get();
+        mac.update(salt);
+        mac.update(userKey.getBytes(StandardCharsets.UTF_8));
+        // separates the user from the credential, so that the pair cannot be shifted across the boundary.
+        mac.update((byte) 0);
+        return mac.doFinal(credential.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -15,13 +15,15 @@
  */
 package org.wso2.carbon.identity.agent.onprem.userstore.config;
 
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
 import java.util.Map;
 
 /**
  *
  */
 public class UserStoreConfiguration {
-    private static Map<String, String> userStoreProperties;
+    private static volatile Map<String, String> userStoreProperties;
     private static UserStoreConfiguration instance = new UserStoreConfiguration();
 
     private UserStoreConfiguration() {
@@ -41,4 +43,20 @@ public class UserStoreConfiguration {
     public Map<String, String> getUserStoreProperties() {
         return userStoreProperties;
     }
+
+    /**
+     * Reads the user store configuration file again.
+     *
+     * @return the user store properties read from the file.
+     * @throws UserStoreException if the file could not be read. The current properties are kept in that case.
+     */
+    public synchronized Map<String, String> reload() throws UserStoreException {
+        Map<String, String> properties = new UserStoreConfigurationXMLProcessor()
+                .buildUserStoreConfigurationFromFile();
+        if (properties == null) {
+            throw new UserStoreException("Error while reading userstore configuration from file");
+        }
+        userStoreProperties = properties;
+        return properties;
+    }
 }
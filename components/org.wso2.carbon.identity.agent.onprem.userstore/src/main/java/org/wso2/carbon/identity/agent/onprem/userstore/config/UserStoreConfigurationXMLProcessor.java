@@ -43,11 +43,11 @@ class UserStoreConfigurationXMLProcessor {
     private static Logger log = LoggerFactory.getLogger(UserStoreConfigurationXMLProcessor.class);
     private static final String USERSTORE_CONFIG_FILE = "userstore-config.xml";
     private static final String CONF_DIR = "conf";
-    private static Map<String, String> properties;
     private InputStream inStream = null;
     private SecretResolver secretResolver;
 
     Map<String, String> buildUserStoreConfigurationFromFile() {
+        Map<String, String> properties = null;
         OMElement rootElement;
         try {
             rootElement = getConfigElement();
@@ -24,6 +24,9 @@ public class CommonConstants {
     public static final String PROPERTY_MAX_USER_LIST = "MaxUserNameListLength";
     public static final String PROPERTY_MAX_SEARCH_TIME = "MaxSearchQueryTime";
     public static final String PROPERTY_MAX_ROLE_LIST = "MaxRoleNameListLength";
+    public static final String PROPERTY_CASE_INSENSITIVE_USERNAME = "CaseInsensitiveUsername";
+    public static final String PROPERTY_REQUEST_COALESCING_ENABLED = "RequestCoalescingEnabled";
+    public static final String PROPERTY_REQUEST_COALESCING_TIMEOUT = "RequestCoalescingTimeoutMilliseconds";
     public static final String XML_PATTERN_SEPERATOR = "#";
     public static final String ATTRIBUTE_LIST_SEPERATOR = ",";
     public static final String WILD_CARD_FILTER = "*";
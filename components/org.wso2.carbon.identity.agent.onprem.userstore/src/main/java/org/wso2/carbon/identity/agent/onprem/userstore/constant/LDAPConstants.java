@@ -35,8 +35,61 @@ public class LDAPConstants {
     public static final String SERVER_PRINCIPAL_ATTRIBUTE_VALUE = "Service";
     //DNS related constant
     public static final String CONNECTION_POOLING_ENABLED = "ConnectionPoolingEnabled";
+    //prefix of the sizing properties of a connection pool, eg: ConnectionPoolMaxSize
+    public static final String CONNECTION_POOL_PROPERTY_PREFIX = "ConnectionPool";
+    public static final String BIND_CONNECTION_POOLING_ENABLED = "BindConnectionPoolingEnabled";
+    public static final String BIND_CONNECTION_POOL_PROPERTY_PREFIX = "BindConnectionPool";
     public static final String GROUP_SEARCH_BASE = "GroupSearchBase";
     public static final String GROUP_NAME_LIST_FILTER = "GroupNameListFilter";
     public static final String GROUP_NAME_ATTRIBUTE = "GroupNameAttribute";
     public static final String MEMBERSHIP_ATTRIBUTE = "MembershipAttribute";
+    public static final String USER_DN_CACHE_ENABLED = "UserDNCacheEnabled";
+    public static final String USER_DN_CACHE_MAX_SIZE = "UserDNCacheMaxSize";
+    public static final String USER_DN_CACHE_EXPIRY_MILLISECONDS = "UserDNCacheExpiryMilliseconds";
+    public static final String USER_DN_CACHE_NEGATIVE_EXPIRY_MILLISECONDS = "UserDNCacheNegativeExpiryMilliseconds";
+    public static final String USER_ROLES_CACHE_ENABLED = "UserRolesCacheEnabled";
+    public static final String USER_ROLES_CACHE_MAX_SIZE = "UserRolesCacheMaxSize";
+    public static final String USER_ROLES_CACHE_EXPIRY_MILLISECONDS = "UserRolesCacheExpiryMilliseconds";
+    public static final String USER_ATTRIBUTE_CACHE_ENABLED = "UserAttributeCacheEnabled";
+    public static final String USER_ATTRIBUTE_CACHE_MAX_SIZE = "UserAttributeCacheMaxSize";
+    public static final String USER_ATTRIBUTE_CACHE_EXPIRY_MILLISECONDS = "UserAttributeCacheExpiryMilliseconds";
+    public static final String USER_ATTRIBUTE_CACHE_OFF_HEAP = "UserAttributeCacheOffHeap";
+    public static final String USER_ATTRIBUTE_CACHE_MAX_BYTES = "UserAttributeCacheMaxBytes";
+    public static final String CREDENTIAL_CACHE_ENABLED = "CredentialCacheEnabled";
+    public static final String CREDENTIAL_CACHE_MAX_SIZE = "CredentialCacheMaxSize";
+    public static final String CREDENTIAL_CACHE_EXPIRY_MILLISECONDS = "CredentialCacheExpiryMilliseconds";
+    public static final String PAGED_SEARCH_PAGE_SIZE = "PagedSearchPageSize";
+    public static final String LISTING_CURSOR_MAX_OPEN = "ListingCursorMaxOpen";
+    public static final String SERVER_SIDE_SORT_ENABLED = "ServerSideSortEnabled";
+    public static final String SEARCH_BASE_PARALLELISM = "SearchBaseParallelism";
+    public static final String USER_DN_PATTERN_ORDERING_ENABLED = "UserDNPatternOrderingEnabled";
+    public static final String USER_DN_PATTERN_MEMORY_MAX_SIZE = "UserDNPatternMemoryMaxSize";
+    public static final String USER_DN_PATTERN_MEMORY_EXPIRY_MILLISECONDS = "UserDNPatternMemoryExpiryMilliseconds";
+    public static final String USER_DN_PATTERN_SEARCH_FIRST = "UserDNPatternSearchFirst";
+    public static final String BATCH_AUTHENTICATION_THREADS = "BatchAuthenticationThreads";
+    public static final String BATCH_AUTHENTICATION_PARALLELISM = "BatchAuthenticationParallelism";
+    public static final String BATCH_ATTRIBUTE_SEARCH_CHUNK_SIZE = "BatchAttributeSearchChunkSize";
+    public static final String BATCH_MEMBERSHIP_SEARCH_CHUNK_SIZE = "BatchMembershipSearchChunkSize";
+    public static final String REPLICA_ENABLED = "ReplicaEnabled";
+    public static final String REPLICA_USER_ATTRIBUTES = "ReplicaUserAttributes";
+    public static final String REPLICA_CHANGE_ATTRIBUTE = "ReplicaChangeAttribute";
+    public static final String REPLICA_REFRESH_INTERVAL_MILLISECONDS = "ReplicaRefreshIntervalMilliseconds";
+    public static final String REPLICA_FULL_SYNC_INTERVAL_MILLISECONDS = "ReplicaFullSyncIntervalMilliseconds";
+    public static final String REPLICA_MAX_STALENESS_MILLISECONDS = "ReplicaMaxStalenessMilliseconds";
+    public static final String CHANGE_LISTENER_MODE = "ChangeListenerMode";
+    public static final String CHANGE_LISTENER_CHANGE_ATTRIBUTE = "ChangeListenerChangeAttribute";
+    public static final String CHANGE_LISTENER_POLL_INTERVAL_MILLISECONDS = "ChangeListenerPollIntervalMilliseconds";
+    public static final String CHANGE_LISTENER_RECONNECT_DELAY_MILLISECONDS =
+            "ChangeListenerReconnectDelayMilliseconds";
+    public static final String NESTED_GROUPS_ENABLED = "NestedGroupsEnabled";
+    public static final String NESTED_GROUPS_MAX_DEPTH = "NestedGroupsMaxDepth";
+    public static final String NESTED_GROUPS_MATCHING_RULE_IN_CHAIN = "NestedGroupsMatchingRuleInChain";
+    public static final String NESTED_GROUP_GRAPH_MAX_SIZE = "NestedGroupGraphMaxSize";
+    public static final String NESTED_GROUP_GRAPH_EXPIRY_MILLISECONDS = "NestedGroupGraphExpiryMilliseconds";
+    public static final String USER_NAME_FILTER_ENABLED = "UserNameFilterEnabled";
+    public static final String USER_NAME_FILTER_BITS_PER_USER = "UserNameFilterBitsPerUser";
+    public static final String USER_NAME_FILTER_REFRESH_INTERVAL_MILLISECONDS =
+            "UserNameFilterRefreshIntervalMilliseconds";
+    public static final String USER_NAME_FILTER_MAX_STALENESS_MILLISECONDS = "UserNameFilterMaxStalenessMilliseconds";
+    public static final String LISTING_CURSOR_IDLE_TIMEOUT_MILLISECONDS = "ListingCursorIdleTimeoutMilliseconds";
 }
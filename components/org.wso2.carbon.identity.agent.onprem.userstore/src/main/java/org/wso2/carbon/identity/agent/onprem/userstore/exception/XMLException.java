@@ -6,6 +6,8 @@ package org.wso2.carbon.identity.agent.onprem.userstore.exception;
  */
 public class XMLException extends Exception {
 
+    private static final long serialVersionUID = -3092541836508285402L;
+
     public XMLException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link UserStoreManager} that lets concurrent identical lookups share one call to the wrapped manager.
+ * Lookups are identical when they are for the same operation, user and attributes. Authentication, paged and
+ * streamed listings are never shared, since they depend on the credential, cursor or output of each caller.
+ */
+public class CoalescingUserStoreManager implements UserStoreManager {
+
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    private final UserStoreManager userStoreManager;
+    private final boolean caseInsensitiveUsername;
+    private final SingleFlight<String, Map<String, String>> userPropertyLookups;
+    private final SingleFlight<String, String[]> userRoleLookups;
+    private final SingleFlight<String, String[]> userListLookups;
+    private final SingleFlight<String, String[]> roleListLookups;
+
+    /**
+     * @param userStoreManager        manager doing the lookups.
+     * @param caseInsensitiveUsername whether user names differing only in case are the same user.
+     * @param timeout                 time in milliseconds a caller waits for the shared lookup.
+     */
+    public CoalescingUserStoreManager(UserStoreManager userStoreManager, boolean caseInsensitiveUsername,
+                                      long timeout) {
+        this.userStoreManager = userStoreManager;
+        this.caseInsensitiveUsername = caseInsensitiveUsername;
+        this.userPropertyLookups = new SingleFlight<>(timeout);
+        this.userRoleLookups = new SingleFlight<>(timeout);
+        this.userListLookups = new SingleFlight<>(timeout);
+        this.roleListLookups = new SingleFlight<>(timeout);
+    }
+
+    @Override
+    public Map<String, String> getUserPropertyValues(String userName, String[] propertyNames)
+            throws UserStoreException {
+        if (userName == null || propertyNames == null) {
+            return userStoreManager.getUserPropertyValues(userName, propertyNames);
+        }
+        String[] sortedPropertyNames = Arrays.stream(propertyNames).map(String::valueOf).sorted()
+                .toArray(String[]::new);
+        String key = getUserKey(userName) + KEY_SEPARATOR + String.join(KEY_SEPARATOR, sortedPropertyNames);
+        // callers get their own copy, since the result is shared.
+        return new HashMap<>(userPropertyLookups.execute(key,
+                () -> userStoreManager.getUserPropertyValues(userName, propertyNames)));
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getUserPropertyValues(String[] userNames, String[] propertyNames)
+            throws UserStoreException {
+        return userStoreManager.getUserPropertyValues(userNames, propertyNames);
+    }
+
+    @Override
+    public boolean doAuthenticate(String userName, Object credential) throws UserStoreException {
+        return userStoreManager.doAuthenticate(userName, credential);
+    }
+
+    @Override
+    public Boolean[] doAuthenticate(String[] userNames, Object[] credentials) throws UserStoreException {
+        return userStoreManager.doAuthenticate(userNames, credentials);
+    }
+
+    @Override
+    public String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException {
+        String key = filter + KEY_SEPARATOR + maxItemLimit;
+        return copy(userListLookups.execute(key, () -> userStoreManager.doListUsers(filter, maxItemLimit)));
+    }
+
+    @Override
+    public String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException {
+        String key = filter + KEY_SEPARATOR + maxItemLimit;
+        return copy(roleListLookups.execute(key, () -> userStoreManager.doGetRoleNames(filter, maxItemLimit)));
+    }
+
+    @Override
+    public void doListUsers(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException {
+        userStoreManager.doListUsers(filter, maxItemLimit, handler);
+    }
+
+    @Override
+    public void doGetRoleNames(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException {
+        userStoreManager.doGetRoleNames(filter, maxItemLimit, handler);
+    }
+
+    @Override
+    public ListingPage doListUsersPage(String filter, int pageSize, String cursor) throws UserStoreException {
+        return userStoreManager.doListUsersPage(filter, pageSize, cursor);
+    }
+
+    @Override
+    public ListingPage doGetRoleNamesPage(String filter, int pageSize, String cursor) throws UserStoreException {
+        return userStoreManager.doGetRoleNamesPage(filter, pageSize, cursor);
+    }
+
+    @Override
+    public String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException {
+        if (userName == null) {
+            return userStoreManager.doGetExternalRoleListOfUser(null);
+        }
+        return copy(userRoleLookups.execute(getUserKey(userName),
+                () -> userStoreManager.doGetExternalRoleListOfUser(userName)));
+    }
+
+    @Override
+    public Map<String, String[]> doGetExternalRoleListOfUsers(String[] userNames) throws UserStoreException {
+        return userStoreManager.doGetExternalRoleListOfUsers(userNames);
+    }
+
+    @Override
+    public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
+        return userStoreManager.doCheckIsUserInRole(userName, roleName);
+    }
+
+    @Override
+    public boolean getConnectionStatus() {
+        return userStoreManager.getConnectionStatus();
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>(userStoreManager.getStatistics());
+        addStatistics(statistics, "coalescing.userProperties.", userPropertyLookups.getStatistics());
+        addStatistics(statistics, "coalescing.userRoles.", userRoleLookups.getStatistics());
+        addStatistics(statistics, "coalescing.userList.", userListLookups.getStatistics());
+        addStatistics(statistics, "coalescing.roleList.", roleListLookups.getStatistics());
+        return statistics;
+    }
+
+    @Override
+    public void invalidateUserCache(String userName) {
+        userStoreManager.invalidateUserCache(userName);
+    }
+
+    @Override
+    public void invalidateCaches() {
+        userStoreManager.invalidateCaches();
+    }
+
+    @Override
+    public void close() {
+        userStoreManager.close();
+    }
+
+    private String getUserKey(String userName) {
+        String key = userName.trim();
+        return caseInsensitiveUsername ? key.toLowerCase(Locale.ENGLISH) : key;
+    }
+
+    private static String[] copy(String[] values) {
+        return values == null ? null : values.clone();
+    }
+
+    private static void addStatistics(Map<String, Long> statistics, String prefix, Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            statistics.put(prefix + entry.getKey(), entry.getValue());
+        }
+    }
+}
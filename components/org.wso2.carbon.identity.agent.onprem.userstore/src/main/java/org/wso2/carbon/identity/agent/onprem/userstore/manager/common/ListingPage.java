@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+/**
+ * One page of a user or role listing.
+ */
+public class ListingPage {
+
+    private final String[] names;
+    private final String cursor;
+
+    /**
+     * @param names  names of the page.
+     * @param cursor token to read the next page with, or null if this is the last page.
+     */
+    public ListingPage(String[] names, String cursor) {
+        this.names = names;
+        this.cursor = cursor;
+    }
+
+    public String[] getNames() {
+        return names;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one call per key at a time. Callers that ask for a key while a call for it is in flight wait for
+ * that call and share its result or failure, instead of running the same call again.
+ *
+ * @param <K> key type.
+ * @param <V> result type.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param timeout time in milliseconds a caller waits for the in-flight call of its key.
+     */
+    SingleFlight(long timeout) {
+        this.timeout = timeout;
+    }
+
+    V execute(K key, Call<V> call) throws UserStoreException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            calls.incrementAndGet();
+            try {
+                V value = call.call();
+                future.complete(value);
+                return value;
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+
+        coalesced.incrementAndGet();
+        try {
+            return existing.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            throw new UserStoreException("Timed out waiting for the user store lookup of " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for the user store lookup of " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UserStoreException(cause.getMessage(), cause);
+        }
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("calls", calls.get());
+        statistics.put("coalesced", coalesced.get());
+        statistics.put("timeouts", timeouts.get());
+        statistics.put("inFlight", (long) inFlight.size());
+        return statistics;
+    }
+
+    /**
+     * A user store call that may be shared by several callers.
+     */
+    interface Call<V> {
+        V call() throws UserStoreException;
+    }
+}
@@ -28,13 +28,76 @@ public interface UserStoreManager {
 
     Map<String, String> getUserPropertyValues(String userName, String[] propertyNames) throws UserStoreException;
 
+    /**
+     * Reads the given attributes of several users with a few searches, instead of a lookup per user.
+     *
+     * @return attribute values keyed by user name. Users that are not found are left out.
+     */
+    Map<String, Map<String, String>> getUserPropertyValues(String[] userNames, String[] propertyNames)
+            throws UserStoreException;
+
     boolean doAuthenticate(String userName, Object credential) throws UserStoreException;
 
+    /**
+     * Authenticates each user name with the credential at the same index, several at a time.
+     *
+     * @return the result of each credential, in the order of the user names. A result is null if the
+     * authentication failed with an error.
+     */
+    Boolean[] doAuthenticate(String[] userNames, Object[] credentials) throws UserStoreException;
+
     String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException;
 
     String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException;
 
+    /**
+     * Passes the user names to the handler as they are read from the user store, without holding the listing in
+     * memory. Names are passed in directory order, not sorted.
+     */
+    void doListUsers(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException;
+
+    /**
+     * Passes the role names to the handler as they are read from the user store, in directory order.
+     */
+    void doGetRoleNames(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException;
+
+    /**
+     * Lists users page by page. A listing is started with a null cursor and continued with the cursor of the
+     * previous page, until a page without a cursor is returned.
+     *
+     * @throws org.wso2.carbon.identity.agent.onprem.userstore.exception.InvalidCursorException if the cursor is
+     *                                                                                         unknown or expired.
+     */
+    ListingPage doListUsersPage(String filter, int pageSize, String cursor) throws UserStoreException;
+
+    /**
+     * Lists roles page by page, in the same way as {@link #doListUsersPage(String, int, String)}.
+     */
+    ListingPage doGetRoleNamesPage(String filter, int pageSize, String cursor) throws UserStoreException;
+
     String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException;
 
+    /**
+     * Reads the roles of several users with a group search per chunk of users, instead of a group search per user.
+     * Users of a group whose member list is not returned in full, eg: by range retrieval, are looked up one by
+     * one.
+     *
+     * @return roles keyed by user name. Users that are not found have no roles.
+     */
+    Map<String, String[]> doGetExternalRoleListOfUsers(String[] userNames) throws UserStoreException;
+
+    /**
+     * @return true if the user has the role. Role names are compared ignoring case.
+     */
+    boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException;
+
     boolean getConnectionStatus();
+
+    Map<String, Long> getStatistics();
+
+    void invalidateUserCache(String userName);
+
+    void invalidateCaches();
+
+    void close();
 }
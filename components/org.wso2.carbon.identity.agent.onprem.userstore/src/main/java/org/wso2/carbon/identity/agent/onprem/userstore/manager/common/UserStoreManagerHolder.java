@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap.LDAPUserStoreManager;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.UserStoreUtils;
+
+import java.util.Map;
+
+/**
+ * Holds the user store manager shared by all REST resources. The manager is created once when the agent
+ * starts and is only replaced when the user store configuration is reloaded.
+ */
+public class UserStoreManagerHolder {
+
+    private static Log log = LogFactory.getLog(UserStoreManagerHolder.class);
+    private static final long DEFAULT_REQUEST_COALESCING_TIMEOUT = 30000;
+    private volatile UserStoreManager userStoreManager;
+
+    /**
+     * Creates the user store manager for the given configuration.
+     *
+     * @param userStoreProperties user store configuration properties.
+     * @throws UserStoreException if the manager is already initialized or the configuration is invalid.
+     */
+    public synchronized void init(Map<String, String> userStoreProperties) throws UserStoreException {
+        if (userStoreManager != null) {
+            throw new UserStoreException("User store manager is already initialized");
+        }
+        userStoreManager = createUserStoreManager(userStoreProperties);
+        if (log.isDebugEnabled()) {
+            log.debug("User store manager initialized.");
+        }
+    }
+
+    /**
+     * Replaces the current user store manager with one built from the given configuration. Requests that start
+     * after the swap use the new manager, and the previous manager is closed once the new one is in place.
+     *
+     * @param userStoreProperties user store configuration properties.
+     * @throws UserStoreException if the new configuration is invalid. The current manager is kept in that case.
+     */
+    public synchronized void reload(Map<String, String> userStoreProperties) throws UserStoreException {
+        UserStoreManager newUserStoreManager = createUserStoreManager(userStoreProperties);
+        UserStoreManager oldUserStoreManager = userStoreManager;
+        userStoreManager = newUserStoreManager;
+        if (oldUserStoreManager != null) {
+            oldUserStoreManager.close();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("User store manager reloaded.");
+        }
+    }
+
+    /**
+     * Releases the resources held by the current user store manager.
+     */
+    public synchronized void shutdown() {
+        if (userStoreManager != null) {
+            userStoreManager.close();
+            userStoreManager = null;
+        }
+    }
+
+    private UserStoreManager createUserStoreManager(Map<String, String> userStoreProperties)
+            throws UserStoreException {
+        UserStoreManager manager = new LDAPUserStoreManager(userStoreProperties);
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, CommonConstants.PROPERTY_REQUEST_COALESCING_ENABLED,
+                true)) {
+            manager = new CoalescingUserStoreManager(manager,
+                    UserStoreUtils.getBooleanProperty(userStoreProperties,
+                            CommonConstants.PROPERTY_CASE_INSENSITIVE_USERNAME, true),
+                    UserStoreUtils.getLongProperty(userStoreProperties,
+                            CommonConstants.PROPERTY_REQUEST_COALESCING_TIMEOUT, DEFAULT_REQUEST_COALESCING_TIMEOUT));
+        }
+        return manager;
+    }
+
+    public UserStoreManager getUserStoreManager() throws UserStoreException {
+        UserStoreManager manager = userStoreManager;
+        if (manager == null) {
+            throw new UserStoreException("User store manager is not initialized");
+        }
+        return manager;
+    }
+}
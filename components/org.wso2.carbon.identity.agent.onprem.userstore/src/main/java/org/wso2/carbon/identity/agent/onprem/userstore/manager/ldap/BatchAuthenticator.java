@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authenticates a batch of credentials with several binds at the same time. A batch is worked on by at most
+ * batchParallelism threads, the calling thread being one of them, so that one large batch cannot take all bind
+ * connections. The binds themselves still go through the bind connection pool.
+ */
+class BatchAuthenticator {
+
+    private static Log log = LogFactory.getLog(BatchAuthenticator.class);
+    private static final int QUEUE_SIZE_PER_THREAD = 16;
+
+    private final int batchParallelism;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong credentials = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param threads          threads shared by all batches.
+     * @param batchParallelism maximum number of binds of one batch at a time.
+     */
+    BatchAuthenticator(int threads, int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(threads * QUEUE_SIZE_PER_THREAD), runnable -> {
+                    Thread thread = new Thread(runnable, "ldap-batch-authentication-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Authenticates each user name with the credential at the same index.
+     *
+     * @return the result of each credential, in the order of the user names. A result is null if the
+     * authentication failed with an error.
+     */
+    Boolean[] authenticate(String[] userNames, Object[] userCredentials, Authenticator authenticator)
+            throws UserStoreException {
+        if (userNames.length != userCredentials.length) {
+            throw new UserStoreException("Number of user names " + userNames.length
+                    + " does not match the number of credentials " + userCredentials.length);
+        }
+        batches.incrementAndGet();
+        credentials.addAndGet(userNames.length);
+
+        Boolean[] results = new Boolean[userNames.length];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch remaining = new CountDownLatch(userNames.length);
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < userNames.length; i = next.getAndIncrement()) {
+                try {
+                    results[i] = authenticator.authenticate(userNames[i], userCredentials[i]);
+                } catch (UserStoreException | RuntimeException e) {
+                    errors.incrementAndGet();
+                    log.error("Error occurred while authenticating user " + userNames[i] + " of a batch", e);
+                } finally {
+                    remaining.countDown();
+                }
+            }
+        };
+
+        int workers = Math.min(batchParallelism, userNames.length);
+        List<Future<?>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 1; i < workers; i++) {
+                futures.add(executor.submit(worker));
+            }
+            worker.run();
+            // every credential is taken once the calling thread is done, wait for the binds still running.
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while authenticating a batch of users", e);
+        } finally {
+            // workers still queued have nothing left to do.
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("batches", batches.get());
+        statistics.put("credentials", credentials.get());
+        statistics.put("errors", errors.get());
+        statistics.put("activeThreads", (long) executor.getActiveCount());
+        return statistics;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Authenticates one user.
+     */
+    interface Authenticator {
+        boolean authenticate(String userName, Object credential) throws UserStoreException;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.InMemoryUserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.UserStoreCache;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses the order in which the user DN patterns are tried when a user binds. The pattern a user last bound with
+ * is tried first, and the other patterns follow in the order of how often users bound with them, so that most
+ * authentications take a single bind.
+ */
+class DNPatternSelector {
+
+    private final int patternCount;
+    private final AtomicLongArray hits;
+    private final UserStoreCache<String, Integer> userPatterns;
+
+    /**
+     * @param patternCount number of user DN patterns.
+     * @param maxSize      maximum number of users whose pattern is remembered.
+     * @param timeToLive   time in milliseconds the pattern of a user is remembered.
+     */
+    DNPatternSelector(int patternCount, int maxSize, long timeToLive) {
+        this.patternCount = patternCount;
+        this.hits = new AtomicLongArray(patternCount);
+        this.userPatterns = new InMemoryUserStoreCache<>(maxSize, timeToLive);
+    }
+
+    /**
+     * @return indexes of the patterns, in the order they should be tried for the user.
+     */
+    int[] order(String userKey) {
+        Integer remembered = userPatterns.get(userKey);
+        // a snapshot, so that the ordering does not change while sorting.
+        long[] counts = new long[patternCount];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = hits.get(i);
+        }
+        // the sort is stable, so patterns with equal counts keep the configured order.
+        Integer[] order = new Integer[patternCount];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing((Integer i) -> i.equals(remembered))
+                .thenComparingLong(i -> counts[i]).reversed());
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Records that the user bound with the pattern.
+     */
+    void recordSuccess(String userKey, int index) {
+        hits.incrementAndGet(index);
+        userPatterns.put(userKey, index);
+    }
+
+    void forget(String userKey) {
+        userPatterns.remove(userKey);
+    }
+
+    void clear() {
+        userPatterns.clear();
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>(userPatterns.getStatistics());
+        for (int i = 0; i < patternCount; i++) {
+            statistics.put("pattern" + i + ".hits", hits.get(i));
+        }
+        return statistics;
+    }
+}
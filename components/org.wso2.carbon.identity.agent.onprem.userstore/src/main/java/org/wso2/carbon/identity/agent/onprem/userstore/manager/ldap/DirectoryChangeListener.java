@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Watches the directory for changed entries and passes them to the handler of the watch, so that cached data of
+ * the entries can be dropped as soon as they change. Two ways of watching are supported:
+ * <ul>
+ * <li>persistent search (draft-ietf-ldapext-psearch), where the server sends each change on a search that never
+ * ends. Supported by OpenLDAP, 389 Directory Server and most other servers except Active Directory.</li>
+ * <li>polling, where the entries with a change attribute (eg: uSNChanged or modifyTimestamp) above the highest
+ * value seen so far are searched at an interval. Works with any server, including Active Directory.</li>
+ * </ul>
+ * Changes made while a persistent search is reconnecting cannot be known, so the resync handler is called after
+ * every reconnect.
+ * <p>
+ * Polling only finds entries that still exist, so it does not see deleted entries. Cached data of a deleted user
+ * is kept until it expires, and a moved or renamed entry is only seen under its new name. Use persistent search
+ * where deletes must be seen right away.
+ */
+class DirectoryChangeListener {
+
+    static final String MODE_PERSISTENT_SEARCH = "persistentSearch";
+    static final String MODE_POLLING = "polling";
+
+    private static Log log = LogFactory.getLog(DirectoryChangeListener.class);
+    private static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+    // changeTypes add, delete, modify and modDN, changesOnly true, returnECs false.
+    private static final byte[] PERSISTENT_SEARCH_VALUE = {
+            0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, 0x00};
+    private static final String USN_CHANGED = "uSNChanged";
+    private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+    // polling starts this long before the agent time, to allow for clock differences with the server.
+    private static final long CLOCK_SKEW_MARGIN = 300000;
+
+    private final LDAPConnectionContext connectionSource;
+    private final String mode;
+    private final String changeAttribute;
+    private final long pollInterval;
+    private final long reconnectDelay;
+    private final Runnable resyncHandler;
+    private final List<Watch> watches = new ArrayList<>();
+    private final List<LdapContext> openContexts = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    private volatile boolean running;
+    private int persistentSearches;
+    private final AtomicInteger openPersistentSearches = new AtomicInteger();
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param mode            {@link #MODE_PERSISTENT_SEARCH} or {@link #MODE_POLLING}.
+     * @param changeAttribute attribute polled for changes.
+     * @param pollInterval    time in milliseconds between two polls.
+     * @param reconnectDelay  time in milliseconds before a failed persistent search is started again.
+     * @param resyncHandler   called when changes may have been missed.
+     */
+    DirectoryChangeListener(LDAPConnectionContext connectionSource, String mode, String changeAttribute,
+                            long pollInterval, long reconnectDelay, Runnable resyncHandler) {
+        this.connectionSource = connectionSource;
+        this.mode = mode;
+        this.changeAttribute = changeAttribute;
+        this.pollInterval = pollInterval;
+        this.reconnectDelay = reconnectDelay;
+        this.resyncHandler = resyncHandler;
+    }
+
+    /**
+     * Watches the entries of the filter under the search bases. Watches are added before the listener is started.
+     */
+    void watch(String[] searchBases, String filter, String[] returnedAttributes, ChangeHandler handler) {
+        watches.add(new Watch(searchBases, filter, returnedAttributes, handler));
+    }
+
+    void start() throws UserStoreException {
+        running = true;
+        AtomicInteger threadCount = new AtomicInteger();
+        if (MODE_PERSISTENT_SEARCH.equalsIgnoreCase(mode)) {
+            int searches = 0;
+            for (Watch watch : watches) {
+                searches += watch.searchBases.length;
+            }
+            persistentSearches = searches;
+            executor = Executors.newScheduledThreadPool(Math.max(searches, 1),
+                    runnable -> newThread(runnable, threadCount));
+            for (Watch watch : watches) {
+                for (String searchBase : watch.searchBases) {
+                    executor.execute(() -> runPersistentSearch(watch, searchBase));
+                }
+            }
+        } else if (MODE_POLLING.equalsIgnoreCase(mode)) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> newThread(runnable, threadCount));
+            try {
+                setLatestChange(getInitialChange());
+            } catch (UserStoreException e) {
+                failures.incrementAndGet();
+                log.error("Error occurred while reading the change to poll the directory from, it is read again on "
+                        + "the next poll", e);
+            }
+            executor.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        } else {
+            throw new UserStoreException("Unknown directory change listener mode : " + mode);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        // a persistent search only ends when its connection is closed.
+        for (LdapContext context : openContexts) {
+            close(context);
+        }
+    }
+
+    /**
+     * @return true if every change is passed on as soon as the server reports it, that is when all persistent
+     * searches are open. Polling only passes on changes at the next poll, so it is never watching in this sense.
+     */
+    boolean isWatching() {
+        return running && MODE_PERSISTENT_SEARCH.equalsIgnoreCase(mode)
+                && openPersistentSearches.get() == persistentSearches;
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("changes", changes.get());
+        statistics.put("reconnects", reconnects.get());
+        statistics.put("polls", polls.get());
+        statistics.put("failures", failures.get());
+        return statistics;
+    }
+
+    private static Thread newThread(Runnable runnable, AtomicInteger threadCount) {
+        Thread thread = new Thread(runnable, "ldap-change-listener-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void runPersistentSearch(Watch watch, String searchBase) {
+        boolean reconnect = false;
+        while (running) {
+            LdapContext context = null;
+            NamingEnumeration<SearchResult> answer = null;
+            boolean open = false;
+            try {
+                context = connectionSource.getDedicatedContext();
+                openContexts.add(context);
+                context.setRequestControls(new Control[]{
+                        new BasicControl(PERSISTENT_SEARCH_OID, Control.CRITICAL, PERSISTENT_SEARCH_VALUE)});
+                SearchControls searchCtls = watch.getSearchControls();
+                answer = context.search(searchBase, watch.filter, searchCtls);
+                if (reconnect) {
+                    // changes made before the search started again were not seen.
+                    reconnects.incrementAndGet();
+                    resyncHandler.run();
+                }
+                reconnect = true;
+                // counted once the resync has been asked for, so nothing is taken as current before it.
+                openPersistentSearches.incrementAndGet();
+                open = true;
+                // blocks until the server sends the next change.
+                while (running && answer.hasMore()) {
+                    handle(watch, answer.next());
+                }
+            } catch (NamingException | UserStoreException | RuntimeException e) {
+                if (running) {
+                    failures.incrementAndGet();
+                    log.error("Persistent search on " + searchBase + " failed, starting it again in "
+                            + reconnectDelay + " ms", e);
+                }
+            } finally {
+                if (open) {
+                    openPersistentSearches.decrementAndGet();
+                }
+                JNDIUtil.closeNamingEnumeration(answer);
+                if (context != null) {
+                    openContexts.remove(context);
+                    close(context);
+                }
+            }
+            if (!sleep(reconnectDelay)) {
+                return;
+            }
+        }
+    }
+
+    private void poll() {
+        polls.incrementAndGet();
+        if (!hasLatestChange()) {
+            return;
+        }
+        for (Watch watch : watches) {
+            String latestChange = watch.latestChange;
+            String filter = "(&" + watch.filter + "(" + changeAttribute + ">=" + escapeFilterValue(latestChange)
+                    + "))";
+            DirContext context = null;
+            try {
+                context = connectionSource.getContext();
+                for (String searchBase : watch.searchBases) {
+                    NamingEnumeration<SearchResult> answer = null;
+                    try {
+                        answer = context.search(searchBase, filter, watch.getSearchControls());
+                        while (answer.hasMore()) {
+                            SearchResult result = answer.next();
+                            handle(watch, result);
+                            String change = getChange(result.getAttributes());
+                            if (change != null && DirectoryReplica.compareChanges(change, latestChange) > 0) {
+                                latestChange = change;
+                            }
+                        }
+                    } finally {
+                        JNDIUtil.closeNamingEnumeration(answer);
+                    }
+                }
+                // the next poll starts at the latest change, changes are kept until a poll succeeds.
+                watch.latestChange = latestChange;
+            } catch (NamingException | UserStoreException | RuntimeException e) {
+                failures.incrementAndGet();
+                log.error("Error occurred while polling the directory for changes with filter : " + filter, e);
+            } finally {
+                close(context);
+            }
+        }
+    }
+
+    /*
+     * Reads the change to poll from if it could not be read when the listener started. Nothing is polled without
+     * it, since the filter would match every entry.
+     */
+    private boolean hasLatestChange() {
+        if (watches.isEmpty() || watches.get(0).latestChange != null) {
+            return true;
+        }
+        try {
+            setLatestChange(getInitialChange());
+        } catch (UserStoreException e) {
+            failures.incrementAndGet();
+            log.error("Error occurred while reading the change to poll the directory from", e);
+            return false;
+        }
+        // entries changed before the polling could start were not seen.
+        resyncHandler.run();
+        return true;
+    }
+
+    private void setLatestChange(String change) {
+        for (Watch watch : watches) {
+            watch.latestChange = change;
+        }
+    }
+
+    private static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\5c");
+                    break;
+                case '*':
+                    escaped.append("\\2a");
+                    break;
+                case '(':
+                    escaped.append("\\28");
+                    break;
+                case ')':
+                    escaped.append("\\29");
+                    break;
+                case '\u0000':
+                    escaped.append("\\00");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private void handle(Watch watch, SearchResult result) {
+        changes.incrementAndGet();
+        try {
+            watch.handler.changed(result);
+        } catch (NamingException | RuntimeException e) {
+            log.error("Error occurred while handling the change of " + result.getName(), e);
+        }
+    }
+
+    private String getChange(Attributes attributes) throws NamingException {
+        Attribute change = attributes == null ? null : attributes.get(changeAttribute);
+        return change == null ? null : String.valueOf(change.get());
+    }
+
+    /*
+     * Returns the change attribute value to poll from. Active Directory gives the current USN in the root DSE,
+     * other change attributes are taken to be generalized times and start from the current time.
+     */
+    private String getInitialChange() throws UserStoreException {
+        if (USN_CHANGED.equalsIgnoreCase(changeAttribute)) {
+            DirContext context = connectionSource.getContext();
+            try {
+                Attribute usn = context.getAttributes("", new String[]{HIGHEST_COMMITTED_USN})
+                        .get(HIGHEST_COMMITTED_USN);
+                if (usn != null) {
+                    return String.valueOf(usn.get());
+                }
+            } catch (NamingException e) {
+                throw new UserStoreException("Error occurred while reading the " + HIGHEST_COMMITTED_USN, e);
+            } finally {
+                close(context);
+            }
+            return "0";
+        }
+        SimpleDateFormat generalizedTime = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        generalizedTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return generalizedTime.format(new Date(System.currentTimeMillis() - CLOCK_SKEW_MARGIN));
+    }
+
+    private static void close(DirContext context) {
+        if (context == null) {
+            return;
+        }
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.error("Error in closing the connection of the directory change listener", e);
+        }
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return running;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Entries watched for changes.
+     */
+    private final class Watch {
+
+        private final String[] searchBases;
+        private final String filter;
+        private final String[] returnedAttributes;
+        private final ChangeHandler handler;
+        // only used by the polling thread.
+        private String latestChange;
+
+        private Watch(String[] searchBases, String filter, String[] returnedAttributes, ChangeHandler handler) {
+            this.searchBases = searchBases;
+            this.filter = filter;
+            String[] attributes = new String[returnedAttributes.length + 1];
+            System.arraycopy(returnedAttributes, 0, attributes, 0, returnedAttributes.length);
+            attributes[returnedAttributes.length] = changeAttribute;
+            this.returnedAttributes = attributes;
+            this.handler = handler;
+        }
+
+        private SearchControls getSearchControls() {
+            SearchControls searchCtls = new SearchControls();
+            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            searchCtls.setReturningAttributes(returnedAttributes);
+            return searchCtls;
+        }
+    }
+
+    /**
+     * Handles a changed entry.
+     */
+    interface ChangeHandler {
+        void changed(SearchResult entry) throws NamingException;
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.NameHandler;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory copy of the users and groups of the directory, so that reads can be served without a round trip to
+ * the directory server. The replica is loaded in full at start up and at every full sync interval, and in between
+ * only the entries changed since the last load are read, by the change attribute of the entries (eg:
+ * modifyTimestamp or uSNChanged). Deleted entries are only dropped by a full sync, since a change filter does not
+ * return them.
+ * <p>
+ * Each load builds a new {@link Snapshot}, so readers never see a half applied change. A snapshot is only handed
+ * out while it is younger than the staleness bound, otherwise the caller reads from the directory.
+ */
+class DirectoryReplica {
+
+    private static Log log = LogFactory.getLog(DirectoryReplica.class);
+
+    private final Loader loader;
+    private final long refreshInterval;
+    private final long fullSyncInterval;
+    private final long maxStaleness;
+    private final ScheduledExecutorService scheduler;
+    private volatile Snapshot snapshot;
+    private volatile boolean fullSyncRequested;
+
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong deltaSyncs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param loader           reads the entries from the directory.
+     * @param refreshInterval  time in milliseconds between two loads.
+     * @param fullSyncInterval time in milliseconds between two full loads.
+     * @param maxStaleness     time in milliseconds after the last load that the replica is still served.
+     */
+    DirectoryReplica(Loader loader, long refreshInterval, long fullSyncInterval, long maxStaleness) {
+        this.loader = loader;
+        this.refreshInterval = refreshInterval;
+        this.fullSyncInterval = fullSyncInterval;
+        this.maxStaleness = maxStaleness;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldap-directory-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts loading the replica in the background. Until the first load is done, no snapshot is served.
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the current snapshot, or null if the replica is not loaded or is older than the staleness bound.
+     */
+    Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.syncTime > maxStaleness) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Makes the next load a full load.
+     */
+    void requestFullSync() {
+        fullSyncRequested = true;
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        Snapshot current = snapshot;
+        if (current != null) {
+            statistics.put("users", (long) current.userIds.size());
+            statistics.put("groups", (long) current.groups.size());
+            statistics.put("memberships", current.memberships.getMemberships());
+            statistics.put("ageMilliseconds", System.currentTimeMillis() - current.syncTime);
+        }
+        statistics.put("fullSyncs", fullSyncs.get());
+        statistics.put("deltaSyncs", deltaSyncs.get());
+        statistics.put("failures", failures.get());
+        return statistics;
+    }
+
+    private void refresh() {
+        try {
+            Snapshot current = snapshot;
+            if (current == null || fullSyncRequested
+                    || System.currentTimeMillis() - current.fullSyncTime >= fullSyncInterval) {
+                fullSync();
+            } else {
+                deltaSync(current);
+            }
+        } catch (UserStoreException | RuntimeException e) {
+            // the current snapshot is kept, it is no longer served once it is older than the staleness bound.
+            failures.incrementAndGet();
+            log.error("Error occurred while refreshing the directory replica", e);
+        }
+    }
+
+    private void fullSync() throws UserStoreException {
+        fullSyncRequested = false;
+        long startTime = System.currentTimeMillis();
+        Map<String, UserEntry> users = new HashMap<>();
+        Map<String, GroupEntry> groups = new HashMap<>();
+        loader.loadUsers(null, users::put);
+        loader.loadGroups(null, groups::put);
+        snapshot = new Snapshot(users, groups, null, startTime, startTime);
+        fullSyncs.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + users.size() + " users and " + groups.size() + " groups into the directory replica"
+                    + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private void deltaSync(Snapshot current) throws UserStoreException {
+        long startTime = System.currentTimeMillis();
+        Map<String, UserEntry> changedUsers = new HashMap<>();
+        Map<String, GroupEntry> changedGroups = new HashMap<>();
+        loader.loadUsers(current.userChange, changedUsers::put);
+        loader.loadGroups(current.groupChange, changedGroups::put);
+        if (changedUsers.isEmpty() && changedGroups.isEmpty()) {
+            snapshot = current.withSyncTime(startTime);
+        } else {
+            Map<String, UserEntry> users = current.getUsers();
+            users.putAll(changedUsers);
+            Map<String, GroupEntry> groups = new HashMap<>(current.groups);
+            groups.putAll(changedGroups);
+            snapshot = new Snapshot(users, groups, current, startTime, current.fullSyncTime);
+        }
+        deltaSyncs.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Applied " + changedUsers.size() + " changed users and " + changedGroups.size()
+                    + " changed groups to the directory replica");
+        }
+    }
+
+    /*
+     * Orders change attribute values. USNs are numbers, and generalized times of the same server order as text.
+     */
+    static int compareChanges(String change, String otherChange) {
+        if (isNumber(change) && isNumber(otherChange)) {
+            return new BigInteger(change).compareTo(new BigInteger(otherChange));
+        }
+        return change.compareTo(otherChange);
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getLatestChange(Iterable<? extends Entry> entries) {
+        String latestChange = null;
+        for (Entry entry : entries) {
+            if (entry.change != null && (latestChange == null || compareChanges(entry.change, latestChange) > 0)) {
+                latestChange = entry.change;
+            }
+        }
+        return latestChange;
+    }
+
+    /*
+     * Matches a listing filter, where * stands for any sequence of characters, ignoring case as directory name
+     * attributes do.
+     */
+    private static Pattern getFilterPattern(String filter) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : filter.split("\\*", -1)) {
+            if (regex.length() > 0 || part.isEmpty()) {
+                regex.append(".*");
+            }
+            if (!part.isEmpty()) {
+                regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * Users and groups as of one load. Snapshots are never changed once built.
+     */
+    static final class Snapshot {
+
+        private static final Comparator<Entry> NAME_ORDER = Comparator.comparing(entry -> entry.name,
+                String.CASE_INSENSITIVE_ORDER);
+
+        // ids of the users keyed by user key, the id of a user is its index in the sorted users.
+        private final Map<String, Integer> userIds;
+        private final Map<String, GroupEntry> groups;
+        private final UserEntry[] sortedUsers;
+        // user ids in filter value order, null if the filter values of all users are their names.
+        private final int[] usersByFilterValue;
+        private final GroupEntry[] sortedGroups;
+        // group ids are indexes in the sorted groups, so the groups of a user come out in name order.
+        private final MembershipIndex memberships;
+        private final boolean rolesComplete;
+        private final String userChange;
+        private final String groupChange;
+        private final long syncTime;
+        private final long fullSyncTime;
+
+        /**
+         * @param previous snapshot the unchanged groups of a delta load come from, whose member lists are read
+         *                 from its index. Null for a full load.
+         */
+        private Snapshot(Map<String, UserEntry> users, Map<String, GroupEntry> groups, Snapshot previous,
+                         long syncTime, long fullSyncTime) {
+            List<Map.Entry<String, UserEntry>> userEntries = new ArrayList<>(users.entrySet());
+            userEntries.sort(Comparator.comparing(Map.Entry::getValue, NAME_ORDER));
+            this.userIds = new HashMap<>(users.size() * 4 / 3 + 1);
+            this.sortedUsers = new UserEntry[userEntries.size()];
+            // user ids keyed by the membership value groups have for them.
+            Map<Object, Integer> memberIds = new HashMap<>(users.size() * 4 / 3 + 1);
+            for (int userId = 0; userId < sortedUsers.length; userId++) {
+                Map.Entry<String, UserEntry> user = userEntries.get(userId);
+                sortedUsers[userId] = user.getValue();
+                userIds.put(user.getKey(), userId);
+                if (user.getValue().membershipKey != null) {
+                    memberIds.put(user.getValue().membershipKey, userId);
+                }
+            }
+            this.usersByFilterValue = getFilterValueOrder(sortedUsers);
+            this.groups = groups;
+            this.sortedGroups = groups.values().toArray(new GroupEntry[groups.size()]);
+            Arrays.sort(sortedGroups, NAME_ORDER);
+
+            Map<GroupEntry, Integer> previousGroupIds = new IdentityHashMap<>();
+            if (previous != null) {
+                for (int groupId = 0; groupId < previous.sortedGroups.length; groupId++) {
+                    previousGroupIds.put(previous.sortedGroups[groupId], groupId);
+                }
+            }
+            int[][] groupMembers = new int[sortedGroups.length][];
+            boolean complete = true;
+            for (int groupId = 0; groupId < sortedGroups.length; groupId++) {
+                GroupEntry group = sortedGroups[groupId];
+                complete &= group.complete;
+                List<Object> memberKeys = group.memberKeys;
+                if (memberKeys == null) {
+                    // the group is unchanged since the previous load, its members are mapped by their keys since
+                    // the user ids of the two snapshots differ.
+                    memberKeys = new ArrayList<>();
+                    Integer previousGroupId = previousGroupIds.get(group);
+                    if (previousGroupId != null) {
+                        for (int previousUserId : previous.memberships.getMemberIds(previousGroupId)) {
+                            memberKeys.add(previous.sortedUsers[previousUserId].membershipKey);
+                        }
+                    }
+                }
+                groupMembers[groupId] = getMemberIds(memberKeys, memberIds);
+            }
+            this.memberships = new MembershipIndex(sortedUsers.length, groupMembers);
+            // the member lists are held by the index from now on.
+            for (GroupEntry group : sortedGroups) {
+                group.memberKeys = null;
+            }
+            this.rolesComplete = complete;
+            this.userChange = getLatestChange(users.values());
+            this.groupChange = getLatestChange(groups.values());
+            this.syncTime = syncTime;
+            this.fullSyncTime = fullSyncTime;
+        }
+
+        private Snapshot(Snapshot snapshot, long syncTime) {
+            this.userIds = snapshot.userIds;
+            this.groups = snapshot.groups;
+            this.sortedUsers = snapshot.sortedUsers;
+            this.usersByFilterValue = snapshot.usersByFilterValue;
+            this.sortedGroups = snapshot.sortedGroups;
+            this.memberships = snapshot.memberships;
+            this.rolesComplete = snapshot.rolesComplete;
+            this.userChange = snapshot.userChange;
+            this.groupChange = snapshot.groupChange;
+            this.syncTime = syncTime;
+            this.fullSyncTime = snapshot.fullSyncTime;
+        }
+
+        private Snapshot withSyncTime(long newSyncTime) {
+            return new Snapshot(this, newSyncTime);
+        }
+
+        /*
+         * Returns the sorted ids of the users of the membership keys, skipping members that are not users of the
+         * replica, eg: nested groups.
+         */
+        private static int[] getMemberIds(List<Object> memberKeys, Map<Object, Integer> memberIds) {
+            int[] ids = new int[memberKeys.size()];
+            int count = 0;
+            for (Object memberKey : memberKeys) {
+                Integer userId = memberIds.get(memberKey);
+                if (userId != null) {
+                    ids[count++] = userId;
+                }
+            }
+            Arrays.sort(ids, 0, count);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                    ids[distinct++] = ids[i];
+                }
+            }
+            return distinct == ids.length ? ids : Arrays.copyOf(ids, distinct);
+        }
+
+        private static int[] getFilterValueOrder(Entry[] entries) {
+            boolean filteredByName = true;
+            for (Entry entry : entries) {
+                filteredByName &= entry.filterValue.equals(entry.name);
+            }
+            if (filteredByName) {
+                return null;
+            }
+            return IntStream.range(0, entries.length).boxed()
+                    .sorted(Comparator.comparing(id -> entries[id].filterValue, String.CASE_INSENSITIVE_ORDER))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        private Map<String, UserEntry> getUsers() {
+            Map<String, UserEntry> users = new HashMap<>(userIds.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Integer> userId : userIds.entrySet()) {
+                users.put(userId.getKey(), sortedUsers[userId.getValue()]);
+            }
+            return users;
+        }
+
+        /**
+         * @return the user of the key, or null if the user is not in the directory.
+         */
+        UserEntry getUser(String userKey) {
+            Integer userId = userIds.get(userKey);
+            return userId == null ? null : sortedUsers[userId];
+        }
+
+        /**
+         * @return true if the member lists of all groups were read in full, so that the roles of users are known.
+         */
+        boolean isRolesComplete() {
+            return rolesComplete;
+        }
+
+        /**
+         * @return the names of the groups that have the user as a member, in name order, or null if the user is
+         * not in the directory.
+         */
+        List<String> getRoles(String userKey) {
+            Integer userId = userIds.get(userKey);
+            if (userId == null) {
+                return null;
+            }
+            int[] groupIds = memberships.getGroupIds(userId);
+            List<String> roles = new ArrayList<>(groupIds.length);
+            for (int groupId : groupIds) {
+                roles.add(sortedGroups[groupId].getName());
+            }
+            return roles;
+        }
+
+        /**
+         * @return true if the user is a member of a group of the given name, ignoring case.
+         */
+        boolean isUserInRole(String userKey, String roleName) {
+            Integer userId = userIds.get(userKey);
+            if (userId == null) {
+                return false;
+            }
+            // groups of the same name, eg: in different search bases, are next to each other in name order.
+            int groupId = Arrays.binarySearch(sortedGroups, new GroupEntry(roleName, null, null, true), NAME_ORDER);
+            if (groupId < 0) {
+                return false;
+            }
+            while (groupId > 0 && NAME_ORDER.compare(sortedGroups[groupId - 1], sortedGroups[groupId]) == 0) {
+                groupId--;
+            }
+            for (; groupId < sortedGroups.length && sortedGroups[groupId].getName().equalsIgnoreCase(roleName);
+                 groupId++) {
+                if (memberships.isMember(userId, groupId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Passes the names of the users matching the filter to the handler, in name order.
+         *
+         * @param maxItemLimit maximum number of names, no limit if 0 or less.
+         */
+        void listUsers(String filter, int maxItemLimit, NameHandler handler) throws IOException {
+            list(sortedUsers, usersByFilterValue, filter, maxItemLimit, handler);
+        }
+
+        /**
+         * Passes the names of the groups matching the filter to the handler, in name order.
+         *
+         * @param maxItemLimit maximum number of names, no limit if 0 or less.
+         */
+        void listRoles(String filter, int maxItemLimit, NameHandler handler) throws IOException {
+            list(sortedGroups, null, filter, maxItemLimit, handler);
+        }
+
+        /*
+         * Passes the names of the matching entries to the handler, in name order. When the filter starts with
+         * characters other than *, only the entries whose filter values start with them are matched, which are
+         * next to each other in filter value order.
+         *
+         * filterOrder holds the indexes of the entries in filter value order, or is null if the entries are in
+         * filter value order.
+         */
+        private static void list(Entry[] entries, int[] filterOrder, String filter, int maxItemLimit,
+                                 NameHandler handler) throws IOException {
+            Pattern pattern = getFilterPattern(filter);
+            int wildcard = filter.indexOf('*');
+            String prefix = wildcard < 0 ? filter : filter.substring(0, wildcard);
+            int from = prefix.isEmpty() ? 0 : getFirstAtOrAfter(entries, filterOrder, prefix);
+            if (filterOrder == null) {
+                int count = 0;
+                for (int i = from; i < entries.length && startsWith(entries[i].filterValue, prefix); i++) {
+                    if (maxItemLimit > 0 && count >= maxItemLimit) {
+                        return;
+                    }
+                    if (pattern.matcher(entries[i].filterValue).matches()) {
+                        handler.handle(entries[i].name);
+                        count++;
+                    }
+                }
+                return;
+            }
+
+            // indexes are positions in name order, so sorting the matches puts them in name order.
+            int[] matches = new int[16];
+            int matchCount = 0;
+            for (int i = from; i < filterOrder.length && startsWith(entries[filterOrder[i]].filterValue, prefix);
+                 i++) {
+                if (pattern.matcher(entries[filterOrder[i]].filterValue).matches()) {
+                    if (matchCount == matches.length) {
+                        matches = Arrays.copyOf(matches, matchCount * 2);
+                    }
+                    matches[matchCount++] = filterOrder[i];
+                }
+            }
+            Arrays.sort(matches, 0, matchCount);
+            int limit = maxItemLimit > 0 ? Math.min(maxItemLimit, matchCount) : matchCount;
+            for (int i = 0; i < limit; i++) {
+                handler.handle(entries[matches[i]].name);
+            }
+        }
+
+        /*
+         * Returns the first position in filter value order whose filter value is not ordered before the prefix.
+         */
+        private static int getFirstAtOrAfter(Entry[] entries, int[] filterOrder, String prefix) {
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Entry entry = entries[filterOrder == null ? middle : filterOrder[middle]];
+                if (String.CASE_INSENSITIVE_ORDER.compare(entry.filterValue, prefix) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private static boolean startsWith(String value, String prefix) {
+            return value.length() >= prefix.length()
+                    && String.CASE_INSENSITIVE_ORDER.compare(value.substring(0, prefix.length()), prefix) == 0;
+        }
+    }
+
+    /**
+     * An entry of the replica.
+     */
+    abstract static class Entry {
+
+        private final String name;
+        private final String filterValue;
+        private final String change;
+
+        /**
+         * @param name        name the entry is listed with.
+         * @param filterValue value listing filters are matched against.
+         * @param change      value of the change attribute, or null if the entry has none.
+         */
+        Entry(String name, String filterValue, String change) {
+            this.name = name;
+            this.filterValue = filterValue;
+            this.change = change;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * A user with the replicated attributes.
+     */
+    static final class UserEntry extends Entry {
+
+        private final Object membershipKey;
+        private final Map<String, String> attributes;
+
+        /**
+         * @param membershipKey key of the membership value groups have for the user.
+         * @param attributes    values of the replicated attributes the user has, keyed by lower case name.
+         */
+        UserEntry(String name, String filterValue, String change, Object membershipKey,
+                  Map<String, String> attributes) {
+            super(name, filterValue, change);
+            this.membershipKey = membershipKey;
+            this.attributes = attributes;
+        }
+
+        /**
+         * @return the value of the attribute, or null if the user does not have it.
+         */
+        String getAttribute(String lowerCaseName) {
+            return attributes.get(lowerCaseName);
+        }
+    }
+
+    /**
+     * A group with the membership keys of its members.
+     */
+    static final class GroupEntry extends Entry {
+
+        // released once the group is in the membership index of a snapshot.
+        private List<Object> memberKeys;
+        private final boolean complete;
+
+        /**
+         * @param complete false if the member list was not returned in full, eg: by range retrieval.
+         */
+        GroupEntry(String name, String change, List<Object> memberKeys, boolean complete) {
+            super(name, name, change);
+            this.memberKeys = memberKeys;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Reads entries from the directory.
+     */
+    interface Loader {
+
+        /**
+         * Reads the users changed since the given change attribute value, or all users if it is null.
+         */
+        void loadUsers(String changedSince, EntryHandler<UserEntry> handler) throws UserStoreException;
+
+        /**
+         * Reads the groups changed since the given change attribute value, or all groups if it is null.
+         */
+        void loadGroups(String changedSince, EntryHandler<GroupEntry> handler) throws UserStoreException;
+    }
+
+    /**
+     * Takes the entries read by a {@link Loader}.
+     */
+    interface EntryHandler<T extends Entry> {
+
+        /**
+         * @param key key of the entry, the user cache key of users and the normalized DN of groups.
+         */
+        void handle(String key, T entry);
+    }
+}
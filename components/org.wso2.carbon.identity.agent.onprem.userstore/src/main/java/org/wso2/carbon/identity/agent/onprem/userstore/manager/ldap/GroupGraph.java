@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.InMemoryUserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.UserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the groups a user is a member of through other groups. The parent groups of each group are read from
+ * the directory once and kept for all users, since users share most of their groups. The walk up the group
+ * graph is bounded by a depth limit, and a group met again on the way, eg: in a membership cycle, is not walked
+ * again.
+ */
+class GroupGraph {
+
+    private final UserStoreCache<String, List<Group>> parentGroups;
+    private final int maxDepth;
+
+    /**
+     * @param maxDepth   number of levels of parent groups walked above the groups the user is a direct member of.
+     * @param maxSize    maximum number of groups whose parent groups are kept.
+     * @param timeToLive time in milliseconds the parent groups of a group are kept.
+     */
+    GroupGraph(int maxDepth, int maxSize, long timeToLive) {
+        this.maxDepth = maxDepth;
+        this.parentGroups = new InMemoryUserStoreCache<>(maxSize, timeToLive);
+    }
+
+    /**
+     * @param directGroups groups the user is a direct member of.
+     * @return names of the direct groups followed by the names of the groups reached through them, without
+     * duplicates.
+     */
+    List<String> resolve(List<Group> directGroups, ParentLoader loader) throws UserStoreException {
+        Set<String> visited = new HashSet<>();
+        Set<String> names = new LinkedHashSet<>();
+        List<Group> level = new ArrayList<>();
+        for (Group group : directGroups) {
+            if (visited.add(group.key)) {
+                names.add(group.name);
+                level.add(group);
+            }
+        }
+        for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+            List<Group> nextLevel = new ArrayList<>();
+            for (Group group : level) {
+                for (Group parent : getParents(group, loader)) {
+                    if (visited.add(parent.key)) {
+                        names.add(parent.name);
+                        nextLevel.add(parent);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return new ArrayList<>(names);
+    }
+
+    void clear() {
+        parentGroups.clear();
+    }
+
+    Map<String, Long> getStatistics() {
+        return parentGroups.getStatistics();
+    }
+
+    private List<Group> getParents(Group group, ParentLoader loader) throws UserStoreException {
+        List<Group> parents = parentGroups.get(group.key);
+        if (parents == null) {
+            parents = Collections.unmodifiableList(new ArrayList<>(loader.loadParents(group.dn)));
+            parentGroups.put(group.key, parents);
+        }
+        return parents;
+    }
+
+    /**
+     * A group of the graph.
+     */
+    static final class Group {
+
+        private final String dn;
+        private final String name;
+        private final String key;
+
+        Group(String dn, String name) {
+            this.dn = dn;
+            this.name = name;
+            this.key = dn.toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Reads the groups that have a group as a direct member.
+     */
+    interface ParentLoader {
+        List<Group> loadParents(String groupDN) throws UserStoreException;
+    }
+}
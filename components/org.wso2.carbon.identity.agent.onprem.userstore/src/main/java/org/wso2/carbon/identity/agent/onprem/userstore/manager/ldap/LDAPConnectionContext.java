@@ -21,13 +21,16 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.UserStoreUtils;
 
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
+import javax.naming.AuthenticationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 
@@ -40,6 +43,8 @@ class LDAPConnectionContext {
     private Hashtable<String, String> environment;
     private static final String CONNECTION_TIME_OUT = "LDAPConnectionTimeout";
     private static final String READ_TIME_OUT = "ReadTimeout";
+    private LDAPConnectionPool connectionPool;
+    private LDAPConnectionPool bindConnectionPool;
 
     @SuppressWarnings({"rawtypes", "unchecked"})
     LDAPConnectionContext(Map<String, String> userStoreProperties) throws UserStoreException {
@@ -68,7 +73,7 @@ class LDAPConnectionContext {
             environment.put(Context.PROVIDER_URL, connectionURL);
         }
 
-        // Enable connection pooling if property is set in user-mgt.xml
+        // Connections are pooled by the agent if pooling is enabled, so JNDI pooling is always turned off.
         boolean isLDAPConnectionPoolingEnabled = false;
         String value = userStoreProperties.get(LDAPConstants.CONNECTION_POOLING_ENABLED);
 
@@ -76,7 +81,7 @@ class LDAPConnectionContext {
             isLDAPConnectionPoolingEnabled = Boolean.parseBoolean(value);
         }
 
-        environment.put("com.sun.jndi.ldap.connect.pool", isLDAPConnectionPoolingEnabled ? "true" : "false");
+        environment.put("com.sun.jndi.ldap.connect.pool", "false");
 
         // set referral status if provided in configuration.
         if (userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL) != null) {
@@ -95,19 +100,36 @@ class LDAPConnectionContext {
         if (StringUtils.isNotEmpty(readTimeout)) {
             environment.put("com.sun.jndi.ldap.read.timeout", readTimeout);
         }
+
+        if (isLDAPConnectionPoolingEnabled) {
+            connectionPool = new LDAPConnectionPool("ldap-connection-pool",
+                    () -> new InitialLdapContext(environment, null), userStoreProperties,
+                    LDAPConstants.CONNECTION_POOL_PROPERTY_PREFIX);
+        }
+        // connections reserved for user binds, kept apart so that logins cannot starve the lookups.
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.BIND_CONNECTION_POOLING_ENABLED,
+                false)) {
+            bindConnectionPool = new LDAPConnectionPool("ldap-bind-connection-pool",
+                    () -> new InitialLdapContext(environment, null), userStoreProperties,
+                    LDAPConstants.BIND_CONNECTION_POOL_PROPERTY_PREFIX);
+        }
     }
 
     DirContext getContext() throws UserStoreException {
+        if (connectionPool != null) {
+            return connectionPool.getContext();
+        }
         DirContext context;
         try {
-            context = new InitialDirContext(environment);
+            // an LdapContext, so that request controls such as paged results can be used on it.
+            context = new InitialLdapContext(environment, null);
 
         } catch (NamingException e) {
             log.error("Error obtaining connection. " + e.getMessage(), e);
             log.error("Trying again to get connection.");
 
             try {
-                context = new InitialDirContext(environment);
+                context = new InitialLdapContext(environment, null);
             } catch (Exception e1) {
                 log.error("Error obtaining connection for the second time" + e.getMessage(), e);
                 throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
@@ -117,6 +139,27 @@ class LDAPConnectionContext {
         return (context);
     }
 
+    /**
+     * Borrows a pooled connection if one is available right away. Without connection pooling there is no connection
+     * to spare, so no new connection is opened.
+     *
+     * @return the context, or null if no connection is available without waiting.
+     */
+    DirContext tryGetContext() throws UserStoreException {
+        return connectionPool != null ? connectionPool.tryGetContext() : null;
+    }
+
+    /**
+     * Opens a connection that is not taken from the pool, for callers that hold on to a connection for long.
+     */
+    LdapContext getDedicatedContext() throws UserStoreException {
+        try {
+            return new InitialLdapContext(environment, null);
+        } catch (NamingException e) {
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        }
+    }
+
     LdapContext getContextWithCredentials(String userDN, String password)
             throws UserStoreException, NamingException {
         LdapContext context;
@@ -135,4 +178,86 @@ class LDAPConnectionContext {
         return (context);
     }
 
+    /**
+     * Binds as the given user. When bind connection pooling is enabled the bind is performed on an already open
+     * connection of the bind pool, so no new TCP/TLS connection is set up per authentication. Pooled connections
+     * are bound as the connection user again before they go back to the pool, and are closed if that fails.
+     *
+     * @throws AuthenticationException if the directory rejects the credentials.
+     */
+    void bind(String userDN, String password) throws UserStoreException, NamingException {
+        if (bindConnectionPool == null) {
+            JNDIUtil.closeContext(getContextWithCredentials(userDN, password));
+            return;
+        }
+
+        LDAPConnectionPool.Lease lease = bindConnectionPool.borrow();
+        LdapContext context;
+        try {
+            context = lease.getContext();
+        } catch (NamingException e) {
+            bindConnectionPool.release(lease, true);
+            throw e;
+        }
+        boolean broken = true;
+        try {
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, userDN);
+            context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+            // with LDAP v3, reconnect sends a new bind request over the existing connection.
+            context.reconnect(null);
+        } finally {
+            // the connection is authenticated as the user (or not at all after a rejected bind) until it is bound
+            // as the connection user again; one that cannot be is closed rather than lent out with that identity.
+            try {
+                bindAsConnectionUser(context);
+                broken = false;
+            } catch (NamingException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Could not restore the connection user on a bind connection, closing it.", e);
+                }
+            }
+            bindConnectionPool.release(lease, broken);
+        }
+    }
+
+    private void bindAsConnectionUser(LdapContext context) throws NamingException {
+        Object principal = environment.get(Context.SECURITY_PRINCIPAL);
+        Object credentials = environment.get(Context.SECURITY_CREDENTIALS);
+        if (principal != null) {
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+        } else {
+            context.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+        }
+        if (credentials != null) {
+            context.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+        } else {
+            context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+        }
+        context.reconnect(null);
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        if (connectionPool != null) {
+            for (Map.Entry<String, Long> entry : connectionPool.getStatistics().entrySet()) {
+                statistics.put("connectionPool." + entry.getKey(), entry.getValue());
+            }
+        }
+        if (bindConnectionPool != null) {
+            for (Map.Entry<String, Long> entry : bindConnectionPool.getStatistics().entrySet()) {
+                statistics.put("bindConnectionPool." + entry.getKey(), entry.getValue());
+            }
+        }
+        return statistics;
+    }
+
+    void close() {
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        if (bindConnectionPool != null) {
+            bindConnectionPool.close();
+        }
+    }
+
 }
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.UserStoreUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Pool of authenticated LDAP connections owned by the agent. Connections are handed out as {@link LdapContext}
+ * proxies and go back to the pool when the proxy is closed, so callers keep using
+ * {@link org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil#closeContext} as with plain contexts.
+ * Each borrow gets a new {@link Lease} with its own proxy, so a caller that keeps a proxy after closing it cannot
+ * use or return the connection once it is lent to someone else.
+ * A background task evicts idle and expired connections, validates the remaining ones and keeps the pool at its
+ * minimum size.
+ */
+class LDAPConnectionPool {
+
+    private static Log log = LogFactory.getLog(LDAPConnectionPool.class);
+    private static final String[] NO_ATTRIBUTES = new String[]{"1.1"};
+    private static final String MIN_SIZE = "MinSize";
+    private static final String MAX_SIZE = "MaxSize";
+    private static final String IDLE_TIMEOUT = "IdleTimeout";
+    private static final String MAX_LIFETIME = "MaxLifetime";
+    private static final String BORROW_TIMEOUT = "BorrowTimeout";
+    private static final String VALIDATION_INTERVAL = "ValidationInterval";
+    private static final int DEFAULT_MIN_SIZE = 2;
+    private static final int DEFAULT_MAX_SIZE = 20;
+    private static final long DEFAULT_IDLE_TIMEOUT = 300000;
+    private static final long DEFAULT_MAX_LIFETIME = 1800000;
+    private static final long DEFAULT_BORROW_TIMEOUT = 5000;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 60000;
+
+    private final String name;
+    private final ConnectionFactory connectionFactory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final long borrowTimeout;
+
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private volatile boolean closed;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+    private final AtomicLong creationFailures = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates the connections handed out by the pool.
+     */
+    interface ConnectionFactory {
+        LdapContext createConnection() throws NamingException;
+    }
+
+    /**
+     * Creates a pool sized by the properties starting with the given prefix, eg: ConnectionPoolMaxSize.
+     */
+    LDAPConnectionPool(String name, ConnectionFactory connectionFactory, Map<String, String> userStoreProperties,
+                       String propertyPrefix) {
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.maxSize = Math.max(1, UserStoreUtils.getIntProperty(userStoreProperties, propertyPrefix + MAX_SIZE,
+                DEFAULT_MAX_SIZE));
+        this.minSize = Math.max(0, Math.min(UserStoreUtils.getIntProperty(userStoreProperties,
+                propertyPrefix + MIN_SIZE, DEFAULT_MIN_SIZE), this.maxSize));
+        this.idleTimeout = UserStoreUtils.getLongProperty(userStoreProperties, propertyPrefix + IDLE_TIMEOUT,
+                DEFAULT_IDLE_TIMEOUT);
+        this.maxLifetime = UserStoreUtils.getLongProperty(userStoreProperties, propertyPrefix + MAX_LIFETIME,
+                DEFAULT_MAX_LIFETIME);
+        this.borrowTimeout = UserStoreUtils.getLongProperty(userStoreProperties, propertyPrefix + BORROW_TIMEOUT,
+                DEFAULT_BORROW_TIMEOUT);
+        long validationInterval = UserStoreUtils.getLongProperty(userStoreProperties,
+                propertyPrefix + VALIDATION_INTERVAL, DEFAULT_VALIDATION_INTERVAL);
+        this.permits = new Semaphore(this.maxSize, true);
+
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenanceExecutor.execute(this::fill);
+        if (validationInterval > 0) {
+            maintenanceExecutor.scheduleWithFixedDelay(this::maintain, validationInterval, validationInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Created LDAP connection pool " + name + " with min size: " + this.minSize + ", max size: "
+                    + this.maxSize);
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured borrow timeout for one to become available. The returned
+     * context must be closed to hand the connection back to the pool.
+     */
+    LdapContext getContext() throws UserStoreException {
+        return borrow().proxy;
+    }
+
+    /**
+     * Borrows a connection only if one can be handed out without waiting, for work that can as well be done on a
+     * connection the caller already holds.
+     *
+     * @return the context, to be closed to hand the connection back, or null if the pool has no connection to spare.
+     */
+    LdapContext tryGetContext() throws UserStoreException {
+        if (closed) {
+            throw new UserStoreException("LDAP connection pool " + name + " is closed");
+        }
+        try {
+            // unlike tryAcquire(), a zero timeout does not take a permit ahead of the borrowers already waiting.
+            if (!permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for a connection from LDAP connection pool "
+                    + name, e);
+        }
+        return lend().proxy;
+    }
+
+    /**
+     * Borrows a connection, for callers that manage the connection state themselves through
+     * {@link Lease#getContext()}. The lease must be handed back through {@link #release(Lease, boolean)}.
+     */
+    Lease borrow() throws UserStoreException {
+        if (closed) {
+            throw new UserStoreException("LDAP connection pool " + name + " is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                throw new UserStoreException("Timed out after " + borrowTimeout
+                        + " ms waiting for a connection from LDAP connection pool " + name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for a connection from LDAP connection pool "
+                    + name, e);
+        } finally {
+            waitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+        return lend();
+    }
+
+    /*
+     * Hands out a connection against a permit that the caller has already acquired.
+     */
+    private Lease lend() throws UserStoreException {
+        try {
+            PooledConnection connection;
+            while ((connection = idleConnections.pollFirst()) != null) {
+                if (isExpired(connection, System.currentTimeMillis())) {
+                    destroy(connection);
+                    continue;
+                }
+                break;
+            }
+            if (connection == null) {
+                connection = createConnection();
+            }
+            Lease lease = new Lease(connection);
+            connection.lease.set(lease);
+            borrowCount.incrementAndGet();
+            return lease;
+        } catch (UserStoreException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a borrowed connection back to the pool. Broken connections are closed instead of being reused. A lease
+     * that was already released is ignored.
+     */
+    void release(Lease lease, boolean broken) {
+        PooledConnection connection = lease.connection;
+        if (!connection.lease.compareAndSet(lease, null)) {
+            return;
+        }
+        try {
+            if (broken || connection.broken || closed || isExpired(connection, System.currentTimeMillis())) {
+                destroy(connection);
+            } else if (!resetRequestControls(connection)) {
+                destroy(connection);
+            } else {
+                connection.lastUsedTime = System.currentTimeMillis();
+                // most recently used connections are handed out first so that the idle ones can time out.
+                idleConnections.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /*
+     * Clears request controls, such as paged results, that the previous borrower set on the connection.
+     */
+    private boolean resetRequestControls(PooledConnection connection) {
+        try {
+            connection.context.setRequestControls(null);
+            return true;
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while resetting the request controls of a connection of pool " + name, e);
+            }
+            return false;
+        }
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("total", (long) totalConnections.get());
+        statistics.put("idle", (long) idleConnections.size());
+        statistics.put("active", (long) (maxSize - permits.availablePermits()));
+        statistics.put("borrowed", borrowCount.get());
+        statistics.put("borrowTimeouts", borrowTimeouts.get());
+        statistics.put("waitTimeMillis", TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get()));
+        statistics.put("creationFailures", creationFailures.get());
+        statistics.put("validationFailures", validationFailures.get());
+        statistics.put("evictions", evictions.get());
+        return statistics;
+    }
+
+    void close() {
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            destroy(connection);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Closed LDAP connection pool " + name);
+        }
+    }
+
+    private PooledConnection createConnection() throws UserStoreException {
+        try {
+            PooledConnection connection = new PooledConnection(connectionFactory.createConnection());
+            totalConnections.incrementAndGet();
+            return connection;
+        } catch (NamingException e) {
+            creationFailures.incrementAndGet();
+            throw new UserStoreException("Error obtaining connection. " + e.getMessage(), e);
+        }
+    }
+
+    private void destroy(PooledConnection connection) {
+        totalConnections.decrementAndGet();
+        try {
+            connection.context.close();
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while closing pooled LDAP connection.", e);
+            }
+        }
+    }
+
+    private boolean isExpired(PooledConnection connection, long now) {
+        return maxLifetime > 0 && now - connection.creationTime > maxLifetime;
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection connection : idleConnections) {
+            if (!idleConnections.remove(connection)) {
+                // borrowed in the meantime.
+                continue;
+            }
+            boolean idleTooLong = idleTimeout > 0 && now - connection.lastUsedTime > idleTimeout
+                    && totalConnections.get() > minSize;
+            if (idleTooLong || isExpired(connection, now) || totalConnections.get() > maxSize) {
+                evictions.incrementAndGet();
+                destroy(connection);
+            } else if (!isValid(connection)) {
+                validationFailures.incrementAndGet();
+                destroy(connection);
+            } else {
+                idleConnections.offerLast(connection);
+            }
+        }
+        fill();
+    }
+
+    private void fill() {
+        while (!closed && totalConnections.get() < minSize) {
+            try {
+                PooledConnection connection = createConnection();
+                if (closed) {
+                    destroy(connection);
+                } else {
+                    idleConnections.offerLast(connection);
+                }
+            } catch (UserStoreException e) {
+                log.error("Error while filling LDAP connection pool " + name + ". " + e.getMessage());
+                if (log.isDebugEnabled()) {
+                    log.debug(e.getMessage(), e);
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            connection.context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Pooled LDAP connection failed validation. " + e.getMessage(), e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A connection managed by the pool.
+     */
+    private static final class PooledConnection {
+
+        private final LdapContext context;
+        private final long creationTime;
+        // lease of the current borrower, null while the connection is idle.
+        private final AtomicReference<Lease> lease = new AtomicReference<>();
+        private volatile long lastUsedTime;
+        private volatile boolean broken;
+
+        private PooledConnection(LdapContext context) {
+            this.context = context;
+            this.creationTime = System.currentTimeMillis();
+            this.lastUsedTime = creationTime;
+        }
+    }
+
+    /**
+     * One borrow of a pooled connection. The lease is only valid until it is released, later calls through it are
+     * rejected even if the connection has been lent again.
+     */
+    final class Lease implements InvocationHandler {
+
+        private final PooledConnection connection;
+        private final LdapContext proxy;
+
+        private Lease(PooledConnection connection) {
+            this.connection = connection;
+            this.proxy = (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                    new Class<?>[]{LdapContext.class}, this);
+        }
+
+        /**
+         * @return the connection itself, to be used only until the lease is released.
+         */
+        LdapContext getContext() throws NamingException {
+            checkCurrent();
+            return connection.context;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release(this, false);
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledLdapContext[" + name + "]";
+                default:
+                    break;
+            }
+            checkCurrent();
+            Object result;
+            try {
+                result = method.invoke(connection.context, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (isConnectionFailure(cause)) {
+                    connection.broken = true;
+                }
+                throw cause;
+            }
+            // search results are read from the connection as they are enumerated, so their failures count too.
+            if (result instanceof NamingEnumeration) {
+                return new LeasedEnumeration<>((NamingEnumeration<?>) result, connection);
+            }
+            return result;
+        }
+
+        private void checkCurrent() throws NamingException {
+            if (connection.lease.get() != this) {
+                throw new NamingException("LDAP connection has already been returned to pool " + name);
+            }
+        }
+    }
+
+    private static boolean isConnectionFailure(Throwable e) {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+    }
+
+    /**
+     * Enumeration returned through a lease, which marks the connection as broken when reading the next result fails
+     * because of the connection. hasMoreElements and nextElement read through hasMore and next, since the LDAP
+     * enumerations of the JDK drop the exception there.
+     */
+    private static final class LeasedEnumeration<T> implements NamingEnumeration<T> {
+
+        private final NamingEnumeration<T> enumeration;
+        private final PooledConnection connection;
+
+        private LeasedEnumeration(NamingEnumeration<T> enumeration, PooledConnection connection) {
+            this.enumeration = enumeration;
+            this.connection = connection;
+        }
+
+        @Override
+        public T next() throws NamingException {
+            try {
+                return enumeration.next();
+            } catch (NamingException e) {
+                throw markBroken(e);
+            }
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            try {
+                return enumeration.hasMore();
+            } catch (NamingException e) {
+                throw markBroken(e);
+            }
+        }
+
+        @Override
+        public void close() throws NamingException {
+            enumeration.close();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            try {
+                return hasMore();
+            } catch (NamingException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public T nextElement() {
+            try {
+                return next();
+            } catch (NamingException e) {
+                NoSuchElementException exception = new NoSuchElementException(e.toString());
+                exception.initCause(e);
+                throw exception;
+            }
+        }
+
+        private NamingException markBroken(NamingException e) {
+            if (isConnectionFailure(e)) {
+                connection.broken = true;
+            }
+            return e;
+        }
+    }
+}
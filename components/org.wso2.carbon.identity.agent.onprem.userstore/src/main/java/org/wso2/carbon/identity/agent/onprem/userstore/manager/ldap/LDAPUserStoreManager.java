@@ -17,23 +17,44 @@
 package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.CachedAttributes;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.InMemoryUserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.Interner;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.OffHeapUserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.UserStoreCache;
+import org.wso2.carbon.identity.agent.onprem.userstore.cache.VerifiedCredentialCache;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.InvalidCursorException;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.ListingPage;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.NameHandler;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
 import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.UserStoreUtils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import javax.naming.AuthenticationException;
 import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
@@ -42,9 +63,11 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 
 /**
@@ -57,7 +80,89 @@ public class LDAPUserStoreManager implements UserStoreManager {
     private static final String MULTI_ATTRIBUTE_SEPARATOR = "MultiAttributeSeparator";
     private static final String PROPERTY_REFERRAL_IGNORE = "ignore";
     private static final String MEMBER_UID = "memberUid";
+    // LDAP_MATCHING_RULE_IN_CHAIN of Active Directory, matches members of a group and of the groups nested in it.
+    private static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+    private static final String SERVICE_NAME_ATTRIBUTE = "sn";
+    private static final int DEFAULT_LISTING_CURSOR_MAX_OPEN = 10;
+    private static final long DEFAULT_LISTING_CURSOR_IDLE_TIMEOUT = 300000;
+    // cached in place of the DN of a user that does not exist
+    private static final String UNRESOLVED_USER_DN = "";
+    private static final int DEFAULT_USER_DN_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_USER_DN_CACHE_EXPIRY = 900000;
+    private static final long DEFAULT_USER_DN_CACHE_NEGATIVE_EXPIRY = 30000;
+    private static final int DEFAULT_USER_ROLES_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_USER_ROLES_CACHE_EXPIRY = 300000;
+    private static final int MAX_INTERNED_VALUES = 100000;
+    private static final int DEFAULT_USER_ATTRIBUTE_CACHE_MAX_SIZE = 100000;
+    private static final long DEFAULT_USER_ATTRIBUTE_CACHE_EXPIRY = 300000;
+    private static final long DEFAULT_USER_ATTRIBUTE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_CREDENTIAL_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_CREDENTIAL_CACHE_EXPIRY = 60000;
+    private static final int DEFAULT_USER_DN_PATTERN_MEMORY_MAX_SIZE = 10000;
+    private static final long DEFAULT_USER_DN_PATTERN_MEMORY_EXPIRY = 3600000;
+    private static final int DEFAULT_PAGED_SEARCH_PAGE_SIZE = 1000;
+    private static final int DEFAULT_SEARCH_BASE_PARALLELISM = 1;
+    private static final int DEFAULT_BATCH_AUTHENTICATION_THREADS = 8;
+    private static final int DEFAULT_BATCH_AUTHENTICATION_PARALLELISM = 4;
+    private static final int DEFAULT_BATCH_ATTRIBUTE_SEARCH_CHUNK_SIZE = 100;
+    private static final int DEFAULT_BATCH_MEMBERSHIP_SEARCH_CHUNK_SIZE = 50;
+    private static final String DEFAULT_REPLICA_CHANGE_ATTRIBUTE = "modifyTimestamp";
+    private static final long DEFAULT_REPLICA_REFRESH_INTERVAL = 60000;
+    private static final long DEFAULT_REPLICA_FULL_SYNC_INTERVAL = 3600000;
+    private static final long DEFAULT_REPLICA_MAX_STALENESS = 300000;
+    private static final String DEFAULT_CHANGE_LISTENER_CHANGE_ATTRIBUTE = "modifyTimestamp";
+    private static final long DEFAULT_CHANGE_LISTENER_POLL_INTERVAL = 30000;
+    private static final long DEFAULT_CHANGE_LISTENER_RECONNECT_DELAY = 10000;
+    private static final int DEFAULT_NESTED_GROUPS_MAX_DEPTH = 5;
+    private static final int DEFAULT_NESTED_GROUP_GRAPH_MAX_SIZE = 10000;
+    private static final long DEFAULT_NESTED_GROUP_GRAPH_EXPIRY = 300000;
+    private static final int DEFAULT_USER_NAME_FILTER_BITS_PER_USER = 10;
+    private static final long DEFAULT_USER_NAME_FILTER_REFRESH_INTERVAL = 3600000;
+    private static final long DEFAULT_USER_NAME_FILTER_MAX_STALENESS = 7200000;
+    // order of names sorted by the server, with the case ignoring ordering rule of directory name attributes.
+    private static final Comparator<String> SORTED_LISTING_ORDER = String.CASE_INSENSITIVE_ORDER;
     private LDAPConnectionContext connectionSource;
+    // page size of user and role listings, paged search is disabled if 0 or less.
+    private int pagedSearchPageSize;
+    private ListingCursors listingCursors;
+    // listings are sorted by the directory server instead of the agent.
+    private boolean serverSideSortEnabled;
+    // searches the search bases of a lookup at the same time, null if they are searched one after the other.
+    private SearchBaseExecutor searchBaseExecutor;
+    private BatchAuthenticator batchAuthenticator;
+    // number of users looked up with one search by the batch attribute lookup.
+    private int batchAttributeSearchChunkSize;
+    // number of users whose groups are searched with one search by the batch role lookup.
+    private int batchMembershipSearchChunkSize;
+    // in-memory copy of the directory that reads are served from, null if reads always go to the directory.
+    private DirectoryReplica replica;
+    // lower case names of the user attributes held by the replica.
+    private String[] replicaUserAttributes;
+    private String replicaChangeAttribute;
+    // drops cached data of changed users and groups, null if cached data is only dropped when it expires.
+    private DirectoryChangeListener changeListener;
+    private boolean caseInsensitiveUsername;
+    private UserStoreCache<String, String> userDNCache;
+    private long userDNCacheNegativeExpiry;
+    private UserStoreCache<String, List<String>> userRolesCache;
+    private Interner<String> roleNameInterner;
+    private Interner<List<String>> roleListInterner;
+    // cached attributes of users keyed by lower case attribute name, an attribute the user does not have is empty.
+    private UserStoreCache<String, CachedAttributes> userAttributeCache;
+    private long userAttributeCacheExpiry;
+    private VerifiedCredentialCache credentialCache;
+    // order of the user DN patterns learned from successful binds, null if they are tried in the configured order.
+    private DNPatternSelector dnPatternSelector;
+    // the DN of a user is searched before falling back to binding with each user DN pattern.
+    private boolean userDNSearchFirst;
+    // roles of a user include the groups its groups are members of.
+    private boolean nestedGroupsEnabled;
+    // nested groups are matched by the directory with LDAP_MATCHING_RULE_IN_CHAIN instead of walking the groups.
+    private boolean matchingRuleInChain;
+    // parent groups of groups, null if nested groups are not walked by the agent.
+    private GroupGraph groupGraph;
+    // rejects names that are certainly not users, null if every user lookup goes to the directory.
+    private UserNameFilter userNameFilter;
 
     public LDAPUserStoreManager(Map<String, String> userStoreProperties)
             throws UserStoreException {
@@ -65,6 +170,461 @@ public class LDAPUserStoreManager implements UserStoreManager {
         // check if required configurations are in the user-mgt.xml
         checkRequiredUserStoreConfigurations();
         this.connectionSource = new LDAPConnectionContext(this.userStoreProperties);
+        this.pagedSearchPageSize = UserStoreUtils.getIntProperty(userStoreProperties,
+                LDAPConstants.PAGED_SEARCH_PAGE_SIZE, DEFAULT_PAGED_SEARCH_PAGE_SIZE);
+        this.serverSideSortEnabled = UserStoreUtils.getBooleanProperty(userStoreProperties,
+                LDAPConstants.SERVER_SIDE_SORT_ENABLED, false);
+        this.listingCursors = new ListingCursors(
+                UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.LISTING_CURSOR_MAX_OPEN,
+                        DEFAULT_LISTING_CURSOR_MAX_OPEN),
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.LISTING_CURSOR_IDLE_TIMEOUT_MILLISECONDS, DEFAULT_LISTING_CURSOR_IDLE_TIMEOUT));
+        int searchBaseParallelism = UserStoreUtils.getIntProperty(userStoreProperties,
+                LDAPConstants.SEARCH_BASE_PARALLELISM, DEFAULT_SEARCH_BASE_PARALLELISM);
+        // the number of search bases searched at the same time, the caller searches one of them.
+        if (searchBaseParallelism > 1) {
+            this.searchBaseExecutor = new SearchBaseExecutor(connectionSource, searchBaseParallelism - 1);
+        }
+        this.batchAuthenticator = new BatchAuthenticator(
+                Math.max(UserStoreUtils.getIntProperty(userStoreProperties,
+                        LDAPConstants.BATCH_AUTHENTICATION_THREADS, DEFAULT_BATCH_AUTHENTICATION_THREADS), 1),
+                Math.max(UserStoreUtils.getIntProperty(userStoreProperties,
+                        LDAPConstants.BATCH_AUTHENTICATION_PARALLELISM, DEFAULT_BATCH_AUTHENTICATION_PARALLELISM), 1));
+        this.batchAttributeSearchChunkSize = Math.max(UserStoreUtils.getIntProperty(userStoreProperties,
+                LDAPConstants.BATCH_ATTRIBUTE_SEARCH_CHUNK_SIZE, DEFAULT_BATCH_ATTRIBUTE_SEARCH_CHUNK_SIZE), 1);
+        this.batchMembershipSearchChunkSize = Math.max(UserStoreUtils.getIntProperty(userStoreProperties,
+                LDAPConstants.BATCH_MEMBERSHIP_SEARCH_CHUNK_SIZE, DEFAULT_BATCH_MEMBERSHIP_SEARCH_CHUNK_SIZE), 1);
+        initCaches();
+        initNestedGroups();
+        initReplica();
+        initUserNameFilter();
+        try {
+            initChangeListener();
+        } catch (UserStoreException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void initChangeListener() throws UserStoreException {
+        String mode = userStoreProperties.get(LDAPConstants.CHANGE_LISTENER_MODE);
+        if (mode == null || mode.trim().isEmpty()) {
+            return;
+        }
+        String changeAttribute = userStoreProperties.get(LDAPConstants.CHANGE_LISTENER_CHANGE_ATTRIBUTE);
+        if (changeAttribute == null || changeAttribute.trim().isEmpty()) {
+            changeAttribute = DEFAULT_CHANGE_LISTENER_CHANGE_ATTRIBUTE;
+        }
+        changeListener = new DirectoryChangeListener(connectionSource, mode.trim(), changeAttribute,
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.CHANGE_LISTENER_POLL_INTERVAL_MILLISECONDS,
+                        DEFAULT_CHANGE_LISTENER_POLL_INTERVAL),
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.CHANGE_LISTENER_RECONNECT_DELAY_MILLISECONDS,
+                        DEFAULT_CHANGE_LISTENER_RECONNECT_DELAY),
+                this::invalidateCaches);
+
+        String userNameAttribute = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        changeListener.watch(getEscapedSearchBases(LDAPConstants.USER_SEARCH_BASE),
+                userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER), new String[]{userNameAttribute},
+                entry -> {
+                    Attribute name = entry.getAttributes() == null ? null
+                            : entry.getAttributes().get(userNameAttribute);
+                    if (name != null && name.get() instanceof String) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("User " + name.get() + " changed in the directory");
+                        }
+                        invalidateUserCache((String) name.get());
+                    }
+                });
+        // a group change may change the roles of any of its past or present members.
+        changeListener.watch(getEscapedSearchBases(LDAPConstants.GROUP_SEARCH_BASE),
+                userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
+                new String[]{userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE)},
+                entry -> invalidateRoleCaches());
+        changeListener.start();
+    }
+
+    private String[] getEscapedSearchBases(String searchBaseProperty) {
+        String[] searchBases = userStoreProperties.get(searchBaseProperty)
+                .split(CommonConstants.XML_PATTERN_SEPERATOR);
+        for (int i = 0; i < searchBases.length; i++) {
+            searchBases[i] = escapeDNForSearch(searchBases[i]);
+        }
+        return searchBases;
+    }
+
+    private void invalidateRoleCaches() {
+        if (userRolesCache != null) {
+            userRolesCache.clear();
+        }
+        if (groupGraph != null) {
+            groupGraph.clear();
+        }
+    }
+
+    private void initNestedGroups() {
+        if (!UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.NESTED_GROUPS_ENABLED, false)) {
+            return;
+        }
+        if (isMemberUid()) {
+            // members of a posixGroup are user names, so a group cannot be a member of another.
+            log.warn("Nested groups are not supported with the " + MEMBER_UID + " membership attribute. Only "
+                    + "the groups users are direct members of are returned.");
+            return;
+        }
+        nestedGroupsEnabled = true;
+        matchingRuleInChain = UserStoreUtils.getBooleanProperty(userStoreProperties,
+                LDAPConstants.NESTED_GROUPS_MATCHING_RULE_IN_CHAIN, false);
+        if (!matchingRuleInChain) {
+            groupGraph = new GroupGraph(
+                    UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.NESTED_GROUPS_MAX_DEPTH,
+                            DEFAULT_NESTED_GROUPS_MAX_DEPTH),
+                    UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.NESTED_GROUP_GRAPH_MAX_SIZE,
+                            DEFAULT_NESTED_GROUP_GRAPH_MAX_SIZE),
+                    UserStoreUtils.getLongProperty(userStoreProperties,
+                            LDAPConstants.NESTED_GROUP_GRAPH_EXPIRY_MILLISECONDS, DEFAULT_NESTED_GROUP_GRAPH_EXPIRY));
+        }
+    }
+
+    private void initUserNameFilter() {
+        if (!UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.USER_NAME_FILTER_ENABLED, false)) {
+            return;
+        }
+        // without persistent search, users created since the last rebuild would be taken as unknown.
+        String changeListenerMode = userStoreProperties.get(LDAPConstants.CHANGE_LISTENER_MODE);
+        if (changeListenerMode == null
+                || !DirectoryChangeListener.MODE_PERSISTENT_SEARCH.equalsIgnoreCase(changeListenerMode.trim())) {
+            log.warn("User name filter is not enabled, it needs the " + LDAPConstants.CHANGE_LISTENER_MODE + " "
+                    + DirectoryChangeListener.MODE_PERSISTENT_SEARCH + " to learn new users as they are created");
+            return;
+        }
+        userNameFilter = new UserNameFilter(this::loadUserNames,
+                Math.max(UserStoreUtils.getIntProperty(userStoreProperties,
+                        LDAPConstants.USER_NAME_FILTER_BITS_PER_USER, DEFAULT_USER_NAME_FILTER_BITS_PER_USER), 1),
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.USER_NAME_FILTER_REFRESH_INTERVAL_MILLISECONDS,
+                        DEFAULT_USER_NAME_FILTER_REFRESH_INTERVAL),
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.USER_NAME_FILTER_MAX_STALENESS_MILLISECONDS,
+                        DEFAULT_USER_NAME_FILTER_MAX_STALENESS),
+                () -> changeListener != null && changeListener.isWatching());
+        userNameFilter.start();
+    }
+
+    /*
+     * Passes every value of the user name attribute of the users to the handler. Unlike the user listing, service
+     * principals are included, since they can authenticate.
+     */
+    private void loadUserNames(UserNameFilter.UserNameHandler handler) throws UserStoreException {
+        String userNameAttribute = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{userNameAttribute});
+        forEachReplicaEntry(userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE),
+                userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER), searchCtls, sr -> {
+                    Attribute names = sr.getAttributes() == null ? null : sr.getAttributes().get(userNameAttribute);
+                    if (names == null) {
+                        return;
+                    }
+                    for (NamingEnumeration<?> values = names.getAll(); values.hasMore(); ) {
+                        Object name = values.next();
+                        if (name instanceof String) {
+                            handler.handle((String) name);
+                        }
+                    }
+                });
+    }
+
+    /*
+     * Returns true if the user name filter tells that there is no user of the name.
+     */
+    private boolean isUnknownUser(String userName) {
+        if (userNameFilter != null && userNameFilter.isUnknown(userName)) {
+            if (log.isDebugEnabled()) {
+                log.debug("User " + userName + " is not in the user name filter, skipping the directory lookup");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void initReplica() {
+        if (!UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.REPLICA_ENABLED, false)) {
+            return;
+        }
+        String attributes = userStoreProperties.get(LDAPConstants.REPLICA_USER_ATTRIBUTES);
+        List<String> attributeNames = new ArrayList<>();
+        if (attributes != null) {
+            for (String attribute : attributes.split(CommonConstants.ATTRIBUTE_LIST_SEPERATOR)) {
+                if (!attribute.trim().isEmpty()) {
+                    attributeNames.add(attribute.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        replicaUserAttributes = attributeNames.toArray(new String[attributeNames.size()]);
+        replicaChangeAttribute = userStoreProperties.get(LDAPConstants.REPLICA_CHANGE_ATTRIBUTE);
+        if (replicaChangeAttribute == null || replicaChangeAttribute.trim().isEmpty()) {
+            replicaChangeAttribute = DEFAULT_REPLICA_CHANGE_ATTRIBUTE;
+        }
+        replica = new DirectoryReplica(new DirectoryReplica.Loader() {
+            @Override
+            public void loadUsers(String changedSince,
+                                  DirectoryReplica.EntryHandler<DirectoryReplica.UserEntry> handler)
+                    throws UserStoreException {
+                loadReplicaUsers(changedSince, handler);
+            }
+
+            @Override
+            public void loadGroups(String changedSince,
+                                   DirectoryReplica.EntryHandler<DirectoryReplica.GroupEntry> handler)
+                    throws UserStoreException {
+                loadReplicaGroups(changedSince, handler);
+            }
+        }, UserStoreUtils.getLongProperty(userStoreProperties, LDAPConstants.REPLICA_REFRESH_INTERVAL_MILLISECONDS,
+                DEFAULT_REPLICA_REFRESH_INTERVAL),
+                UserStoreUtils.getLongProperty(userStoreProperties,
+                        LDAPConstants.REPLICA_FULL_SYNC_INTERVAL_MILLISECONDS, DEFAULT_REPLICA_FULL_SYNC_INTERVAL),
+                UserStoreUtils.getLongProperty(userStoreProperties, LDAPConstants.REPLICA_MAX_STALENESS_MILLISECONDS,
+                        DEFAULT_REPLICA_MAX_STALENESS));
+        replica.start();
+    }
+
+    /*
+     * Returns the replica snapshot reads can be served from, or null if they must go to the directory.
+     */
+    private DirectoryReplica.Snapshot getReplicaSnapshot() {
+        return replica == null ? null : replica.getSnapshot();
+    }
+
+    /*
+     * Returns true if the replica holds all the given attributes of users.
+     */
+    private boolean isReplicated(String[] propertyNames) {
+        for (String name : propertyNames) {
+            if (name != null && !ArrayUtils.contains(replicaUserAttributes, name.toLowerCase(Locale.ENGLISH))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadReplicaUsers(String changedSince,
+                                  DirectoryReplica.EntryHandler<DirectoryReplica.UserEntry> handler)
+            throws UserStoreException {
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        List<String> attributes = new ArrayList<>(Arrays.asList(getUserListAttributes()));
+        attributes.addAll(Arrays.asList(replicaUserAttributes));
+        attributes.add(replicaChangeAttribute);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(attributes.toArray(new String[attributes.size()]));
+
+        forEachReplicaEntry(userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE),
+                getReplicaFilter(userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER), changedSince),
+                searchCtls, sr -> {
+                    String name = getListedUserName(sr);
+                    if (name == null) {
+                        return;
+                    }
+                    String filterValue = name;
+                    if (StringUtils.isNotEmpty(displayNameAttribute)) {
+                        Attribute displayName = sr.getAttributes().get(displayNameAttribute);
+                        if (displayName != null && displayName.get() instanceof String) {
+                            filterValue = (String) displayName.get();
+                        }
+                    }
+                    Map<String, String> values = new HashMap<>();
+                    readAttributeValues(sr.getAttributes(), replicaUserAttributes, values);
+                    handler.handle(getUserCacheKey(name), new DirectoryReplica.UserEntry(name, filterValue,
+                            getReplicaChange(sr), getMembershipKey(new LdapName(sr.getNameInNamespace())), values));
+                });
+    }
+
+    private void loadReplicaGroups(String changedSince,
+                                   DirectoryReplica.EntryHandler<DirectoryReplica.GroupEntry> handler)
+            throws UserStoreException {
+        String membershipProperty = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
+                membershipProperty, replicaChangeAttribute});
+
+        forEachReplicaEntry(userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE),
+                getReplicaFilter(userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER), changedSince),
+                searchCtls, sr -> {
+                    String name = getListedRoleName(sr);
+                    if (name == null) {
+                        return;
+                    }
+                    List<Object> memberKeys = new ArrayList<>();
+                    Attribute members = sr.getAttributes().get(membershipProperty);
+                    if (members != null) {
+                        for (NamingEnumeration<?> values = members.getAll(); values.hasMoreElements(); ) {
+                            Object value = values.nextElement();
+                            Object memberKey = value instanceof String ? getMembershipKey((String) value) : null;
+                            if (memberKey != null) {
+                                memberKeys.add(memberKey);
+                            }
+                        }
+                    }
+                    boolean complete = members != null || !hasRangedAttribute(sr.getAttributes(), membershipProperty);
+                    handler.handle(sr.getNameInNamespace().toLowerCase(Locale.ENGLISH),
+                            new DirectoryReplica.GroupEntry(name, getReplicaChange(sr), memberKeys, complete));
+                });
+    }
+
+    /*
+     * Returns true if only a range of the values of the attribute was returned, as Active Directory does for
+     * large member lists.
+     */
+    private static boolean hasRangedAttribute(Attributes attributes, String attributeName) throws NamingException {
+        String rangedPrefix = (attributeName + ";range=").toLowerCase(Locale.ENGLISH);
+        NamingEnumeration<String> ids = attributes.getIDs();
+        try {
+            while (ids.hasMore()) {
+                if (ids.next().toLowerCase(Locale.ENGLISH).startsWith(rangedPrefix)) {
+                    return true;
+                }
+            }
+        } finally {
+            JNDIUtil.closeNamingEnumeration(ids);
+        }
+        return false;
+    }
+
+    private String getReplicaChange(SearchResult sr) throws NamingException {
+        Attribute change = sr.getAttributes().get(replicaChangeAttribute);
+        return change == null ? null : String.valueOf(change.get());
+    }
+
+    /*
+     * Returns the filter of the entries changed since the given change attribute value, or of all entries if it
+     * is null. The filter includes entries changed at that value, since more entries may have changed at the
+     * same time, and loading an entry again does no harm.
+     */
+    private String getReplicaFilter(String searchFilter, String changedSince) {
+        if (changedSince == null) {
+            return searchFilter;
+        }
+        return "(&" + searchFilter + "(" + replicaChangeAttribute + ">=" + escapeSpecialCharactersForFilter(
+                changedSince) + "))";
+    }
+
+    /*
+     * Reads all entries of the filter under the search bases page by page, on a connection of its own so that a
+     * long load does not hold a pooled connection.
+     */
+    private void forEachReplicaEntry(String searchBases, String searchFilter, SearchControls searchCtls,
+                                     ReplicaEntryReader reader) throws UserStoreException {
+        int pageSize = pagedSearchPageSize > 0 ? pagedSearchPageSize : DEFAULT_PAGED_SEARCH_PAGE_SIZE;
+        LdapContext context = connectionSource.getDedicatedContext();
+        try {
+            for (String searchBase : searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR)) {
+                byte[] cookie = null;
+                do {
+                    // non critical, so that servers without paged results support return an unpaged result.
+                    context.setRequestControls(new Control[]{
+                            new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+                    NamingEnumeration<SearchResult> answer = null;
+                    try {
+                        answer = context.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+                        while (answer.hasMoreElements()) {
+                            reader.read(answer.next());
+                        }
+                    } catch (PartialResultException e) {
+                        // can be due to referrals in AD. so just ignore error
+                        if (!isIgnorePartialResultException()) {
+                            throw e;
+                        }
+                        log.debug(e.getMessage(), e);
+                    } finally {
+                        JNDIUtil.closeNamingEnumeration(answer);
+                    }
+                    cookie = getPagedResultsCookie(context.getResponseControls());
+                } while (cookie != null && cookie.length > 0);
+            }
+        } catch (NamingException | IOException e) {
+            throw new UserStoreException("Error occurred while loading the directory replica for filter : "
+                    + searchFilter, e);
+        } finally {
+            JNDIUtil.closeContext(context);
+        }
+    }
+
+    /*
+     * Reads an entry into the replica.
+     */
+    private interface ReplicaEntryReader {
+        void read(SearchResult searchResult) throws NamingException;
+    }
+
+    private void initCaches() {
+        caseInsensitiveUsername = UserStoreUtils.getBooleanProperty(userStoreProperties,
+                CommonConstants.PROPERTY_CASE_INSENSITIVE_USERNAME, true);
+
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.USER_DN_CACHE_ENABLED, false)) {
+            userDNCache = new InMemoryUserStoreCache<>(
+                    UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.USER_DN_CACHE_MAX_SIZE,
+                            DEFAULT_USER_DN_CACHE_MAX_SIZE),
+                    UserStoreUtils.getLongProperty(userStoreProperties,
+                            LDAPConstants.USER_DN_CACHE_EXPIRY_MILLISECONDS, DEFAULT_USER_DN_CACHE_EXPIRY));
+            userDNCacheNegativeExpiry = UserStoreUtils.getLongProperty(userStoreProperties,
+                    LDAPConstants.USER_DN_CACHE_NEGATIVE_EXPIRY_MILLISECONDS, DEFAULT_USER_DN_CACHE_NEGATIVE_EXPIRY);
+        }
+
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.USER_ROLES_CACHE_ENABLED, false)) {
+            userRolesCache = new InMemoryUserStoreCache<>(
+                    UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.USER_ROLES_CACHE_MAX_SIZE,
+                            DEFAULT_USER_ROLES_CACHE_MAX_SIZE),
+                    UserStoreUtils.getLongProperty(userStoreProperties,
+                            LDAPConstants.USER_ROLES_CACHE_EXPIRY_MILLISECONDS, DEFAULT_USER_ROLES_CACHE_EXPIRY));
+            roleNameInterner = new Interner<>(MAX_INTERNED_VALUES);
+            roleListInterner = new Interner<>(MAX_INTERNED_VALUES);
+        }
+
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.USER_ATTRIBUTE_CACHE_ENABLED,
+                false)) {
+            int maxSize = UserStoreUtils.getIntProperty(userStoreProperties,
+                    LDAPConstants.USER_ATTRIBUTE_CACHE_MAX_SIZE, DEFAULT_USER_ATTRIBUTE_CACHE_MAX_SIZE);
+            long expiry = UserStoreUtils.getLongProperty(userStoreProperties,
+                    LDAPConstants.USER_ATTRIBUTE_CACHE_EXPIRY_MILLISECONDS, DEFAULT_USER_ATTRIBUTE_CACHE_EXPIRY);
+            // large values, eg: photos, are kept out of the heap and bounded by their total size.
+            if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.USER_ATTRIBUTE_CACHE_OFF_HEAP,
+                    false)) {
+                userAttributeCache = new OffHeapUserStoreCache<>(maxSize,
+                        UserStoreUtils.getLongProperty(userStoreProperties,
+                                LDAPConstants.USER_ATTRIBUTE_CACHE_MAX_BYTES, DEFAULT_USER_ATTRIBUTE_CACHE_MAX_BYTES),
+                        expiry, OffHeapUserStoreCache.CACHED_ATTRIBUTES_CODEC);
+            } else {
+                userAttributeCache = new InMemoryUserStoreCache<>(maxSize, expiry);
+            }
+            userAttributeCacheExpiry = expiry;
+        }
+
+        if (UserStoreUtils.getBooleanProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_ENABLED, false)) {
+            credentialCache = new VerifiedCredentialCache(
+                    UserStoreUtils.getIntProperty(userStoreProperties, LDAPConstants.CREDENTIAL_CACHE_MAX_SIZE,
+                            DEFAULT_CREDENTIAL_CACHE_MAX_SIZE),
+                    UserStoreUtils.getLongProperty(userStoreProperties,
+                            LDAPConstants.CREDENTIAL_CACHE_EXPIRY_MILLISECONDS, DEFAULT_CREDENTIAL_CACHE_EXPIRY));
+        }
+
+        String userDNPatterns = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+        if (userDNPatterns != null && !userDNPatterns.isEmpty()) {
+            String[] patterns = userDNPatterns.split(CommonConstants.XML_PATTERN_SEPERATOR);
+            if (patterns.length > 1 && UserStoreUtils.getBooleanProperty(userStoreProperties,
+                    LDAPConstants.USER_DN_PATTERN_ORDERING_ENABLED, false)) {
+                dnPatternSelector = new DNPatternSelector(patterns.length,
+                        UserStoreUtils.getIntProperty(userStoreProperties,
+                                LDAPConstants.USER_DN_PATTERN_MEMORY_MAX_SIZE, DEFAULT_USER_DN_PATTERN_MEMORY_MAX_SIZE),
+                        UserStoreUtils.getLongProperty(userStoreProperties,
+                                LDAPConstants.USER_DN_PATTERN_MEMORY_EXPIRY_MILLISECONDS,
+                                DEFAULT_USER_DN_PATTERN_MEMORY_EXPIRY));
+            }
+            userDNSearchFirst = UserStoreUtils.getBooleanProperty(userStoreProperties,
+                    LDAPConstants.USER_DN_PATTERN_SEARCH_FIRST, false);
+        }
     }
 
     private void checkRequiredUserStoreConfigurations() throws UserStoreException {
@@ -159,10 +719,26 @@ public class LDAPUserStoreManager implements UserStoreManager {
             return false;
         }
 
+        if (isUnknownUser(userName)) {
+            return false;
+        }
+
         if (debug) {
             log.debug("Authenticating user " + userName);
         }
 
+        String cacheKey = getUserCacheKey(userName);
+        if (credentialCache != null) {
+            if (credentialCache.verify(cacheKey, (String) credential)) {
+                if (debug) {
+                    log.debug("Authenticated user " + userName + " with a recently verified credential");
+                }
+                return true;
+            }
+            // any attempt that does not match drops the verified credential, until the next successful bind.
+            credentialCache.remove(cacheKey);
+        }
+
         boolean bValue = false;
         String name;
         // read DN patterns from user-mgt.xml
@@ -174,11 +750,39 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 log.debug("Using UserDNPatterns " + patterns);
             }
 
+            boolean resolved = false;
+            if (userDNSearchFirst) {
+                // one search and one bind, instead of a bind for each pattern the user does not match.
+                String cachedName = getCachedUserDN(userName);
+                if (cachedName != null) {
+                    name = UNRESOLVED_USER_DN.equals(cachedName) ? null : cachedName;
+                } else {
+                    name = resolveNameInSpaceForUserName(userName);
+                }
+                if (name != null) {
+                    if (debug) {
+                        log.debug("Authenticating with " + name);
+                    }
+                    try {
+                        bValue = cachedName != null ? bindAsUserWithCachedDN(userName, name, (String) credential)
+                                : this.bindAsUser(name, (String) credential);
+                    } catch (NamingException e) {
+                        String errorMessage = "Cannot bind user : " + userName;
+                        if (log.isDebugEnabled()) {
+                            log.debug(errorMessage, e);
+                        }
+                        throw new UserStoreException(errorMessage, e);
+                    }
+                    resolved = true;
+                }
+            }
+
             // if the property is present, split it using # to see if there are
             // multiple patterns specified.
             String[] userDNPatternList = patterns.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            if (userDNPatternList.length > 0) {
-                for (String userDNPattern : userDNPatternList) {
+            if (!resolved && userDNPatternList.length > 0) {
+                for (int index : getUserDNPatternOrder(cacheKey, userDNPatternList.length)) {
+                    String userDNPattern = userDNPatternList[index];
                     name = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
 
                     if (debug) {
@@ -187,6 +791,9 @@ public class LDAPUserStoreManager implements UserStoreManager {
                     try {
                         bValue = this.bindAsUser(name, (String) credential);
                         if (bValue) {
+                            if (dnPatternSelector != null) {
+                                dnPatternSelector.recordSuccess(cacheKey, index);
+                            }
                             break;
                         }
                     } catch (NamingException e) {
@@ -200,13 +807,19 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 }
             }
         } else {
-            name = getNameInSpaceForUserName(userName);
+            String cachedName = getCachedUserDN(userName);
+            if (cachedName != null) {
+                name = UNRESOLVED_USER_DN.equals(cachedName) ? null : cachedName;
+            } else {
+                name = resolveNameInSpaceForUserName(userName);
+            }
             try {
                 if (name != null) {
                     if (debug) {
                         log.debug("Authenticating with " + name);
                     }
-                    bValue = this.bindAsUser(name, (String) credential);
+                    bValue = cachedName != null ? bindAsUserWithCachedDN(userName, name, (String) credential)
+                            : this.bindAsUser(name, (String) credential);
                 }
             } catch (NamingException e) {
                 String errorMessage = "Cannot bind user : " + userName;
@@ -217,9 +830,17 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
         }
 
+        if (bValue && credentialCache != null) {
+            credentialCache.put(cacheKey, (String) credential);
+        }
         return bValue;
     }
 
+    @Override
+    public Boolean[] doAuthenticate(String[] userNames, Object[] credentials) throws UserStoreException {
+        return batchAuthenticator.authenticate(userNames, credentials, this::doAuthenticate);
+    }
+
 
     /**
      *
@@ -227,144 +848,449 @@ public class LDAPUserStoreManager implements UserStoreManager {
     public Map<String, String> getUserPropertyValues(String userName, String[] propertyNames)
             throws UserStoreException {
 
-        String userAttributeSeparator = ",";
-        String userDN = null;
+        Map<String, String> values = new HashMap<>();
+        DirectoryReplica.Snapshot replicaSnapshot = getReplicaSnapshot();
+        if (replicaSnapshot != null && propertyNames != null && isReplicated(propertyNames)) {
+            DirectoryReplica.UserEntry user = replicaSnapshot.getUser(getUserCacheKey(userName));
+            if (user != null) {
+                for (String name : propertyNames) {
+                    String value = name == null ? null : user.getAttribute(name.toLowerCase(Locale.ENGLISH));
+                    if (value != null) {
+                        values.put(name, value);
+                    }
+                }
+            }
+            return values;
+        }
+        if (isUnknownUser(userName)) {
+            return values;
+        }
+        if (userAttributeCache == null || propertyNames == null || propertyNames.length == 0) {
+            getUserPropertyValues(userName, propertyNames, values);
+            return values;
+        }
 
-        // read list of patterns from user-mgt.xml
-        String patterns = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+        // serve the cached attributes and fetch only the missing ones, in a single narrowed search.
+        CachedAttributes cachedValues = userAttributeCache.get(getUserCacheKey(userName));
+        long now = System.currentTimeMillis();
+        List<String> missingAttributes = new ArrayList<>();
+        for (String name : propertyNames) {
+            if (name == null) {
+                continue;
+            }
+            String cachedValue = cachedValues == null ? null
+                    : cachedValues.get(name.toLowerCase(Locale.ENGLISH), now);
+            if (cachedValue == null) {
+                missingAttributes.add(name);
+            } else if (!cachedValue.isEmpty()) {
+                values.put(name, cachedValue);
+            }
+        }
+        if (missingAttributes.isEmpty()) {
+            return values;
+        }
 
-        if (patterns != null && !patterns.isEmpty()) {
+        String[] attributesToFetch = missingAttributes.toArray(new String[missingAttributes.size()]);
+        Map<String, String> fetchedValues = new HashMap<>();
+        if (getUserPropertyValues(userName, attributesToFetch, fetchedValues)) {
+            cacheAttributeValues(userName, attributesToFetch, fetchedValues);
+        }
+        values.putAll(fetchedValues);
+        return values;
+    }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Using User DN Patterns " + patterns);
+    @Override
+    public Map<String, Map<String, String>> getUserPropertyValues(String[] userNames, String[] propertyNames)
+            throws UserStoreException {
+        Map<String, Map<String, String>> userValues = new HashMap<>();
+        if (userNames == null || propertyNames == null || propertyNames.length == 0) {
+            return userValues;
+        }
+        DirectoryReplica.Snapshot replicaSnapshot = getReplicaSnapshot();
+        if (replicaSnapshot != null && isReplicated(propertyNames)) {
+            for (String userName : userNames) {
+                if (userName != null && replicaSnapshot.getUser(getUserCacheKey(userName)) != null) {
+                    userValues.put(userName, getUserPropertyValues(userName, propertyNames));
+                }
             }
+            return userValues;
+        }
 
-            if (patterns.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
-                userDN = getNameInSpaceForUserName(userName);
-            } else {
-                userDN = MessageFormat.format(patterns, escapeSpecialCharactersForDN(userName));
+        // requested user names keyed by user cache key, so that entries can be matched to them.
+        Map<String, String> pendingUsers = new LinkedHashMap<>();
+        for (String userName : userNames) {
+            if (userName == null || userName.trim().isEmpty()) {
+                continue;
+            }
+            if (userAttributeCache != null) {
+                Map<String, String> cachedValues = getCachedAttributeValues(userName, propertyNames);
+                if (cachedValues != null) {
+                    userValues.put(userName, cachedValues);
+                    continue;
+                }
             }
+            pendingUsers.putIfAbsent(getUserCacheKey(userName), userName);
+        }
+        if (pendingUsers.isEmpty()) {
+            return userValues;
         }
 
+        String[] returnedAttributes = Arrays.copyOf(propertyNames, propertyNames.length + 1);
+        returnedAttributes[propertyNames.length] = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(returnedAttributes);
+        String[] searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE)
+                .split(CommonConstants.XML_PATTERN_SEPERATOR);
 
-        Map<String, String> values = new HashMap<>();
+        List<String> pendingUserNames = new ArrayList<>(pendingUsers.values());
         DirContext dirContext = this.connectionSource.getContext();
-        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
-        String searchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
-
-        NamingEnumeration<?> answer = null;
-        NamingEnumeration<?> attrs = null;
         try {
-            if (userDN != null) {
-                SearchControls searchCtls = new SearchControls();
-                searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-                if (propertyNames != null && propertyNames.length > 0) {
-                    searchCtls.setReturningAttributes(propertyNames);
-                }
-                try {
-                    answer = dirContext.search(escapeDNForSearch(userDN), searchFilter, searchCtls);
-                } catch (PartialResultException e) {
-                    // can be due to referrals in AD. so just ignore error
-                    String errorMessage = "Error occurred while searching directory context for user : "
-                            + userDN + " searchFilter : " + searchFilter;
-                    if (isIgnorePartialResultException()) {
-                        if (log.isDebugEnabled()) {
-                            log.debug(errorMessage, e);
-                        }
-                    } else {
-                        throw new UserStoreException(errorMessage, e);
-                    }
-                } catch (NamingException e) {
-                    String errorMessage = "Error occurred while searching directory context for user : "
-                            + userDN + " searchFilter : " + searchFilter;
-                    if (log.isDebugEnabled()) {
-                        log.debug(errorMessage, e);
-                    }
-                    throw new UserStoreException(errorMessage, e);
-                }
-            } else {
-                answer = this.searchForUser(searchFilter, propertyNames, dirContext);
-            }
-            assert answer != null;
-            while (answer.hasMoreElements()) {
-                SearchResult sr = (SearchResult) answer.next();
-                Attributes attributes = sr.getAttributes();
-                if (attributes != null) {
-                    assert propertyNames != null;
-                    for (String name : propertyNames) {
-                        if (name != null) {
-                            Attribute attribute = attributes.get(name);
-                            if (attribute != null) {
-                                StringBuilder attrBuffer = new StringBuilder();
-                                for (attrs = attribute.getAll(); attrs.hasMore(); ) {
-                                    Object attObject = attrs.next();
-                                    String attr = null;
-                                    if (attObject instanceof String) {
-                                        attr = (String) attObject;
-                                    } else if (attObject instanceof byte[]) {
-                                        //if the attribute type is binary base64 encoded string will be returned
-                                        attr = new String(Base64.encodeBase64((byte[]) attObject));
-                                    }
-
-                                    if (attr != null && attr.trim().length() > 0) {
-                                        String attrSeparator = userStoreProperties.get(MULTI_ATTRIBUTE_SEPARATOR);
-                                        if (attrSeparator != null && !attrSeparator.trim().isEmpty()) {
-                                            userAttributeSeparator = attrSeparator;
-                                        }
-                                        attrBuffer.append(attr).append(userAttributeSeparator);
-                                    }
-                                    String value = attrBuffer.toString();
-
-                                /*
-                                 * Length needs to be more than userAttributeSeparator.length() for a valid
-                                 * attribute, since we
-                                 * attach userAttributeSeparator
-                                 */
-                                    if (value.trim().length() > userAttributeSeparator.length()) {
-                                        value = value.substring(0, value.length() - userAttributeSeparator.length());
-                                        values.put(name, value);
-                                    }
-
-                                }
-                            }
-                        }
-                    }
-                }
+            for (int from = 0; from < pendingUserNames.size(); from += batchAttributeSearchChunkSize) {
+                List<String> chunk = pendingUserNames.subList(from,
+                        Math.min(from + batchAttributeSearchChunkSize, pendingUserNames.size()));
+                userValues.putAll(searchUsers(searchBases, getUserNamesSearchFilter(chunk), searchCtls, dirContext,
+                        pendingUsers, sr -> {
+                            Map<String, String> values = new HashMap<>();
+                            readAttributeValues(sr.getAttributes(), propertyNames, values);
+                            return values;
+                        }));
             }
-
         } catch (NamingException e) {
-            String errorMessage = "Error occurred while getting user property values for user : " + userName;
+            String errorMessage = "Error occurred while getting user property values of " + pendingUsers.size()
+                    + " users";
             if (log.isDebugEnabled()) {
                 log.debug(errorMessage, e);
             }
             throw new UserStoreException(errorMessage, e);
         } finally {
-            // close the naming enumeration and free up resource
-            JNDIUtil.closeNamingEnumeration(attrs);
-            JNDIUtil.closeNamingEnumeration(answer);
-            // close directory context
             JNDIUtil.closeContext(dirContext);
         }
-        return values;
-    }
 
+        if (userAttributeCache != null) {
+            for (String userName : pendingUsers.values()) {
+                Map<String, String> values = userValues.get(userName);
+                if (values != null) {
+                    cacheAttributeValues(userName, propertyNames, values);
+                }
+            }
+        }
+        return userValues;
+    }
 
-    /**
-     *
+    /*
+     * Returns the cached values of the attributes of the user, or null unless all of them are cached.
      */
-    public String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException {
-        boolean debug = log.isDebugEnabled();
-        String[] userNames = new String[0];
-
-        if (maxItemLimit == 0) {
-            return userNames;
+    private Map<String, String> getCachedAttributeValues(String userName, String[] propertyNames) {
+        CachedAttributes cachedValues = userAttributeCache.get(getUserCacheKey(userName));
+        if (cachedValues == null) {
+            return null;
         }
-
-        int givenMax;
-        int searchTime;
-
-        try {
-            givenMax =
+        long now = System.currentTimeMillis();
+        Map<String, String> values = new HashMap<>();
+        for (String name : propertyNames) {
+            if (name == null) {
+                continue;
+            }
+            String cachedValue = cachedValues.get(name.toLowerCase(Locale.ENGLISH), now);
+            if (cachedValue == null) {
+                return null;
+            }
+            if (!cachedValue.isEmpty()) {
+                values.put(name, cachedValue);
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Adds the values to the cached attributes of the user. All attributes of a user are cached as one entry, in
+     * which each attribute keeps the expiry time it was cached with; the entry lives as long as its latest
+     * attribute. The values are merged into the entry atomically, so that concurrent lookups of other attributes
+     * of the user are not lost.
+     */
+    private void cacheAttributeValues(String userName, String[] propertyNames, Map<String, String> values) {
+        Map<String, String> userValues = new HashMap<>();
+        for (String name : propertyNames) {
+            if (name != null) {
+                String value = values.get(name);
+                // attributes the user does not have are cached as empty values.
+                userValues.put(name.toLowerCase(Locale.ENGLISH), value == null ? "" : value);
+            }
+        }
+        long now = System.currentTimeMillis();
+        userAttributeCache.compute(getUserCacheKey(userName),
+                cachedValues -> (cachedValues == null ? CachedAttributes.EMPTY : cachedValues)
+                        .with(userValues, now + userAttributeCacheExpiry, now), userAttributeCacheExpiry);
+    }
+
+    /*
+     * Builds a filter matching any of the users, by joining the user name search filter of each user with OR.
+     */
+    private String getUserNamesSearchFilter(List<String> userNames) {
+        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
+        StringBuilder searchFilter = new StringBuilder("(|");
+        for (String userName : userNames) {
+            searchFilter.append(userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName)));
+        }
+        return searchFilter.append(')').toString();
+    }
+
+    /*
+     * Searches the users of the filter in the search bases, and reads each entry that is one of the requested
+     * users. A user found in several search bases takes the entry of the first one, as when the user is looked up
+     * on its own.
+     *
+     * @param requestedUsers requested user names keyed by user cache key.
+     * @return what was read of each user found, keyed by the requested user name.
+     */
+    private <T> Map<String, T> searchUsers(String[] searchBases, String searchFilter, SearchControls searchCtls,
+                                           DirContext dirContext, Map<String, String> requestedUsers,
+                                           UserEntryReader<T> reader) throws NamingException, UserStoreException {
+        Map<String, T> users = new HashMap<>();
+        if (isFanOut(searchBases)) {
+            for (Map<String, T> baseUsers : searchBaseExecutor.searchAll(searchBases, dirContext,
+                    (searchBase, context) -> searchUsers(searchBase, searchFilter, copySearchControls(searchCtls),
+                            context, requestedUsers, reader))) {
+                baseUsers.forEach(users::putIfAbsent);
+            }
+        } else {
+            for (String searchBase : searchBases) {
+                searchUsers(searchBase, searchFilter, searchCtls, dirContext, requestedUsers, reader)
+                        .forEach(users::putIfAbsent);
+            }
+        }
+        return users;
+    }
+
+    /*
+     * Searches the users of the filter in one search base. Entries are matched to the requested user names by
+     * the user name attribute, which must be among the returned attributes, and entries that match none of them
+     * are skipped.
+     */
+    private <T> Map<String, T> searchUsers(String searchBase, String searchFilter, SearchControls searchCtls,
+                                           DirContext dirContext, Map<String, String> requestedUsers,
+                                           UserEntryReader<T> reader) throws NamingException {
+        String userNameAttribute = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        Map<String, T> users = new HashMap<>();
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+            while (answer.hasMoreElements()) {
+                SearchResult sr = answer.next();
+                Attributes attributes = sr.getAttributes();
+                Attribute nameAttribute = attributes == null ? null : attributes.get(userNameAttribute);
+                Object name = nameAttribute == null ? null : nameAttribute.get();
+                String userName = name instanceof String ? requestedUsers.get(getUserCacheKey((String) name)) : null;
+                if (userName == null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Skipping entry " + sr.getNameInNamespace() + " that matches no requested user");
+                    }
+                    continue;
+                }
+                if (!users.containsKey(userName)) {
+                    users.put(userName, reader.read(sr));
+                }
+            }
+        } catch (NameNotFoundException e) {
+            // the search base does not exist.
+            log.debug(e.getMessage(), e);
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            if (!isIgnorePartialResultException()) {
+                throw e;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Error occurred while searching users for filter : " + searchFilter, e);
+            }
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+        }
+        return users;
+    }
+
+    /*
+     * Reads what is needed of the entry of a user.
+     */
+    private interface UserEntryReader<T> {
+        T read(SearchResult searchResult) throws NamingException;
+    }
+
+    /*
+     * Reads the given attributes of the user from the directory into the values map.
+     *
+     * @return true if the user entry was found.
+     */
+    private boolean getUserPropertyValues(String userName, String[] propertyNames, Map<String, String> values)
+            throws UserStoreException {
+
+        String userDN = null;
+        boolean userFound = false;
+
+        String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
+        String searchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
+
+        // the same connection is used to resolve the user DN and to read the attributes
+        DirContext dirContext = this.connectionSource.getContext();
+        NamingEnumeration<?> answer = null;
+        try {
+            // read list of patterns from user-mgt.xml
+            String patterns = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+
+            if (patterns != null && !patterns.isEmpty()) {
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Using User DN Patterns " + patterns);
+                }
+
+                if (patterns.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
+                    userDN = getNameInSpaceForUserName(userName, dirContext);
+                } else {
+                    userDN = MessageFormat.format(patterns, escapeSpecialCharactersForDN(userName));
+                }
+            }
+
+            if (userDN != null) {
+                SearchControls searchCtls = new SearchControls();
+                searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                if (propertyNames != null && propertyNames.length > 0) {
+                    searchCtls.setReturningAttributes(propertyNames);
+                }
+                try {
+                    answer = dirContext.search(escapeDNForSearch(userDN), searchFilter, searchCtls);
+                } catch (PartialResultException e) {
+                    // can be due to referrals in AD. so just ignore error
+                    String errorMessage = "Error occurred while searching directory context for user : "
+                            + userDN + " searchFilter : " + searchFilter;
+                    if (isIgnorePartialResultException()) {
+                        if (log.isDebugEnabled()) {
+                            log.debug(errorMessage, e);
+                        }
+                    } else {
+                        throw new UserStoreException(errorMessage, e);
+                    }
+                } catch (NamingException e) {
+                    String errorMessage = "Error occurred while searching directory context for user : "
+                            + userDN + " searchFilter : " + searchFilter;
+                    if (log.isDebugEnabled()) {
+                        log.debug(errorMessage, e);
+                    }
+                    throw new UserStoreException(errorMessage, e);
+                }
+            } else {
+                answer = this.searchForUser(searchFilter, propertyNames, dirContext);
+            }
+            assert answer != null;
+            while (answer.hasMoreElements()) {
+                SearchResult sr = (SearchResult) answer.next();
+                userFound = true;
+                readAttributeValues(sr.getAttributes(), propertyNames, values);
+            }
+
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while getting user property values for user : " + userName;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            // close the naming enumeration and free up resource
+            JNDIUtil.closeNamingEnumeration(answer);
+            // close directory context
+            JNDIUtil.closeContext(dirContext);
+        }
+        return userFound;
+    }
+
+    /*
+     * Reads the values of the given attributes of a user entry into the values map. The values of a multi valued
+     * attribute are joined with the attribute separator, and binary values are base64 encoded.
+     */
+    private void readAttributeValues(Attributes attributes, String[] propertyNames, Map<String, String> values)
+            throws NamingException {
+        if (attributes == null || propertyNames == null) {
+            return;
+        }
+        String userAttributeSeparator = ",";
+        String attrSeparator = userStoreProperties.get(MULTI_ATTRIBUTE_SEPARATOR);
+        if (attrSeparator != null && !attrSeparator.trim().isEmpty()) {
+            userAttributeSeparator = attrSeparator;
+        }
+        for (String name : propertyNames) {
+            if (name == null) {
+                continue;
+            }
+            Attribute attribute = attributes.get(name);
+            if (attribute == null) {
+                continue;
+            }
+            StringBuilder attrBuffer = new StringBuilder();
+            NamingEnumeration<?> attrs = null;
+            try {
+                for (attrs = attribute.getAll(); attrs.hasMore(); ) {
+                    Object attObject = attrs.next();
+                    String attr = null;
+                    if (attObject instanceof String) {
+                        attr = (String) attObject;
+                    } else if (attObject instanceof byte[]) {
+                        //if the attribute type is binary base64 encoded string will be returned
+                        attr = new String(Base64.encodeBase64((byte[]) attObject));
+                    }
+
+                    if (attr != null && attr.trim().length() > 0) {
+                        attrBuffer.append(attr).append(userAttributeSeparator);
+                    }
+                }
+            } finally {
+                JNDIUtil.closeNamingEnumeration(attrs);
+            }
+            String value = attrBuffer.toString();
+
+            /*
+             * Length needs to be more than userAttributeSeparator.length() for a valid attribute, since we
+             * attach userAttributeSeparator
+             */
+            if (value.trim().length() > userAttributeSeparator.length()) {
+                values.put(name, value.substring(0, value.length() - userAttributeSeparator.length()));
+            }
+        }
+    }
+
+
+    /**
+     *
+     */
+    public String[] doListUsers(String filter, int maxItemLimit) throws UserStoreException {
+        List<String> list = new ArrayList<>();
+        doListUsers(filter, maxItemLimit, list::add);
+        String[] userNames = list.toArray(new String[list.size()]);
+        if (!serverSideSortEnabled) {
+            Arrays.sort(userNames);
+        }
+
+        if (log.isDebugEnabled()) {
+            for (String username : userNames) {
+                log.debug("result: " + username);
+            }
+        }
+        return userNames;
+    }
+
+    /**
+     *
+     */
+    public void doListUsers(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException {
+        boolean debug = log.isDebugEnabled();
+
+        if (maxItemLimit == 0) {
+            return;
+        }
+
+        int givenMax;
+        int searchTime;
+
+        try {
+            givenMax =
                     Integer.parseInt(userStoreProperties.get(CommonConstants.PROPERTY_MAX_USER_LIST));
         } catch (Exception e) {
             givenMax = CommonConstants.MAX_USER_LIST;
@@ -383,101 +1309,59 @@ public class LDAPUserStoreManager implements UserStoreManager {
 
         SearchControls searchCtls = new SearchControls();
         searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setCountLimit(maxItemLimit);
         searchCtls.setTimeLimit(searchTime);
 
-        if (filter.contains("?") || filter.contains("**")) {
-            throw new UserStoreException(
-                    "Invalid character sequence entered for user search. Please enter valid sequence.");
-        }
-
-        StringBuilder searchFilter =
-                new StringBuilder(
-                        userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER));
         String searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
-
-        String userNameProperty =
-                userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
-
-        String serviceNameAttribute = "sn";
-
-        StringBuilder finalFilter = new StringBuilder();
-
-        // read the display name attribute - if provided
-        String displayNameAttribute =
-                userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
-
-        String[] returnedAtts;
-
-        if (StringUtils.isNotEmpty(displayNameAttribute)) {
-            returnedAtts =
-                    new String[]{userNameProperty, serviceNameAttribute,
-                            displayNameAttribute};
-            finalFilter.append("(&").append(searchFilter).append("(").append(displayNameAttribute)
-                    .append("=").append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
-        } else {
-            returnedAtts = new String[]{userNameProperty, serviceNameAttribute};
-            finalFilter.append("(&").append(searchFilter).append("(").append(userNameProperty).append("=")
-                    .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
-        }
+        String finalFilter = getUserListFilter(filter);
 
         if (debug) {
-            log.debug("Listing users. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter.toString());
+            log.debug("Listing users. SearchBase: " + searchBases + " Constructed-Filter: " + finalFilter);
             log.debug("Search controls. Max Limit: " + maxItemLimit + " Max Time: " + searchTime);
         }
 
-        searchCtls.setReturningAttributes(returnedAtts);
+        searchCtls.setReturningAttributes(getUserListAttributes());
+        DirectoryReplica.Snapshot replicaSnapshot = getReplicaSnapshot();
+        if (replicaSnapshot != null) {
+            try {
+                replicaSnapshot.listUsers(filter, maxItemLimit, handler);
+            } catch (IOException e) {
+                throw new UserStoreException("Error occurred while passing on the user list for filter : " + filter,
+                        e);
+            }
+            return;
+        }
         DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-        List<String> list = new ArrayList<>();
 
         try {
             dirContext = connectionSource.getContext();
             // handle multiple search bases
             String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
 
-            for (String searchBase : searchBaseArray) {
-
-                answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
-                while (answer.hasMoreElements()) {
-                    SearchResult sr = answer.next();
-                    if (sr.getAttributes() != null) {
-                        log.debug("Result found ..");
-                        Attribute attr = sr.getAttributes().get(userNameProperty);
-
-                        // If this is a service principle, just ignore and
-                        // iterate rest of the array. The entity is a service if
-                        // value of surname is Service
-
-                        Attribute attrSurname = sr.getAttributes().get(serviceNameAttribute);
-
-                        if (attrSurname != null) {
-                            if (debug) {
-                                log.debug(serviceNameAttribute + " : " + attrSurname);
-                            }
-                            String serviceName = (String) attrSurname.get();
-                            if (serviceName != null
-                                    && serviceName
-                                    .equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
-                                continue;
-                            }
-                        }
+            if (serverSideSortEnabled && dirContext instanceof LdapContext) {
+                mergeSortedSearches((LdapContext) dirContext, searchBaseArray, finalFilter, searchCtls,
+                        userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE), maxItemLimit,
+                        this::getListedUserName, handler);
+                return;
+            }
 
-                        if (attr != null) {
-                            String name = (String) attr.get();
-                            list.add(name);
-                        }
-                    }
-                }
+            BoundedNameHandler names = new BoundedNameHandler(handler, maxItemLimit);
+            if (isFanOut(searchBaseArray)) {
+                searchBaseExecutor.searchAll(searchBaseArray, dirContext, (searchBase, context) -> {
+                    searchEntries(context, escapeDNForSearch(searchBase), finalFilter,
+                            copySearchControls(searchCtls), this::getListedUserName, names);
+                    return null;
+                });
+                return;
             }
-            userNames = list.toArray(new String[list.size()]);
-            Arrays.sort(userNames);
 
-            if (debug) {
-                for (String username : userNames) {
-                    log.debug("result: " + username);
-                }
+            for (String searchBase : searchBaseArray) {
+
+                searchEntries(dirContext, escapeDNForSearch(searchBase), finalFilter, searchCtls,
+                        this::getListedUserName, names);
             }
+        } catch (UncheckedIOException e) {
+            throw new UserStoreException("Error occurred while passing on the user list for filter : " + filter,
+                    e.getCause());
         } catch (PartialResultException e) {
             // can be due to referrals in AD. so just ignore error
             String errorMessage =
@@ -497,19 +1381,250 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
             throw new UserStoreException(errorMessage, e);
         } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
             JNDIUtil.closeContext(dirContext);
         }
-        return userNames;
+    }
+
+    /*
+     * Passes a listed name on to the handler. Write errors of the handler are rethrown unchecked, to get them out
+     * of the search result callbacks.
+     */
+    private static void handleName(NameHandler handler, String name) {
+        try {
+            handler.handle(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Passes names on to a handler until the limit of the listing is reached, over all search bases. Search bases
+     * searched at the same time share it, so it passes on one name at a time.
+     */
+    private static final class BoundedNameHandler {
+
+        private final NameHandler handler;
+        // no limit if 0 or less
+        private final int limit;
+        private int count;
+
+        private BoundedNameHandler(NameHandler handler, int limit) {
+            this.handler = handler;
+            this.limit = limit;
+        }
+
+        /**
+         * Passes the name on, unless it is null or the limit is reached.
+         *
+         * @return true if more names are wanted.
+         */
+        synchronized boolean offer(String name) {
+            if (isFull()) {
+                return false;
+            }
+            if (name != null) {
+                handleName(handler, name);
+                count++;
+            }
+            return !isFull();
+        }
+
+        synchronized boolean isFull() {
+            return limit > 0 && count >= limit;
+        }
+
+        /**
+         * @return the number of names still wanted, or 0 if there is no limit.
+         */
+        synchronized int remaining() {
+            return limit > 0 ? limit - count : 0;
+        }
+    }
+
+    private boolean isFanOut(String[] searchBases) {
+        return searchBaseExecutor != null && searchBases.length > 1;
+    }
+
+    private static SearchControls copySearchControls(SearchControls searchCtls) {
+        return new SearchControls(searchCtls.getSearchScope(), searchCtls.getCountLimit(), searchCtls.getTimeLimit(),
+                searchCtls.getReturningAttributes(), searchCtls.getReturningObjFlag(), searchCtls.getDerefLinkFlag());
+    }
+
+    /**
+     *
+     */
+    public ListingPage doListUsersPage(String filter, int pageSize, String cursor) throws UserStoreException {
+        if (cursor != null) {
+            return readListingPage(cursor, pageSize);
+        }
+        SearchControls searchCtls = getListingSearchControls();
+        searchCtls.setReturningAttributes(getUserListAttributes());
+        return openListing(userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE), getUserListFilter(filter),
+                searchCtls, this::getListedUserName, pageSize);
+    }
+
+    /**
+     *
+     */
+    public ListingPage doGetRoleNamesPage(String filter, int pageSize, String cursor) throws UserStoreException {
+        if (cursor != null) {
+            return readListingPage(cursor, pageSize);
+        }
+        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+        SearchControls searchCtls = getListingSearchControls();
+        searchCtls.setReturningAttributes(new String[]{roleNameProperty});
+        return openListing(userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE),
+                getRoleListFilter(userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER), roleNameProperty,
+                        filter), searchCtls, this::getListedRoleName, pageSize);
+    }
+
+    private ListingPage openListing(String searchBases, String filter, SearchControls searchCtls,
+                                    ListingCursor.EntryReader reader, int pageSize) throws UserStoreException {
+        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        for (int i = 0; i < searchBaseArray.length; i++) {
+            searchBaseArray[i] = escapeDNForSearch(searchBaseArray[i]);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Opening listing cursor. SearchBase: " + searchBases + " Constructed-Filter: " + filter);
+        }
+        // a connection outside the pool, since the cursor holds it until the listing is read to the end.
+        ListingCursor cursor = listingCursors.open(connectionSource.getDedicatedContext(), searchBaseArray, filter,
+                searchCtls, reader);
+        return readListingPage(cursor, cursor.getToken(), pageSize);
+    }
+
+    private ListingPage readListingPage(String token, int pageSize) throws UserStoreException {
+        ListingCursor cursor = listingCursors.get(token);
+        if (cursor == null) {
+            throw new InvalidCursorException("Listing cursor is unknown or has expired");
+        }
+        return readListingPage(cursor, token, pageSize);
+    }
+
+    private ListingPage readListingPage(ListingCursor cursor, String token, int pageSize)
+            throws UserStoreException {
+        int maxPageSize = pagedSearchPageSize > 0 ? pagedSearchPageSize : DEFAULT_PAGED_SEARCH_PAGE_SIZE;
+        if (pageSize <= 0 || pageSize > maxPageSize) {
+            pageSize = maxPageSize;
+        }
+        List<String> names;
+        try {
+            names = cursor.nextPage(token, pageSize);
+        } catch (NamingException e) {
+            listingCursors.close(cursor);
+            String errorMessage = "Error occurred while reading a page of the listing";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+        if (names == null) {
+            throw new InvalidCursorException("Listing cursor has already been used");
+        }
+        String nextToken = null;
+        if (cursor.isExhausted()) {
+            listingCursors.close(cursor);
+        } else {
+            nextToken = cursor.getToken();
+        }
+        return new ListingPage(names.toArray(new String[names.size()]), nextToken);
+    }
+
+    private SearchControls getListingSearchControls() {
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setTimeLimit(UserStoreUtils.getIntProperty(userStoreProperties,
+                CommonConstants.PROPERTY_MAX_SEARCH_TIME, CommonConstants.MAX_SEARCH_TIME));
+        return searchCtls;
+    }
+
+    private String getUserListFilter(String filter) throws UserStoreException {
+        if (filter.contains("?") || filter.contains("**")) {
+            throw new UserStoreException(
+                    "Invalid character sequence entered for user search. Please enter valid sequence.");
+        }
+
+        String searchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_LIST_FILTER);
+        // read the display name attribute - if provided
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        String filterAttribute = StringUtils.isNotEmpty(displayNameAttribute) ? displayNameAttribute
+                : userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        return "(&" + searchFilter + "(" + filterAttribute + "=" + escapeSpecialCharactersForFilterWithStarAsRegex(
+                filter) + "))";
+    }
+
+    private String[] getUserListAttributes() {
+        String userNameProperty = userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE);
+        String displayNameAttribute = userStoreProperties.get(LDAPConstants.DISPLAY_NAME_ATTRIBUTE);
+        if (StringUtils.isNotEmpty(displayNameAttribute)) {
+            return new String[]{userNameProperty, SERVICE_NAME_ATTRIBUTE, displayNameAttribute};
+        }
+        return new String[]{userNameProperty, SERVICE_NAME_ATTRIBUTE};
+    }
+
+    /*
+     * Returns the user name of an entry of the user listing, or null if the entry is not listed.
+     */
+    private String getListedUserName(SearchResult sr) throws NamingException {
+        if (sr.getAttributes() == null) {
+            return null;
+        }
+        log.debug("Result found ..");
+        Attribute attr = sr.getAttributes().get(userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE));
+
+        // If this is a service principle, just ignore and
+        // iterate rest of the array. The entity is a service if
+        // value of surname is Service
+
+        Attribute attrSurname = sr.getAttributes().get(SERVICE_NAME_ATTRIBUTE);
+
+        if (attrSurname != null) {
+            if (log.isDebugEnabled()) {
+                log.debug(SERVICE_NAME_ATTRIBUTE + " : " + attrSurname);
+            }
+            String serviceName = (String) attrSurname.get();
+            if (serviceName != null && serviceName.equals(LDAPConstants.SERVER_PRINCIPAL_ATTRIBUTE_VALUE)) {
+                return null;
+            }
+        }
+        return attr == null ? null : (String) attr.get();
+    }
+
+    private String getListedRoleName(SearchResult sr) throws NamingException {
+        if (sr.getAttributes() == null) {
+            return null;
+        }
+        Attribute attr = sr.getAttributes().get(userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE));
+        return attr == null ? null : (String) attr.get();
+    }
+
+    private String getRoleListFilter(String searchFilter, String roleNameProperty, String filter) {
+        return "(&" + searchFilter + "(" + roleNameProperty + "=" + escapeSpecialCharactersForFilterWithStarAsRegex(
+                filter) + "))";
     }
 
     /**
      *
      */
     public String[] doGetRoleNames(String filter, int maxItemLimit) throws UserStoreException {
+        List<String> externalRoles = new ArrayList<>();
+        doGetRoleNames(filter, maxItemLimit, externalRoles::add);
+
+        if (log.isDebugEnabled()) {
+            for (String role : externalRoles) {
+                log.debug("result: " + role);
+            }
+        }
+        return externalRoles.toArray(new String[externalRoles.size()]);
+    }
+
+    /**
+     *
+     */
+    public void doGetRoleNames(String filter, int maxItemLimit, NameHandler handler) throws UserStoreException {
 
         if (maxItemLimit == 0) {
-            return new String[0];
+            return;
         }
 
         int givenMax;
@@ -534,80 +1649,113 @@ public class LDAPUserStoreManager implements UserStoreManager {
             maxItemLimit = givenMax;
         }
 
-        List<String> externalRoles = new ArrayList<>();
+        DirectoryReplica.Snapshot replicaSnapshot = getReplicaSnapshot();
+        if (replicaSnapshot != null) {
+            try {
+                replicaSnapshot.listRoles(filter, maxItemLimit, handler);
+            } catch (IOException e) {
+                throw new UserStoreException("Error occurred while passing on the role list for filter : " + filter,
+                        e);
+            }
+            return;
+        }
 
         // handling multiple search bases
         String searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
         String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-        for (String searchBase : searchBaseArray) {
-            // get the role list from the group search base
-            externalRoles.addAll(getLDAPRoleNames(searchTime, filter, maxItemLimit,
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
-                    userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
-                    searchBase));
+        DirContext dirContext = connectionSource.getContext();
+        try {
+            if (serverSideSortEnabled && dirContext instanceof LdapContext) {
+                String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+                SearchControls searchCtls = new SearchControls();
+                searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                searchCtls.setTimeLimit(searchTime);
+                searchCtls.setReturningAttributes(new String[]{roleNameProperty});
+                mergeSortedSearches((LdapContext) dirContext, searchBaseArray,
+                        getRoleListFilter(userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
+                                roleNameProperty, filter), searchCtls, roleNameProperty, maxItemLimit,
+                        this::getListedRoleName, handler);
+                return;
+            }
+            BoundedNameHandler names = new BoundedNameHandler(handler, maxItemLimit);
+            int roleSearchTime = searchTime;
+            if (isFanOut(searchBaseArray)) {
+                searchBaseExecutor.searchAll(searchBaseArray, dirContext, (searchBase, context) -> {
+                    getLDAPRoleNames(roleSearchTime, filter,
+                            userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
+                            userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
+                            searchBase, context, names);
+                    return null;
+                });
+                return;
+            }
+            for (String searchBase : searchBaseArray) {
+                // get the role list from the group search base
+                getLDAPRoleNames(searchTime, filter,
+                        userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER),
+                        userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE),
+                        searchBase, dirContext, names);
+            }
+        } catch (UncheckedIOException e) {
+            throw new UserStoreException("Error occurred while passing on the role list for filter : " + filter,
+                    e.getCause());
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while getting role list for filter : " + filter;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            JNDIUtil.closeContext(dirContext);
         }
-
-        return externalRoles.toArray(new String[externalRoles.size()]);
     }
 
     /*
-     * Returns the list of role names for the given search base and other
-     * parameters
+     * Passes the role names for the given search base and other
+     * parameters to the handler
      *
      * @param searchTime
      * @param filter
-     * @param maxItemLimit
      * @param searchFilter
      * @param roleNameProperty
-     * @param searchBase     *
-     * @return
+     * @param searchBase
+     * @param dirContext
+     * @param names
      * @throws UserStoreException
      */
-    private List<String> getLDAPRoleNames(int searchTime, String filter, int maxItemLimit,
-                                          String searchFilter, String roleNameProperty,
-                                          String searchBase)
+    private void getLDAPRoleNames(int searchTime, String filter,
+                                  String searchFilter, String roleNameProperty,
+                                  String searchBase, DirContext dirContext, BoundedNameHandler names)
             throws UserStoreException {
         boolean debug = log.isDebugEnabled();
-        List<String> roles = new ArrayList<>();
 
         SearchControls searchCtls = new SearchControls();
         searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setCountLimit(maxItemLimit);
         searchCtls.setTimeLimit(searchTime);
 
         String returnedAtts[] = {roleNameProperty};
         searchCtls.setReturningAttributes(returnedAtts);
 
-        StringBuilder finalFilter = new StringBuilder();
-        finalFilter.append("(&").append(searchFilter).append("(").append(roleNameProperty).append("=")
-                .append(escapeSpecialCharactersForFilterWithStarAsRegex(filter)).append("))");
+        String finalFilter = getRoleListFilter(searchFilter, roleNameProperty, filter);
 
         if (debug) {
-            log.debug("Listing roles. SearchBase: " + searchBase + " ConstructedFilter: " +
-                    finalFilter.toString());
+            log.debug("Listing roles. SearchBase: " + searchBase + " ConstructedFilter: " + finalFilter);
         }
 
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
-
         try {
-            dirContext = connectionSource.getContext();
-            answer = dirContext.search(escapeDNForSearch(searchBase), finalFilter.toString(), searchCtls);
-
-            while (answer.hasMoreElements()) {
-                SearchResult sr = answer.next();
+            searchEntries(dirContext, escapeDNForSearch(searchBase), finalFilter, searchCtls, sr -> {
                 if (sr.getAttributes() != null) {
                     Attribute attr = sr.getAttributes().get(roleNameProperty);
                     if (attr != null) {
-                        String name = (String) attr.get();
-                        roles.add(name);
+                        return (String) attr.get();
                     }
                 }
-            }
+                return null;
+            }, names);
         } catch (PartialResultException e) {
             // can be due to referrals in AD. so just ignore error
             String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
+                    + searchBase + " ConstructedFilter: " + finalFilter;
             if (isIgnorePartialResultException()) {
                 if (log.isDebugEnabled()) {
                     log.debug(errorMessage, e);
@@ -617,33 +1765,141 @@ public class LDAPUserStoreManager implements UserStoreManager {
             }
         } catch (NamingException e) {
             String errorMessage = "Error occurred while getting LDAP role names. SearchBase: "
-                    + searchBase + " ConstructedFilter: " + finalFilter.toString();
+                    + searchBase + " ConstructedFilter: " + finalFilter;
             if (log.isDebugEnabled()) {
                 log.debug(errorMessage, e);
             }
             throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /*
+     * Runs the search and passes the names read from the results on, until the limit of the listing is reached
+     * or the results are exhausted. When paged search is enabled the results are read page by page with the
+     * simple paged results control (RFC 2696), so that the server size limit does not cut the listing short and
+     * only one page is held at a time.
+     */
+    private void searchEntries(DirContext dirContext, String searchBase, String filter, SearchControls searchCtls,
+                               ListingCursor.EntryReader reader, BoundedNameHandler names) throws NamingException {
+        if (names.isFull()) {
+            return;
+        }
+        if (pagedSearchPageSize <= 0 || !(dirContext instanceof LdapContext)) {
+            searchCtls.setCountLimit(names.remaining());
+            NamingEnumeration<SearchResult> answer = null;
+            try {
+                answer = dirContext.search(searchBase, filter, searchCtls);
+                while (answer.hasMoreElements()) {
+                    if (!names.offer(reader.read(answer.next()))) {
+                        break;
+                    }
+                }
+            } finally {
+                JNDIUtil.closeNamingEnumeration(answer);
+            }
+            return;
+        }
+
+        LdapContext ldapContext = (LdapContext) dirContext;
+        searchCtls.setCountLimit(0);
+        byte[] cookie = null;
+        try {
+            do {
+                int pageSize = pagedSearchPageSize;
+                if (names.remaining() > 0) {
+                    // do not ask for more entries than are still needed.
+                    pageSize = Math.min(pageSize, names.remaining());
+                }
+                // non critical, so that servers without paged results support return an unpaged result.
+                ldapContext.setRequestControls(new Control[]{
+                        new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+                NamingEnumeration<SearchResult> answer = null;
+                try {
+                    answer = ldapContext.search(searchBase, filter, searchCtls);
+                    while (answer.hasMoreElements()) {
+                        if (!names.offer(reader.read(answer.next()))) {
+                            break;
+                        }
+                    }
+                } finally {
+                    JNDIUtil.closeNamingEnumeration(answer);
+                }
+                cookie = getPagedResultsCookie(ldapContext.getResponseControls());
+            } while (cookie != null && cookie.length > 0 && !names.isFull());
+        } catch (IOException e) {
+            NamingException namingException = new NamingException("Error while creating the paged results control");
+            namingException.setRootCause(e);
+            throw namingException;
         } finally {
-            JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
+            ldapContext.setRequestControls(null);
         }
+    }
 
-        if (debug) {
-            for (String role : roles) {
-                log.debug("result: " + role);
+    /*
+     * Passes the names found under all search bases to the handler as one sorted listing. The server sorts the
+     * results of each search base with the server side sort control (RFC 2891) and the agent merges them as they
+     * are read, so that only the next name of each search base is held.
+     */
+    private void mergeSortedSearches(LdapContext context, String[] searchBases, String filter,
+                                     SearchControls searchCtls, String sortAttribute, int maxItemLimit,
+                                     ListingCursor.EntryReader reader, NameHandler handler) throws NamingException {
+        int pageSize = pagedSearchPageSize;
+        if (pageSize > 0 && maxItemLimit > 0) {
+            pageSize = Math.min(pageSize, maxItemLimit);
+        }
+        // each search base is sorted, so its first maxItemLimit entries are all the merge can take from it.
+        searchCtls.setCountLimit(pageSize > 0 ? 0 : Math.max(maxItemLimit, 0));
+
+        PriorityQueue<SortedSearchSource> sources = new PriorityQueue<>(Math.max(1, searchBases.length),
+                (first, second) -> SORTED_LISTING_ORDER.compare(first.peek(), second.peek()));
+        List<SortedSearchSource> openedSources = new ArrayList<>();
+        try {
+            for (String searchBase : searchBases) {
+                // a context of its own for each search base, sharing the connection, since controls are set on it.
+                SortedSearchSource source = new SortedSearchSource(context.newInstance(null),
+                        escapeDNForSearch(searchBase), filter, searchCtls, sortAttribute, pageSize, reader);
+                openedSources.add(source);
+                source.open();
+                if (source.peek() != null) {
+                    sources.add(source);
+                }
+            }
+
+            int count = 0;
+            while (!sources.isEmpty() && (maxItemLimit <= 0 || count < maxItemLimit)) {
+                SortedSearchSource source = sources.poll();
+                handleName(handler, source.peek());
+                count++;
+                source.advance();
+                if (source.peek() != null) {
+                    sources.add(source);
+                }
+            }
+        } finally {
+            for (SortedSearchSource source : openedSources) {
+                source.close();
             }
         }
+    }
 
-        return roles;
+    private static byte[] getPagedResultsCookie(Control[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl) control).getCookie();
+            }
+        }
+        return null;
     }
 
     private boolean bindAsUser(String dn, String credentials) throws NamingException,
             UserStoreException {
         boolean isAuthed = false;
         boolean debug = log.isDebugEnabled();
-        LdapContext cxt = null;
         try {
-            // cxt = new InitialLdapContext(env, null);
-            cxt = this.connectionSource.getContextWithCredentials(dn, credentials);
+            this.connectionSource.bind(dn, credentials);
             isAuthed = true;
         } catch (AuthenticationException e) {
          // we avoid throwing an exception here since we throw that exception
@@ -652,8 +1908,6 @@ public class LDAPUserStoreManager implements UserStoreManager {
                 log.debug("Authentication failed " + e);
             }
 
-        } finally {
-            JNDIUtil.closeContext(cxt);
         }
 
         if (debug) {
@@ -662,6 +1916,34 @@ public class LDAPUserStoreManager implements UserStoreManager {
         return isAuthed;
     }
 
+    /**
+     * Binds with a DN taken from the user DN cache. Most servers answer a bind to an entry that does not exist the
+     * same way as a bind with a wrong password, so a failed bind cannot tell whether the user has been moved or
+     * renamed since the DN was cached. The DN is resolved again once, and the bind is retried only when the user's
+     * current DN differs from the cached one; rejected credentials of a user that has not moved are not retried.
+     */
+    private boolean bindAsUserWithCachedDN(String userName, String cachedDN, String credentials)
+            throws NamingException, UserStoreException {
+        try {
+            if (bindAsUser(cachedDN, credentials)) {
+                return true;
+            }
+        } catch (NameNotFoundException | InvalidNameException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Cached DN " + cachedDN + " of user " + userName + " is no longer valid", e);
+            }
+        }
+        userDNCache.remove(getUserCacheKey(userName));
+        String currentDN = resolveNameInSpaceForUserName(userName);
+        if (currentDN == null || currentDN.equals(cachedDN)) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("User " + userName + " has moved from " + cachedDN + ", authenticating with " + currentDN);
+        }
+        return bindAsUser(currentDN, credentials);
+    }
+
     private NamingEnumeration<SearchResult> searchForUser(String searchFilter,
                                                           String[] returnedAtts,
                                                           DirContext dirContext)
@@ -692,100 +1974,254 @@ public class LDAPUserStoreManager implements UserStoreManager {
         String[] searchBaseAraay = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
         NamingEnumeration<SearchResult> answer = null;
 
-        try {
-            for (String searchBase : searchBaseAraay) {
-                answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
-                if (answer.hasMore()) {
-                    return answer;
-                }
-            }
-        } catch (PartialResultException e) {
-            // can be due to referrals in AD. so just ignore error
-            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
-            if (isIgnorePartialResultException()) {
-                if (log.isDebugEnabled()) {
-                    log.debug(errorMessage, e);
-                }
-            } else {
-                throw new UserStoreException(errorMessage, e);
-            }
-        } catch (NamingException e) {
-            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
-            if (log.isDebugEnabled()) {
-                log.debug(errorMessage, e);
-            }
-            throw new UserStoreException(errorMessage, e);
+        try {
+            if (isFanOut(searchBaseAraay)) {
+                // the results are read on the connections of the search bases, so they are handed back in memory.
+                List<SearchResult> results = searchBaseExecutor.searchFirst(searchBaseAraay, dirContext,
+                        (searchBase, context) -> readSearchResults(context.search(escapeDNForSearch(searchBase),
+                                searchFilter, copySearchControls(searchCtls))));
+                return new SearchResultEnumeration(results == null ? Collections.emptyList() : results);
+            }
+            for (String searchBase : searchBaseAraay) {
+                answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+                if (answer.hasMore()) {
+                    return answer;
+                }
+            }
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
+            if (isIgnorePartialResultException()) {
+                if (log.isDebugEnabled()) {
+                    log.debug(errorMessage, e);
+                }
+            } else {
+                throw new UserStoreException(errorMessage, e);
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while search user for filter : " + searchFilter;
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+        return answer;
+    }
+
+    /*
+     * Reads all results of the search, or returns null if there are none.
+     */
+    private static List<SearchResult> readSearchResults(NamingEnumeration<SearchResult> answer)
+            throws NamingException {
+        try {
+            if (!answer.hasMore()) {
+                return null;
+            }
+            List<SearchResult> results = new ArrayList<>();
+            while (answer.hasMoreElements()) {
+                results.add(answer.next());
+            }
+            return results;
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+        }
+    }
+
+    /*
+     * Search results that were already read from the directory.
+     */
+    private static final class SearchResultEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Iterator<SearchResult> results;
+
+        private SearchResultEnumeration(List<SearchResult> results) {
+            this.results = results.iterator();
+        }
+
+        @Override
+        public SearchResult next() {
+            return results.next();
+        }
+
+        @Override
+        public boolean hasMore() {
+            return results.hasNext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return results.next();
+        }
+    }
+
+    private String resolveNameInSpaceForUserName(String userName) throws UserStoreException {
+        DirContext dirContext = this.connectionSource.getContext();
+        try {
+            return resolveNameInSpaceForUserName(userName, dirContext);
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+    }
+
+    /*
+     * Returns the indexes of the user DN patterns in the order they are tried for the user.
+     */
+    private int[] getUserDNPatternOrder(String userKey, int patternCount) {
+        if (dnPatternSelector != null) {
+            return dnPatternSelector.order(userKey);
+        }
+        int[] order = new int[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    private String getUserCacheKey(String userName) {
+        String key = userName.trim();
+        return caseInsensitiveUsername ? key.toLowerCase(Locale.ENGLISH) : key;
+    }
+
+    private String getNameInSpaceForUserName(String userName, DirContext dirContext) {
+        String cachedUserDN = getCachedUserDN(userName);
+        if (cachedUserDN != null) {
+            return UNRESOLVED_USER_DN.equals(cachedUserDN) ? null : cachedUserDN;
         }
-        return answer;
+        return resolveNameInSpaceForUserName(userName, dirContext);
     }
 
-    private String getNameInSpaceForUserName(String userName) throws UserStoreException {
+    /*
+     * Returns the cached DN of the user, UNRESOLVED_USER_DN if the user is known not to exist, or null if
+     * nothing is cached for the user.
+     */
+    private String getCachedUserDN(String userName) {
+        if (userDNCache == null) {
+            return null;
+        }
+        return userDNCache.get(getUserCacheKey(userName));
+    }
+
+    /*
+     * Searches the DN of the user in the directory and caches the outcome. A user that could not be found is
+     * cached for a shorter time, and nothing is cached if the search failed.
+     */
+    private String resolveNameInSpaceForUserName(String userName, DirContext dirContext) {
+        if (isUnknownUser(userName)) {
+            return null;
+        }
         String searchBase;
+        String userDN = null;
+        boolean lookupFailed = false;
         String userSearchFilter = userStoreProperties.get(LDAPConstants.USER_NAME_SEARCH_FILTER);
         userSearchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
         String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
         if (userDNPattern != null && userDNPattern.trim().length() > 0) {
             String[] patterns = userDNPattern.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            for (String pattern : patterns) {
-                searchBase = MessageFormat.format(pattern, escapeSpecialCharactersForDN(userName));
-                String userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
+            for (int index : getUserDNPatternOrder(getUserCacheKey(userName), patterns.length)) {
+                searchBase = MessageFormat.format(patterns[index], escapeSpecialCharactersForDN(userName));
+                try {
+                    userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter, dirContext);
+                } catch (NamingException | UserStoreException e) {
+                    lookupFailed = true;
+                    log.debug(e.getMessage(), e);
+                }
                 // check in another DN pattern
                 if (userDN != null) {
-                    return userDN;
+                    break;
                 }
             }
         }
 
-        searchBase = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
-
-        return getNameInSpaceForUserName(userName, searchBase, userSearchFilter);
+        if (userDN == null) {
+            searchBase = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE);
+            try {
+                userDN = getNameInSpaceForUserName(userName, searchBase, userSearchFilter, dirContext);
+            } catch (NamingException | UserStoreException e) {
+                lookupFailed = true;
+                log.debug(e.getMessage(), e);
+            }
+        }
 
+        if (userDN == null && !lookupFailed && userNameFilter != null) {
+            userNameFilter.recordNotFound(userName);
+        }
+        if (userDNCache != null) {
+            if (userDN != null) {
+                userDNCache.put(getUserCacheKey(userName), userDN);
+            } else if (!lookupFailed) {
+                userDNCache.put(getUserCacheKey(userName), UNRESOLVED_USER_DN, userDNCacheNegativeExpiry);
+            }
+        }
+        return userDN;
     }
 
-    private String getNameInSpaceForUserName(String userName, String searchBase, String searchFilter)
-            throws UserStoreException {
+    private String getNameInSpaceForUserName(String userName, String searchBase, String searchFilter,
+                                             DirContext dirContext) throws NamingException, UserStoreException {
         boolean debug = log.isDebugEnabled();
 
         String userDN = null;
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
 
-        DirContext dirContext = this.connectionSource.getContext();
-        NamingEnumeration<SearchResult> answer = null;
-        try {
-            SearchControls searchCtls = new SearchControls();
-            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-
-            if (log.isDebugEnabled()) {
-                try {
-                    log.debug("Searching for user with SearchFilter: "
-                            + searchFilter + " in SearchBase: " + dirContext.getNameInNamespace());
-                } catch (NamingException e) {
-                    log.debug("Error while getting DN of search base", e);
-                }
+        if (log.isDebugEnabled()) {
+            try {
+                log.debug("Searching for user with SearchFilter: "
+                        + searchFilter + " in SearchBase: " + dirContext.getNameInNamespace());
+            } catch (NamingException e) {
+                log.debug("Error while getting DN of search base", e);
             }
-            SearchResult userObj;
-            String[] searchBases = searchBase.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        }
+        String[] searchBases = searchBase.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        if (isFanOut(searchBases)) {
+            // the DN found in the first search base wins, as when the search bases are searched in turn.
+            userDN = searchBaseExecutor.searchFirst(searchBases, dirContext,
+                    (base, context) -> findUserDN(base, searchFilter, copySearchControls(searchCtls), context));
+        } else {
             for (String base : searchBases) {
-                answer = dirContext.search(escapeDNForSearch(base), searchFilter, searchCtls);
-                if (answer.hasMore()) {
-                    userObj = answer.next();
-                    if (userObj != null) {
-                        //no need to decode since , if decoded the whole string, can't be encoded again
-                        //eg CN=Hello\,Ok=test\,test, OU=Industry
-                        userDN = userObj.getNameInNamespace();
-                        break;
-                    }
+                userDN = findUserDN(base, searchFilter, searchCtls, dirContext);
+                if (userDN != null) {
+                    break;
                 }
             }
-            if (debug) {
-                log.debug("Name in space for " + userName + " is " + userDN);
+        }
+        if (debug) {
+            log.debug("Name in space for " + userName + " is " + userDN);
+        }
+        return userDN;
+    }
+
+    /*
+     * Returns the DN of the first entry matching the filter in the search base, or null if there is none.
+     */
+    private String findUserDN(String searchBase, String searchFilter, SearchControls searchCtls,
+                              DirContext dirContext) throws NamingException {
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+            if (answer.hasMore()) {
+                SearchResult userObj = answer.next();
+                if (userObj != null) {
+                    //no need to decode since , if decoded the whole string, can't be encoded again
+                    //eg CN=Hello\,Ok=test\,test, OU=Industry
+                    return userObj.getNameInNamespace();
+                }
             }
-        } catch (Exception e) {
+        } catch (NameNotFoundException e) {
+            // the search base does not exist, eg: a DN pattern the user does not match.
             log.debug(e.getMessage(), e);
         } finally {
             JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
         }
-        return userDN;
+        return null;
     }
 
 
@@ -887,110 +2323,595 @@ public class LDAPUserStoreManager implements UserStoreManager {
                         sb.append(currentChar);
                 }
             }
-            if ((text.length() > 1) && (text.charAt(text.length() - 1) == ' ')) {
-                sb.insert(sb.length() - 1, '\\'); // add the trailing backslash if needed
+            if ((text.length() > 1) && (text.charAt(text.length() - 1) == ' ')) {
+                sb.insert(sb.length() - 1, '\\'); // add the trailing backslash if needed
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("value after escaping special characters in " + text + " : " + sb.toString());
+            }
+            return sb.toString();
+        } else {
+            return text;
+        }
+
+    }
+
+    private String escapeDNForSearch(String dn) {
+        boolean replaceEscapeCharacters = true;
+
+        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
+                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
+
+        if (replaceEscapeCharactersAtUserLoginString != null) {
+            replaceEscapeCharacters = Boolean
+                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
+            if (log.isDebugEnabled()) {
+                log.debug("Replace escape characters configured to: "
+                        + replaceEscapeCharactersAtUserLoginString);
+            }
+        }
+        if (replaceEscapeCharacters) {
+            return dn.replace("\\\\", "\\\\\\").replace("\\\"", "\\\\\"");
+        } else {
+            return dn;
+        }
+    }
+
+    private String escapeSpecialCharactersForFilterWithStarAsRegex(String dnPartial) {
+        boolean replaceEscapeCharacters = true;
+
+        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
+                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
+
+        if (replaceEscapeCharactersAtUserLoginString != null) {
+            replaceEscapeCharacters = Boolean
+                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
+            if (log.isDebugEnabled()) {
+                log.debug("Replace escape characters configured to: "
+                        + replaceEscapeCharactersAtUserLoginString);
+            }
+        }
+
+        if (replaceEscapeCharacters) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < dnPartial.length(); i++) {
+                char currentChar = dnPartial.charAt(i);
+                switch (currentChar) {
+                    case '\\':
+                        if (dnPartial.charAt(i + 1) == '*') {
+                            sb.append("\\2a");
+                            i++;
+                            break;
+                        }
+                        sb.append("\\5c");
+                        break;
+                    case '(':
+                        sb.append("\\28");
+                        break;
+                    case ')':
+                        sb.append("\\29");
+                        break;
+                    case '\u0000':
+                        sb.append("\\00");
+                        break;
+                    default:
+                        sb.append(currentChar);
+                }
+            }
+            return sb.toString();
+        } else {
+            return dnPartial;
+        }
+    }
+
+    private boolean isIgnorePartialResultException() {
+
+        return PROPERTY_REFERRAL_IGNORE.equals(userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL));
+    }
+
+    @Override
+    public String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException {
+
+        // the replica only holds the direct members of groups.
+        DirectoryReplica.Snapshot replicaSnapshot = nestedGroupsEnabled ? null : getReplicaSnapshot();
+        if (replicaSnapshot != null && replicaSnapshot.isRolesComplete()) {
+            List<String> roles = replicaSnapshot.getRoles(getUserCacheKey(userName));
+            if (roles == null) {
+                return new String[0];
+            }
+            return roles.toArray(new String[roles.size()]);
+        }
+        if (isUnknownUser(userName)) {
+            return new String[0];
+        }
+
+        String cacheKey = null;
+        if (userRolesCache != null) {
+            cacheKey = getUserCacheKey(userName);
+            List<String> cachedRoles = userRolesCache.get(cacheKey);
+            if (cachedRoles != null) {
+                return cachedRoles.toArray(new String[cachedRoles.size()]);
+            }
+        }
+
+        // Get the effective search base
+        String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
+        String[] roles = getLDAPRoleListOfUser(userName, searchBase);
+        if (userRolesCache != null) {
+            userRolesCache.put(cacheKey, internRoleList(roles));
+        }
+        return roles;
+    }
+
+    @Override
+    public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
+        DirectoryReplica.Snapshot replicaSnapshot = nestedGroupsEnabled ? null : getReplicaSnapshot();
+        if (replicaSnapshot != null && replicaSnapshot.isRolesComplete()) {
+            return replicaSnapshot.isUserInRole(getUserCacheKey(userName), roleName);
+        }
+        for (String role : doGetExternalRoleListOfUser(userName)) {
+            if (role.equalsIgnoreCase(roleName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Map<String, String[]> doGetExternalRoleListOfUsers(String[] userNames) throws UserStoreException {
+        Map<String, String[]> userRoles = new HashMap<>();
+        if (userNames == null) {
+            return userRoles;
+        }
+        DirectoryReplica.Snapshot replicaSnapshot = getReplicaSnapshot();
+        // the member lists read in a batch only give direct groups, nested groups are resolved per user, sharing
+        // the group graph.
+        if (nestedGroupsEnabled || (replicaSnapshot != null && replicaSnapshot.isRolesComplete())) {
+            for (String userName : userNames) {
+                if (userName != null) {
+                    userRoles.put(userName, doGetExternalRoleListOfUser(userName));
+                }
+            }
+            return userRoles;
+        }
+
+        // requested user names keyed by user cache key.
+        Map<String, String> pendingUsers = new LinkedHashMap<>();
+        for (String userName : userNames) {
+            if (userName == null || userName.trim().isEmpty()) {
+                continue;
+            }
+            if (userRolesCache != null) {
+                List<String> cachedRoles = userRolesCache.get(getUserCacheKey(userName));
+                if (cachedRoles != null) {
+                    userRoles.put(userName, cachedRoles.toArray(new String[cachedRoles.size()]));
+                    continue;
+                }
+            }
+            pendingUsers.putIfAbsent(getUserCacheKey(userName), userName);
+        }
+        if (pendingUsers.isEmpty()) {
+            return userRoles;
+        }
+
+        Map<String, List<String>> foundRoles = new LinkedHashMap<>();
+        // users whose roles could not be read from the member lists, they are looked up one by one.
+        Set<String> unresolvedUsers = new LinkedHashSet<>();
+        DirContext dirContext = connectionSource.getContext();
+        try {
+            // users keyed by the membership value groups have for them.
+            Map<Object, String> members = new LinkedHashMap<>();
+            Map<String, String> membershipValues = new HashMap<>();
+            Map<String, String> memberValues = new HashMap<>();
+            for (Map.Entry<String, String> user : resolveUserDNs(pendingUsers, dirContext).entrySet()) {
+                LdapName userDN = getLdapName(user.getValue());
+                members.put(getMembershipKey(userDN), user.getKey());
+                membershipValues.put(user.getKey(), getMembershipValue(userDN));
+                memberValues.put(user.getKey(), isMemberUid()
+                        ? userDN.getRdn(userDN.size() - 1).getValue().toString() : userDN.toString());
+            }
+            for (String userName : pendingUsers.values()) {
+                foundRoles.put(userName, new ArrayList<>());
+            }
+
+            List<String> memberUsers = new ArrayList<>(members.values());
+            for (int from = 0; from < memberUsers.size(); from += batchMembershipSearchChunkSize) {
+                List<String> chunk = memberUsers.subList(from,
+                        Math.min(from + batchMembershipSearchChunkSize, memberUsers.size()));
+                readRolesOfMembers(chunk, membershipValues, memberValues, members, foundRoles, unresolvedUsers,
+                        dirContext);
+            }
+            for (String userName : unresolvedUsers) {
+                foundRoles.put(userName, readRolesOfMember(membershipValues.get(userName), dirContext));
+            }
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+
+        for (Map.Entry<String, List<String>> entry : foundRoles.entrySet()) {
+            String userName = entry.getKey();
+            String[] roles = entry.getValue().toArray(new String[entry.getValue().size()]);
+            if (userRolesCache != null) {
+                userRolesCache.put(getUserCacheKey(userName), internRoleList(roles));
+            }
+            userRoles.put(userName, roles);
+        }
+        return userRoles;
+    }
+
+    /*
+     * Searches the groups that have any of the users as a member, and adds each group to the roles of the users
+     * in its member list. Only the member values of the chunk are asked for, with the matched values control, so
+     * that the full member lists of large groups are not read from servers that support it. When the member list
+     * of a group is not returned, eg: by the range retrieval of Active Directory, the users of the chunk are marked
+     * as unresolved.
+     *
+     * membershipValues are escaped for a filter, memberValues are the same values as they are.
+     */
+    private void readRolesOfMembers(List<String> chunk, Map<String, String> membershipValues,
+                                    Map<String, String> memberValues, Map<Object, String> members,
+                                    Map<String, List<String>> foundRoles, Set<String> unresolvedUsers,
+                                    DirContext dirContext) throws UserStoreException {
+        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+        String membershipProperty = userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
+        StringBuilder searchFilter = new StringBuilder("(&")
+                .append(userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER)).append("(|");
+        List<String> chunkValues = new ArrayList<>(chunk.size());
+        for (String userName : chunk) {
+            searchFilter.append('(').append(membershipProperty).append('=')
+                    .append(membershipValues.get(userName)).append(')');
+            chunkValues.add(memberValues.get(userName));
+        }
+        searchFilter.append("))");
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{roleNameProperty, membershipProperty});
+        String filter = searchFilter.toString();
+        Control matchedValues = new MatchedValuesControl(membershipProperty, chunkValues);
+        String[] searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE)
+                .split(CommonConstants.XML_PATTERN_SEPERATOR);
+
+        try {
+            List<List<SearchResult>> baseGroups;
+            if (isFanOut(searchBases)) {
+                baseGroups = searchBaseExecutor.searchAll(searchBases, dirContext,
+                        (searchBase, context) -> searchGroups(searchBase, filter, copySearchControls(searchCtls),
+                                matchedValues, context));
+            } else {
+                baseGroups = new ArrayList<>();
+                for (String searchBase : searchBases) {
+                    baseGroups.add(searchGroups(searchBase, filter, searchCtls, matchedValues, dirContext));
+                }
+            }
+
+            for (List<SearchResult> groups : baseGroups) {
+                for (SearchResult group : groups) {
+                    Attributes attributes = group.getAttributes();
+                    Attribute roleName = attributes == null ? null : attributes.get(roleNameProperty);
+                    if (roleName == null) {
+                        continue;
+                    }
+                    Attribute groupMembers = attributes.get(membershipProperty);
+                    if (groupMembers == null) {
+                        unresolvedUsers.addAll(chunk);
+                        continue;
+                    }
+                    for (NamingEnumeration<?> values = groupMembers.getAll(); values.hasMoreElements(); ) {
+                        Object value = values.nextElement();
+                        String userName = value instanceof String ? members.get(getMembershipKey((String) value))
+                                : null;
+                        if (userName != null) {
+                            for (NamingEnumeration<?> names = roleName.getAll(); names.hasMoreElements(); ) {
+                                foundRoles.get(userName).add((String) names.nextElement());
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while reading the roles of " + chunk.size() + " users";
+            if (log.isDebugEnabled()) {
+                log.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        }
+    }
+
+    /*
+     * Searches the names of the groups that have the user as a member, on the connection shared by the batch. Only
+     * the group names are returned, for users of groups whose member lists were not returned in full.
+     */
+    private List<String> readRolesOfMember(String membershipValue, DirContext dirContext)
+            throws UserStoreException {
+        String roleNameProperty = userStoreProperties.get(LDAPConstants.GROUP_NAME_ATTRIBUTE);
+        String filter = "(&" + userStoreProperties.get(LDAPConstants.GROUP_NAME_LIST_FILTER) + "("
+                + userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE) + "=" + membershipValue + "))";
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{roleNameProperty});
+        String[] searchBases = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE)
+                .split(CommonConstants.XML_PATTERN_SEPERATOR);
+
+        try {
+            List<List<SearchResult>> baseGroups;
+            if (isFanOut(searchBases)) {
+                baseGroups = searchBaseExecutor.searchAll(searchBases, dirContext,
+                        (searchBase, context) -> searchGroups(searchBase, filter, copySearchControls(searchCtls),
+                                context));
+            } else {
+                baseGroups = new ArrayList<>();
+                for (String searchBase : searchBases) {
+                    baseGroups.add(searchGroups(searchBase, filter, searchCtls, dirContext));
+                }
+            }
+
+            List<String> roles = new ArrayList<>();
+            for (List<SearchResult> groups : baseGroups) {
+                for (SearchResult group : groups) {
+                    Attributes attributes = group.getAttributes();
+                    Attribute roleName = attributes == null ? null : attributes.get(roleNameProperty);
+                    if (roleName == null) {
+                        continue;
+                    }
+                    for (NamingEnumeration<?> names = roleName.getAll(); names.hasMoreElements(); ) {
+                        roles.add((String) names.nextElement());
+                    }
+                }
             }
+            return roles;
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while reading the roles of member " + membershipValue;
             if (log.isDebugEnabled()) {
-                log.debug("value after escaping special characters in " + text + " : " + sb.toString());
+                log.debug(errorMessage, e);
             }
-            return sb.toString();
-        } else {
-            return text;
+            throw new UserStoreException(errorMessage, e);
         }
-
     }
 
-    private String escapeDNForSearch(String dn) {
-        boolean replaceEscapeCharacters = true;
-
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
+    /*
+     * Searches the groups of a search base with the request control set on the connection for this search only.
+     */
+    private List<SearchResult> searchGroups(String searchBase, String searchFilter, SearchControls searchCtls,
+                                            Control requestControl, DirContext dirContext) throws NamingException {
+        if (!(dirContext instanceof LdapContext)) {
+            return searchGroups(searchBase, searchFilter, searchCtls, dirContext);
+        }
+        LdapContext ldapContext = (LdapContext) dirContext;
+        ldapContext.setRequestControls(new Control[]{requestControl});
+        try {
+            return searchGroups(searchBase, searchFilter, searchCtls, dirContext);
+        } finally {
+            ldapContext.setRequestControls(null);
+        }
+    }
 
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
+    private List<SearchResult> searchGroups(String searchBase, String searchFilter, SearchControls searchCtls,
+                                            DirContext dirContext) throws NamingException {
+        try {
+            List<SearchResult> groups = readSearchResults(dirContext.search(escapeDNForSearch(searchBase),
+                    searchFilter, searchCtls));
+            return groups == null ? Collections.emptyList() : groups;
+        } catch (NameNotFoundException e) {
+            // the search base does not exist.
+            log.debug(e.getMessage(), e);
+        } catch (PartialResultException e) {
+            // can be due to referrals in AD. so just ignore error
+            if (!isIgnorePartialResultException()) {
+                throw e;
+            }
             if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
+                log.debug("Error occurred while searching groups for filter : " + searchFilter, e);
             }
         }
-        if (replaceEscapeCharacters) {
-            return dn.replace("\\\\", "\\\\\\").replace("\\\"", "\\\\\"");
-        } else {
-            return dn;
-        }
+        return Collections.emptyList();
     }
 
-    private String escapeSpecialCharactersForFilterWithStarAsRegex(String dnPartial) {
-        boolean replaceEscapeCharacters = true;
+    /*
+     * Returns the DNs of the users that exist, keyed by user name. DNs missing from the DN cache are searched
+     * for several users at a time, and users the search does not find are looked up one by one, since they may
+     * only be found through the user DN patterns.
+     */
+    private Map<String, String> resolveUserDNs(Map<String, String> users, DirContext dirContext)
+            throws UserStoreException {
+        Map<String, String> userDNs = new LinkedHashMap<>();
+        String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
+        if (userDNPattern != null && userDNPattern.trim().length() > 0
+                && !userDNPattern.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
+            for (String userName : users.values()) {
+                userDNs.put(userName, MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName)));
+            }
+            return userDNs;
+        }
 
-        String replaceEscapeCharactersAtUserLoginString = userStoreProperties
-                .get(CommonConstants.PROPERTY_REPLACE_ESCAPE_CHARACTERS_AT_USER_LOGIN);
+        Map<String, String> uncachedUsers = new LinkedHashMap<>();
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            String cachedUserDN = getCachedUserDN(user.getValue());
+            if (cachedUserDN == null) {
+                uncachedUsers.put(user.getKey(), user.getValue());
+            } else if (!UNRESOLVED_USER_DN.equals(cachedUserDN)) {
+                userDNs.put(user.getValue(), cachedUserDN);
+            }
+        }
 
-        if (replaceEscapeCharactersAtUserLoginString != null) {
-            replaceEscapeCharacters = Boolean
-                    .parseBoolean(replaceEscapeCharactersAtUserLoginString);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{userStoreProperties.get(LDAPConstants.USER_NAME_ATTRIBUTE)});
+        String[] searchBases = userStoreProperties.get(LDAPConstants.USER_SEARCH_BASE)
+                .split(CommonConstants.XML_PATTERN_SEPERATOR);
+        List<String> uncachedUserNames = new ArrayList<>(uncachedUsers.values());
+        Map<String, String> foundDNs = new HashMap<>();
+        try {
+            for (int from = 0; from < uncachedUserNames.size(); from += batchAttributeSearchChunkSize) {
+                List<String> chunk = uncachedUserNames.subList(from,
+                        Math.min(from + batchAttributeSearchChunkSize, uncachedUserNames.size()));
+                foundDNs.putAll(searchUsers(searchBases, getUserNamesSearchFilter(chunk), searchCtls, dirContext,
+                        uncachedUsers, SearchResult::getNameInNamespace));
+            }
+        } catch (NamingException e) {
+            String errorMessage = "Error occurred while searching the DNs of " + uncachedUsers.size() + " users";
             if (log.isDebugEnabled()) {
-                log.debug("Replace escape characters configured to: "
-                        + replaceEscapeCharactersAtUserLoginString);
+                log.debug(errorMessage, e);
             }
+            throw new UserStoreException(errorMessage, e);
         }
 
-        if (replaceEscapeCharacters) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < dnPartial.length(); i++) {
-                char currentChar = dnPartial.charAt(i);
-                switch (currentChar) {
-                    case '\\':
-                        if (dnPartial.charAt(i + 1) == '*') {
-                            sb.append("\\2a");
-                            i++;
-                            break;
-                        }
-                        sb.append("\\5c");
-                        break;
-                    case '(':
-                        sb.append("\\28");
-                        break;
-                    case ')':
-                        sb.append("\\29");
-                        break;
-                    case '\u0000':
-                        sb.append("\\00");
-                        break;
-                    default:
-                        sb.append(currentChar);
+        for (String userName : uncachedUserNames) {
+            String userDN = foundDNs.get(userName);
+            if (userDN != null) {
+                if (userDNCache != null) {
+                    userDNCache.put(getUserCacheKey(userName), userDN);
                 }
+            } else {
+                userDN = resolveNameInSpaceForUserName(userName, dirContext);
+            }
+            if (userDN != null) {
+                userDNs.put(userName, userDN);
             }
-            return sb.toString();
-        } else {
-            return dnPartial;
         }
+        return userDNs;
     }
 
-    private boolean isIgnorePartialResultException() {
-
-        return PROPERTY_REFERRAL_IGNORE.equals(userStoreProperties.get(LDAPConstants.PROPERTY_REFERRAL));
+    /*
+     * Users mostly share the same few groups, so both the role names and the role lists are kept as one shared
+     * instance per distinct value in the cache.
+     */
+    private List<String> internRoleList(String[] roles) {
+        String[] internedRoles = new String[roles.length];
+        for (int i = 0; i < roles.length; i++) {
+            internedRoles[i] = roleNameInterner.intern(roles[i]);
+        }
+        return roleListInterner.intern(Collections.unmodifiableList(Arrays.asList(internedRoles)));
     }
 
     @Override
-    public String[] doGetExternalRoleListOfUser(String userName) throws UserStoreException {
+    public void invalidateUserCache(String userName) {
+        String cacheKey = getUserCacheKey(userName);
+        if (userNameFilter != null) {
+            // the user may have been created since the filter was built.
+            userNameFilter.add(userName);
+        }
+        if (userDNCache != null) {
+            userDNCache.remove(cacheKey);
+        }
+        if (userRolesCache != null) {
+            userRolesCache.remove(cacheKey);
+        }
+        if (credentialCache != null) {
+            credentialCache.remove(cacheKey);
+        }
+        if (dnPatternSelector != null) {
+            dnPatternSelector.forget(cacheKey);
+        }
+        if (userAttributeCache != null) {
+            userAttributeCache.remove(cacheKey);
+        }
+    }
 
-        // Get the effective search base
-        String searchBase = userStoreProperties.get(LDAPConstants.GROUP_SEARCH_BASE);
-        return getLDAPRoleListOfUser(userName, searchBase);
+    @Override
+    public void invalidateCaches() {
+        if (userDNCache != null) {
+            userDNCache.clear();
+        }
+        if (userRolesCache != null) {
+            userRolesCache.clear();
+            roleNameInterner.clear();
+            roleListInterner.clear();
+        }
+        if (userAttributeCache != null) {
+            userAttributeCache.clear();
+        }
+        if (credentialCache != null) {
+            credentialCache.clear();
+        }
+        if (dnPatternSelector != null) {
+            dnPatternSelector.clear();
+        }
+        if (groupGraph != null) {
+            groupGraph.clear();
+        }
+        if (userNameFilter != null) {
+            userNameFilter.requestRebuild();
+        }
+        if (replica != null) {
+            replica.requestFullSync();
+        }
     }
 
     @Override
     public boolean getConnectionStatus() {
         try {
-            connectionSource.getContext();
+            JNDIUtil.closeContext(connectionSource.getContext());
         } catch (UserStoreException e) {
             return false;
         }
         return true;
     }
 
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = connectionSource.getStatistics();
+        if (userDNCache != null) {
+            addStatistics(statistics, "userDNCache.", userDNCache.getStatistics());
+        }
+        if (userRolesCache != null) {
+            addStatistics(statistics, "userRolesCache.", userRolesCache.getStatistics());
+            statistics.put("userRolesCache.distinctRoleNames", (long) roleNameInterner.size());
+            statistics.put("userRolesCache.distinctRoleLists", (long) roleListInterner.size());
+        }
+        if (userAttributeCache != null) {
+            addStatistics(statistics, "userAttributeCache.", userAttributeCache.getStatistics());
+        }
+        if (credentialCache != null) {
+            addStatistics(statistics, "credentialCache.", credentialCache.getStatistics());
+        }
+        if (dnPatternSelector != null) {
+            addStatistics(statistics, "userDNPatterns.", dnPatternSelector.getStatistics());
+        }
+        if (groupGraph != null) {
+            addStatistics(statistics, "groupGraph.", groupGraph.getStatistics());
+        }
+        if (userNameFilter != null) {
+            addStatistics(statistics, "userNameFilter.", userNameFilter.getStatistics());
+        }
+        if (replica != null) {
+            addStatistics(statistics, "replica.", replica.getStatistics());
+        }
+        if (changeListener != null) {
+            addStatistics(statistics, "changeListener.", changeListener.getStatistics());
+        }
+        addStatistics(statistics, "batchAuthentication.", batchAuthenticator.getStatistics());
+        statistics.put("listingCursors.open", (long) listingCursors.size());
+        return statistics;
+    }
+
+    private void addStatistics(Map<String, Long> statistics, String prefix, Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            statistics.put(prefix + entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+        listingCursors.closeAll();
+        if (searchBaseExecutor != null) {
+            searchBaseExecutor.shutdown();
+        }
+        if (changeListener != null) {
+            changeListener.shutdown();
+        }
+        batchAuthenticator.shutdown();
+        if (replica != null) {
+            replica.shutdown();
+        }
+        if (userNameFilter != null) {
+            userNameFilter.shutdown();
+        }
+        if (userAttributeCache != null) {
+            userAttributeCache.close();
+        }
+        connectionSource.close();
+    }
+
     /*
      * {@inheritDoc}
      */
@@ -1011,53 +2932,139 @@ public class LDAPUserStoreManager implements UserStoreManager {
         String membershipProperty =
                 userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE);
         String userDNPattern = userStoreProperties.get(LDAPConstants.USER_DN_PATTERN);
-        String nameInSpace;
-        if (userDNPattern != null && userDNPattern.trim().length() > 0
-                && !userDNPattern.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
+        // the same connection is used to resolve the user DN and to search the groups
+        DirContext dirContext = connectionSource.getContext();
+        try {
+            String nameInSpace;
+            if (userDNPattern != null && userDNPattern.trim().length() > 0
+                    && !userDNPattern.contains(CommonConstants.XML_PATTERN_SEPERATOR)) {
 
-            nameInSpace = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
-        } else {
-            nameInSpace = this.getNameInSpaceForUserName(userName);
+                nameInSpace = MessageFormat.format(userDNPattern, escapeSpecialCharactersForDN(userName));
+            } else {
+                nameInSpace = this.getNameInSpaceForUserName(userName, dirContext);
+            }
+
+            String membershipValue;
+            if (nameInSpace != null) {
+                membershipValue = getMembershipValue(getLdapName(nameInSpace));
+            } else {
+                return new String[0];
+            }
+
+            String groupListFilter = searchFilter;
+            // with the in chain matching rule the directory also returns the groups the user is a nested member of.
+            String membershipMatch = matchingRuleInChain ? membershipProperty + ":" + MATCHING_RULE_IN_CHAIN + ":"
+                    : membershipProperty;
+            searchFilter =
+                    "(&" + searchFilter + "(" + membershipMatch + "=" + membershipValue + "))";
+            String returnedAtts[] = {roleNameProperty};
+            searchCtls.setReturningAttributes(returnedAtts);
+
+            if (debug) {
+                log.debug("Reading roles with the membershipProperty Property: " + membershipProperty);
+            }
+
+            if (groupGraph != null) {
+                list = groupGraph.resolve(getGroups(searchBase, searchFilter, searchCtls, roleNameProperty,
+                        dirContext), groupDN -> getGroups(searchBase, "(&" + groupListFilter + "("
+                        + membershipProperty + "=" + escapeLdapNameForFilter(getLdapName(groupDN)) + "))",
+                        searchCtls, roleNameProperty, dirContext));
+            } else {
+                list = this.getListOfNames(searchBase, searchFilter, searchCtls, roleNameProperty, dirContext);
+            }
+        } finally {
+            JNDIUtil.closeContext(dirContext);
+        }
+
+        String[] result = list.toArray(new String[list.size()]);
+
+        for (String rolename : result) {
+            log.debug("Found role: " + rolename);
         }
+        return result;
+    }
 
-        String membershipValue;
-        if (nameInSpace != null) {
+    /*
+     * Returns the groups matching the filter, with their DNs so that their parent groups can be searched.
+     */
+    private List<GroupGraph.Group> getGroups(String searchBases, String searchFilter, SearchControls searchCtls,
+                                             String roleNameProperty, DirContext dirContext)
+            throws UserStoreException {
+        List<GroupGraph.Group> groups = new ArrayList<>();
+        for (String searchBase : searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR)) {
+            NamingEnumeration<SearchResult> answer = null;
             try {
-                LdapName ldn = new LdapName(nameInSpace);
-                if (MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE))) {
-                    // membership value of posixGroup is not DN of the user
-                    List rdns = ldn.getRdns();
-                    membershipValue = ((Rdn) rdns.get(rdns.size() - 1)).getValue().toString();
-                } else {
-                    membershipValue = escapeLdapNameForFilter(ldn);
+                answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+                while (answer.hasMoreElements()) {
+                    SearchResult searchResult = answer.next();
+                    Attribute name = searchResult.getAttributes() == null ? null
+                            : searchResult.getAttributes().get(roleNameProperty);
+                    if (name != null && name.get() instanceof String) {
+                        groups.add(new GroupGraph.Group(searchResult.getNameInNamespace(), (String) name.get()));
+                    }
                 }
-            } catch (InvalidNameException e) {
-                log.error("Error while creating LDAP name from: " + nameInSpace);
-                throw new UserStoreException("Invalid naming exception for : " + nameInSpace, e);
+            } catch (PartialResultException e) {
+                // can be due to referrals in AD. so just ignore error
+                if (!isIgnorePartialResultException()) {
+                    throw new UserStoreException("Error occurred while searching groups for filter : "
+                            + searchFilter, e);
+                }
+                log.debug(e.getMessage(), e);
+            } catch (NamingException e) {
+                throw new UserStoreException("Error occurred while searching groups for filter : " + searchFilter,
+                        e);
+            } finally {
+                JNDIUtil.closeNamingEnumeration(answer);
             }
-        } else {
-            return new String[0];
         }
+        return groups;
+    }
 
-        searchFilter =
-                "(&" + searchFilter + "(" + membershipProperty + "=" + membershipValue + "))";
-        String returnedAtts[] = {roleNameProperty};
-        searchCtls.setReturningAttributes(returnedAtts);
-
-        if (debug) {
-            log.debug("Reading roles with the membershipProperty Property: " + membershipProperty);
+    private LdapName getLdapName(String nameInSpace) throws UserStoreException {
+        try {
+            return new LdapName(nameInSpace);
+        } catch (InvalidNameException e) {
+            log.error("Error while creating LDAP name from: " + nameInSpace);
+            throw new UserStoreException("Invalid naming exception for : " + nameInSpace, e);
         }
+    }
 
-        list = this.getListOfNames(searchBase, searchFilter, searchCtls, roleNameProperty);
-
+    /*
+     * Returns the value of the membership attribute of groups that have the user as a member, escaped for
+     * filters.
+     */
+    private String getMembershipValue(LdapName userName) {
+        if (isMemberUid()) {
+            // membership value of posixGroup is not DN of the user
+            return userName.getRdn(userName.size() - 1).getValue().toString();
+        }
+        return escapeLdapNameForFilter(userName);
+    }
 
+    private boolean isMemberUid() {
+        return MEMBER_UID.equals(userStoreProperties.get(LDAPConstants.MEMBERSHIP_ATTRIBUTE));
+    }
 
-        String[] result = list.toArray(new String[list.size()]);
+    /*
+     * Returns a key that is equal for equal membership values, so that the member values of a group can be
+     * matched to users. DNs are compared as LDAP names, which ignores case and spacing differences.
+     */
+    private Object getMembershipKey(String membershipValue) {
+        if (isMemberUid()) {
+            return membershipValue.toLowerCase(Locale.ENGLISH);
+        }
+        try {
+            return new LdapName(membershipValue);
+        } catch (InvalidNameException e) {
+            return null;
+        }
+    }
 
-        for (String rolename : result) {
-            log.debug("Found role: " + rolename);
+    private Object getMembershipKey(LdapName userName) {
+        if (isMemberUid()) {
+            return userName.getRdn(userName.size() - 1).getValue().toString().toLowerCase(Locale.ENGLISH);
         }
-        return result;
+        return userName;
     }
 
     /**
@@ -1065,67 +3072,79 @@ public class LDAPUserStoreManager implements UserStoreManager {
      * @param searchFilter
      * @param searchCtls
      * @param property
+     * @param dirContext
      * @return
-     * @throws UserStoreException
      */
     private List<String> getListOfNames(String searchBases, String searchFilter,
-                                        SearchControls searchCtls, String property)
-            throws UserStoreException {
+                                        SearchControls searchCtls, String property, DirContext dirContext) {
         boolean debug = log.isDebugEnabled();
         List<String> names = new ArrayList<>();
-        DirContext dirContext = null;
-        NamingEnumeration<SearchResult> answer = null;
 
         if (debug) {
             log.debug("Result for searchBase: " + searchBases + " searchFilter: " + searchFilter +
                     " property:" + property);
         }
 
-        try {
-            dirContext = connectionSource.getContext();
-
-            // handle multiple search bases
-            String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
-            for (String searchBase : searchBaseArray) {
+        // handle multiple search bases
+        String[] searchBaseArray = searchBases.split(CommonConstants.XML_PATTERN_SEPERATOR);
+        if (isFanOut(searchBaseArray)) {
+            try {
+                // each search base catches its own failure, so that the names of the other bases are kept.
+                for (List<String> baseNames : searchBaseExecutor.searchAll(searchBaseArray, dirContext,
+                        (searchBase, context) -> getListOfNamesOfBase(searchBase, searchFilter,
+                                copySearchControls(searchCtls), property, context))) {
+                    names.addAll(baseNames);
+                }
+            } catch (NamingException | UserStoreException e) {
+                log.warn("Error occurred while searching the search bases " + searchBases, e);
+            }
+            return names;
+        }
+        for (String searchBase : searchBaseArray) {
+            names.addAll(getListOfNamesOfBase(searchBase, searchFilter, searchCtls, property, dirContext));
+        }
+        return names;
+    }
 
-                try {
-                    answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
+    /*
+     * Searches the names of one search base. A failed search is logged and the names found before it are
+     * returned, so that a failing search base does not fail the search of the others.
+     */
+    private List<String> getListOfNamesOfBase(String searchBase, String searchFilter, SearchControls searchCtls,
+                                              String property, DirContext dirContext) {
+        boolean debug = log.isDebugEnabled();
+        List<String> names = new ArrayList<>();
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            answer = dirContext.search(escapeDNForSearch(searchBase), searchFilter, searchCtls);
 
-                    while (answer.hasMoreElements()) {
-                        SearchResult sr = answer.next();
-                        if (sr.getAttributes() != null) {
-                            Attribute attr = sr.getAttributes().get(property);
-                            if (attr != null) {
-                                for (Enumeration vals = attr.getAll(); vals.hasMoreElements(); ) {
-                                    String name = (String) vals.nextElement();
-                                    if (debug) {
-                                        log.debug("Found user: " + name);
-                                    }
-                                    names.add(name);
-                                }
+            while (answer.hasMoreElements()) {
+                SearchResult sr = answer.next();
+                if (sr.getAttributes() != null) {
+                    Attribute attr = sr.getAttributes().get(property);
+                    if (attr != null) {
+                        for (NamingEnumeration<?> vals = attr.getAll(); vals.hasMoreElements(); ) {
+                            String name = (String) vals.nextElement();
+                            if (debug) {
+                                log.debug("Found user: " + name);
                             }
+                            names.add(name);
                         }
                     }
-                } catch (NamingException e) {
-                    // ignore
-                    if (log.isDebugEnabled()) {
-                        log.debug(e);
-                    }
-                }
-
-                if (debug) {
-                    for (String name : names) {
-                        log.debug("Result  :  " + name);
-                    }
                 }
-
             }
-
-            return names;
+        } catch (NamingException e) {
+            log.warn("Error occurred while searching the search base " + searchBase, e);
         } finally {
             JNDIUtil.closeNamingEnumeration(answer);
-            JNDIUtil.closeContext(dirContext);
         }
+
+        if (debug) {
+            for (String name : names) {
+                log.debug("Result  :  " + name);
+            }
+        }
+        return names;
     }
 
 
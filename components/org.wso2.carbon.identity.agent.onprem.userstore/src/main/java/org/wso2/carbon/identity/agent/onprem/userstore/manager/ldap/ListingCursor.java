@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Server side state of a listing that a client reads page by page with continuation tokens. Each page is one
+ * page of an LDAP paged results search (RFC 2696). The cursor keeps a connection of its own, since the paged
+ * results cookie is only valid on the connection that started the search.
+ */
+class ListingCursor {
+
+    private static Log log = LogFactory.getLog(ListingCursor.class);
+
+    private final String id;
+    private final LdapContext context;
+    private final String[] searchBases;
+    private final String filter;
+    private final SearchControls searchControls;
+    private final EntryReader reader;
+    private int searchBaseIndex;
+    private byte[] cookie;
+    private int pageNumber;
+    private volatile long lastAccessTime;
+
+    ListingCursor(String id, LdapContext context, String[] searchBases, String filter,
+                  SearchControls searchControls, EntryReader reader) {
+        this.id = id;
+        this.context = context;
+        this.searchBases = searchBases;
+        this.filter = filter;
+        this.searchControls = searchControls;
+        this.reader = reader;
+        this.lastAccessTime = System.currentTimeMillis();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return the token to read the next page with.
+     */
+    synchronized String getToken() {
+        return id + "." + pageNumber;
+    }
+
+    synchronized boolean isExhausted() {
+        return searchBaseIndex >= searchBases.length;
+    }
+
+    long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    /**
+     * Reads the next page, at most pageSize entries of one search base. A page may hold fewer entries than asked
+     * for, when entries are skipped by the reader or a search base ends.
+     *
+     * @param token token of the page, rejected if it is not the token of the next page.
+     * @return names of the page, or null if the token is not the current one.
+     */
+    synchronized List<String> nextPage(String token, int pageSize) throws NamingException {
+        if (!getToken().equals(token)) {
+            return null;
+        }
+        lastAccessTime = System.currentTimeMillis();
+        List<String> names = new ArrayList<>();
+        if (isExhausted()) {
+            return names;
+        }
+
+        try {
+            context.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+        } catch (IOException e) {
+            NamingException namingException = new NamingException("Error while creating the paged results control");
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            answer = context.search(searchBases[searchBaseIndex], filter, searchControls);
+            while (answer.hasMoreElements()) {
+                String name = reader.read(answer.next());
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+        } finally {
+            JNDIUtil.closeNamingEnumeration(answer);
+        }
+
+        cookie = getCookie(context.getResponseControls());
+        if (cookie == null || cookie.length == 0) {
+            cookie = null;
+            searchBaseIndex++;
+        }
+        pageNumber++;
+        return names;
+    }
+
+    void close() {
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.error("Error in closing the connection of listing cursor " + id, e);
+        }
+    }
+
+    private static byte[] getCookie(Control[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl) control).getCookie();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the listed name of a search result entry.
+     */
+    interface EntryReader {
+
+        /**
+         * @return the name, or null if the entry is not listed.
+         */
+        String read(SearchResult searchResult) throws NamingException;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Open {@link ListingCursor}s, looked up by their continuation tokens. The number of open cursors is bounded,
+ * since each holds a connection, and cursors that are not read for the idle timeout are closed.
+ */
+class ListingCursors {
+
+    private static Log log = LogFactory.getLog(ListingCursors.class);
+    private static final int ID_LENGTH = 16;
+
+    private final ConcurrentHashMap<String, ListingCursor> cursors = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final int maxOpenCursors;
+    private final long idleTimeout;
+
+    ListingCursors(int maxOpenCursors, long idleTimeout) {
+        this.maxOpenCursors = maxOpenCursors;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Opens a cursor on the given connection. The connection is closed if the cursor cannot be opened.
+     */
+    ListingCursor open(LdapContext context, String[] searchBases, String filter, SearchControls searchControls,
+                       ListingCursor.EntryReader reader) throws UserStoreException {
+        closeIdle();
+        byte[] id = new byte[ID_LENGTH];
+        random.nextBytes(id);
+        ListingCursor cursor = new ListingCursor(Base64.encodeBase64URLSafeString(id), context, searchBases, filter,
+                searchControls, reader);
+        synchronized (cursors) {
+            if (cursors.size() >= maxOpenCursors) {
+                cursor.close();
+                throw new UserStoreException("Maximum number of open listing cursors " + maxOpenCursors
+                        + " is reached. Finish or abandon a listing before starting another.");
+            }
+            cursors.put(cursor.getId(), cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the cursor of the token, or null if there is no open cursor for it.
+     */
+    ListingCursor get(String token) {
+        closeIdle();
+        int separator = token.lastIndexOf('.');
+        if (separator <= 0) {
+            return null;
+        }
+        return cursors.get(token.substring(0, separator));
+    }
+
+    void close(ListingCursor cursor) {
+        if (cursors.remove(cursor.getId(), cursor)) {
+            cursor.close();
+        }
+    }
+
+    void closeAll() {
+        for (ListingCursor cursor : cursors.values()) {
+            close(cursor);
+        }
+    }
+
+    int size() {
+        return cursors.size();
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (ListingCursor cursor : cursors.values()) {
+            if (now - cursor.getLastAccessTime() > idleTimeout) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Closing idle listing cursor " + cursor.getId());
+                }
+                close(cursor);
+            }
+        }
+    }
+}
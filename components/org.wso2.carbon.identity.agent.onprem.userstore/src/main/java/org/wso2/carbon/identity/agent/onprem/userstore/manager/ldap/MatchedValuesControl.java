@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The matched values control (RFC 3876), which asks the server to return only the values of an attribute that
+ * match one of the given values. It is sent as not critical, so a server that does not support it returns all
+ * values of the attribute.
+ */
+class MatchedValuesControl extends BasicControl {
+
+    static final String OID = "1.2.826.0.1.3344810.2.3";
+    private static final long serialVersionUID = 6233127531342768716L;
+
+    private static final int SEQUENCE = 0x30;
+    private static final int OCTET_STRING = 0x04;
+    private static final int EQUALITY_MATCH = 0xA3;
+
+    /**
+     * @param attribute name of the attribute whose values are matched.
+     * @param values    values of the attribute to return, as they are, not escaped for a filter.
+     */
+    MatchedValuesControl(String attribute, List<String> values) {
+        super(OID, NONCRITICAL, encode(attribute, values));
+    }
+
+    /*
+     * ValuesReturnFilter ::= SEQUENCE OF SimpleFilterItem, with an equalityMatch item per value.
+     */
+    private static byte[] encode(String attribute, List<String> values) {
+        byte[] attributeDescription = encodeElement(OCTET_STRING, attribute.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream items = new ByteArrayOutputStream();
+        for (String value : values) {
+            byte[] assertionValue = encodeElement(OCTET_STRING, value.getBytes(StandardCharsets.UTF_8));
+            byte[] assertion = new byte[attributeDescription.length + assertionValue.length];
+            System.arraycopy(attributeDescription, 0, assertion, 0, attributeDescription.length);
+            System.arraycopy(assertionValue, 0, assertion, attributeDescription.length, assertionValue.length);
+            byte[] item = encodeElement(EQUALITY_MATCH, assertion);
+            items.write(item, 0, item.length);
+        }
+        return encodeElement(SEQUENCE, items.toByteArray());
+    }
+
+    private static byte[] encodeElement(int tag, byte[] content) {
+        ByteArrayOutputStream element = new ByteArrayOutputStream(content.length + 6);
+        element.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            element.write(length);
+        } else {
+            // long form, the number of length octets followed by the length, most significant octet first.
+            int octets = (Integer.SIZE - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            element.write(0x80 | octets);
+            for (int i = octets - 1; i >= 0; i--) {
+                element.write(length >>> (i * 8));
+            }
+        }
+        element.write(content, 0, content.length);
+        return element.toByteArray();
+    }
+}
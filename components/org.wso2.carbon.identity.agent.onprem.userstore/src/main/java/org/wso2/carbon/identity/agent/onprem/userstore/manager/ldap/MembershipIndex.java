@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Group memberships of users, with users and groups numbered from 0. Each user has a sorted array of the ids of
+ * its groups, and each group a set of the ids of its members. The member set of a group is a sorted array, or a
+ * bitmap when the group has so many members that the bitmap is the smaller of the two.
+ */
+class MembershipIndex {
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final int[][] userGroups;
+    // int[] or BitSet of the member ids of each group.
+    private final Object[] groupMembers;
+    private final long memberships;
+
+    /**
+     * @param userCount    number of users.
+     * @param groupMembers sorted member ids of each group, without duplicates.
+     */
+    MembershipIndex(int userCount, int[][] groupMembers) {
+        int[] groupCounts = new int[userCount];
+        long total = 0;
+        for (int[] members : groupMembers) {
+            for (int userId : members) {
+                groupCounts[userId]++;
+            }
+            total += members.length;
+        }
+        this.memberships = total;
+
+        // groups are added in id order, so the groups of each user come out sorted.
+        this.userGroups = new int[userCount][];
+        for (int userId = 0; userId < userCount; userId++) {
+            userGroups[userId] = groupCounts[userId] == 0 ? NO_IDS : new int[groupCounts[userId]];
+            groupCounts[userId] = 0;
+        }
+        this.groupMembers = new Object[groupMembers.length];
+        for (int groupId = 0; groupId < groupMembers.length; groupId++) {
+            int[] members = groupMembers[groupId];
+            for (int userId : members) {
+                userGroups[userId][groupCounts[userId]++] = groupId;
+            }
+            // an int takes 32 bits in a sorted array and a user takes one bit in a bitmap.
+            if ((long) members.length * Integer.SIZE > userCount) {
+                BitSet bitmap = new BitSet(userCount);
+                for (int userId : members) {
+                    bitmap.set(userId);
+                }
+                this.groupMembers[groupId] = bitmap;
+            } else {
+                this.groupMembers[groupId] = members.length == 0 ? NO_IDS : members;
+            }
+        }
+    }
+
+    /**
+     * @return the sorted ids of the groups of the user. The array must not be changed.
+     */
+    int[] getGroupIds(int userId) {
+        return userGroups[userId];
+    }
+
+    /**
+     * @return the sorted ids of the members of the group.
+     */
+    int[] getMemberIds(int groupId) {
+        Object members = groupMembers[groupId];
+        if (members instanceof BitSet) {
+            return ((BitSet) members).stream().toArray();
+        }
+        return ((int[]) members).clone();
+    }
+
+    boolean isMember(int userId, int groupId) {
+        Object members = groupMembers[groupId];
+        if (members instanceof BitSet) {
+            return ((BitSet) members).get(userId);
+        }
+        return Arrays.binarySearch((int[]) members, userId) >= 0;
+    }
+
+    /**
+     * @return the number of user and group pairs in the index.
+     */
+    long getMemberships() {
+        return memberships;
+    }
+}
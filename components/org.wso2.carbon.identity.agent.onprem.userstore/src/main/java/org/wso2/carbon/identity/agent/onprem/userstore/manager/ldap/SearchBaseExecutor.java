@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * Searches several search bases at the same time. The first search base is searched by the calling thread on
+ * the context of the caller, the others by a bounded set of threads, each on a pooled connection that is only
+ * taken if the pool can spare it without waiting. The bases that find no free thread or connection are searched by
+ * the calling thread on its own context after the first one, so a fan-out never waits for, or opens, a connection.
+ */
+class SearchBaseExecutor {
+
+    private final LDAPConnectionContext connectionSource;
+    private final ThreadPoolExecutor executor;
+
+    SearchBaseExecutor(LDAPConnectionContext connectionSource, int threads) {
+        this.connectionSource = connectionSource;
+        AtomicInteger threadCount = new AtomicInteger();
+        // no queue, a search that does not find an idle thread is searched by the caller rather than waiting with a
+        // connection borrowed.
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "ldap-search-base-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Searches all search bases.
+     *
+     * @return results of the search bases, in the order of the search bases.
+     */
+    <T> List<T> searchAll(String[] searchBases, DirContext context, SearchBaseTask<T> task)
+            throws NamingException, UserStoreException {
+        List<BaseSearch<T>> searches = submit(searchBases, task);
+        List<T> results = new ArrayList<>(searchBases.length);
+        try {
+            results.add(task.search(searchBases[0], context));
+            for (int i = 0; i < searches.size(); i++) {
+                results.add(getOrSearch(searches.get(i), searchBases[i + 1], context, task));
+            }
+            return results;
+        } finally {
+            cancel(searches);
+        }
+    }
+
+    /**
+     * Searches all search bases and returns the result of the first search base, in the order of the search bases,
+     * that has a result. Searches of later search bases that have not started yet are cancelled once that result is
+     * known. Searches that have started are left to finish, so that their connections go back to the pool in a
+     * clean state.
+     *
+     * @return the first non null result, or null if no search base has a result.
+     */
+    <T> T searchFirst(String[] searchBases, DirContext context, SearchBaseTask<T> task)
+            throws NamingException, UserStoreException {
+        List<BaseSearch<T>> searches = submit(searchBases, task);
+        try {
+            T result = task.search(searchBases[0], context);
+            for (int i = 0; result == null && i < searches.size(); i++) {
+                result = getOrSearch(searches.get(i), searchBases[i + 1], context, task);
+            }
+            return result;
+        } finally {
+            cancel(searches);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Hands the search bases after the first to idle threads, as long as there are idle threads and spare pooled
+     * connections. A null entry is a search base left to the caller.
+     */
+    private <T> List<BaseSearch<T>> submit(String[] searchBases, SearchBaseTask<T> task) throws UserStoreException {
+        List<BaseSearch<T>> searches = new ArrayList<>(searchBases.length - 1);
+        boolean saturated = false;
+        for (int i = 1; i < searchBases.length; i++) {
+            DirContext context = saturated ? null : connectionSource.tryGetContext();
+            if (context == null) {
+                saturated = true;
+                searches.add(null);
+                continue;
+            }
+            BaseSearch<T> search = new BaseSearch<>(searchBases[i], context, task);
+            try {
+                search.future = executor.submit(search);
+                searches.add(search);
+            } catch (RejectedExecutionException e) {
+                JNDIUtil.closeContext(context);
+                saturated = true;
+                searches.add(null);
+            }
+        }
+        return searches;
+    }
+
+    private static <T> T getOrSearch(BaseSearch<T> search, String searchBase, DirContext context,
+                                     SearchBaseTask<T> task) throws NamingException, UserStoreException {
+        if (search == null) {
+            return task.search(searchBase, context);
+        }
+        return get(search.future);
+    }
+
+    private static <T> T get(Future<T> future) throws NamingException, UserStoreException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while searching the search bases", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException) {
+                throw (NamingException) cause;
+            }
+            if (cause instanceof UserStoreException) {
+                throw (UserStoreException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UserStoreException(cause.getMessage(), cause);
+        }
+    }
+
+    private static <T> void cancel(List<BaseSearch<T>> searches) throws UserStoreException {
+        for (BaseSearch<T> search : searches) {
+            if (search != null) {
+                search.cancel();
+            }
+        }
+    }
+
+    /*
+     * A search base handed to a thread, together with the connection borrowed for it. Whoever claims it first, the
+     * thread to search or the caller to cancel, closes the connection.
+     */
+    private static final class BaseSearch<T> implements Callable<T> {
+
+        private final String searchBase;
+        private final DirContext context;
+        private final SearchBaseTask<T> task;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<T> future;
+
+        BaseSearch(String searchBase, DirContext context, SearchBaseTask<T> task) {
+            this.searchBase = searchBase;
+            this.context = context;
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws NamingException, UserStoreException {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return task.search(searchBase, context);
+            } finally {
+                JNDIUtil.closeContext(context);
+            }
+        }
+
+        void cancel() throws UserStoreException {
+            future.cancel(false);
+            if (claimed.compareAndSet(false, true)) {
+                JNDIUtil.closeContext(context);
+            }
+        }
+    }
+
+    /**
+     * A search of one search base.
+     */
+    interface SearchBaseTask<T> {
+        T search(String searchBase, DirContext context) throws NamingException, UserStoreException;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.util.JNDIUtil;
+
+import java.io.IOException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+
+/**
+ * Names of one search base, sorted by the directory server with the server side sort control (RFC 2891) and,
+ * if a page size is given, read page by page. Sources of several search bases are merged into one sorted
+ * listing by peeking at their next name.
+ */
+class SortedSearchSource {
+
+    private static Log log = LogFactory.getLog(SortedSearchSource.class);
+
+    private final LdapContext context;
+    private final String searchBase;
+    private final String filter;
+    private final SearchControls searchControls;
+    private final String sortAttribute;
+    private final int pageSize;
+    private final ListingCursor.EntryReader reader;
+    private NamingEnumeration<SearchResult> answer;
+    private String next;
+    private boolean exhausted;
+
+    /**
+     * @param context context of this source only, since the request controls are set on it.
+     */
+    SortedSearchSource(LdapContext context, String searchBase, String filter, SearchControls searchControls,
+                       String sortAttribute, int pageSize, ListingCursor.EntryReader reader) {
+        this.context = context;
+        this.searchBase = searchBase;
+        this.filter = filter;
+        this.searchControls = searchControls;
+        this.sortAttribute = sortAttribute;
+        this.pageSize = pageSize;
+        this.reader = reader;
+    }
+
+    /**
+     * Starts the search and reads the first name.
+     */
+    void open() throws NamingException {
+        search(null);
+        advance();
+    }
+
+    /**
+     * @return the next name of this source, or null if the source is exhausted.
+     */
+    String peek() {
+        return next;
+    }
+
+    /**
+     * Moves on to the following name.
+     */
+    void advance() throws NamingException {
+        next = null;
+        while (!exhausted) {
+            while (answer.hasMoreElements()) {
+                String name = reader.read(answer.next());
+                if (name != null) {
+                    next = name;
+                    return;
+                }
+            }
+            JNDIUtil.closeNamingEnumeration(answer);
+            answer = null;
+            byte[] cookie = pageSize > 0 ? getCookie(context.getResponseControls()) : null;
+            if (cookie == null || cookie.length == 0) {
+                exhausted = true;
+            } else {
+                search(cookie);
+            }
+        }
+    }
+
+    void close() {
+        JNDIUtil.closeNamingEnumeration(answer);
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.error("Error in closing the context of the sorted search of " + searchBase, e);
+        }
+    }
+
+    private void search(byte[] cookie) throws NamingException {
+        try {
+            // critical, since merging unsorted results would give a wrongly ordered listing.
+            Control sortControl = new SortControl(sortAttribute, Control.CRITICAL);
+            if (pageSize > 0) {
+                context.setRequestControls(new Control[]{sortControl,
+                        new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+            } else {
+                context.setRequestControls(new Control[]{sortControl});
+            }
+        } catch (IOException e) {
+            NamingException namingException = new NamingException("Error while creating the sort control");
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+        answer = context.search(searchBase, filter, searchControls);
+    }
+
+    private static byte[] getCookie(Control[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl) control).getCookie();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bloom filter of the user names of the directory, so that lookups of names that are certainly not users, eg:
+ * of credential stuffing, are answered without a directory search. The filter is rebuilt from a listing of all
+ * user names at every refresh interval, and names of users that change in between can be added to it.
+ * <p>
+ * A user created since the last rebuild and not added would be taken as unknown, so the filter is only used while
+ * the names of new users are being added as they are created, only after a rebuild asked for when that may not
+ * have been the case, and only while it is younger than the staleness bound. Names added while a rebuild lists the
+ * users are added to the rebuilt filter as well. Names are compared ignoring case, as the directory does.
+ */
+class UserNameFilter {
+
+    private static Log log = LogFactory.getLog(UserNameFilter.class);
+    // room for users added between two rebuilds, as a fraction of the users listed by the rebuild.
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Loader loader;
+    private final int bitsPerUser;
+    private final long refreshInterval;
+    private final long maxStaleness;
+    private final BooleanSupplier tracking;
+    private final ScheduledExecutorService scheduler;
+    private volatile Bits bits;
+    // rebuilds asked for, a filter built before the latest of them is not used.
+    private final AtomicLong rebuildRequests = new AtomicLong();
+    private volatile boolean rebuilding;
+    private final Queue<String> addedWhileRebuilding = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param loader          lists the user names of the directory.
+     * @param bitsPerUser     bits of the filter per user, 10 bits give about 1% false positives.
+     * @param refreshInterval time in milliseconds between two rebuilds.
+     * @param maxStaleness    time in milliseconds after the last rebuild that the filter is still used.
+     * @param tracking        tells if the names of users are added as soon as the users are created or changed.
+     */
+    UserNameFilter(Loader loader, int bitsPerUser, long refreshInterval, long maxStaleness,
+                   BooleanSupplier tracking) {
+        this.loader = loader;
+        this.tracking = tracking;
+        this.bitsPerUser = bitsPerUser;
+        this.refreshInterval = refreshInterval;
+        this.maxStaleness = maxStaleness;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldap-user-name-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts building the filter in the background. Until the first build is done, no name is taken as unknown.
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::rebuild, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Rebuilds the filter in the background now, instead of at the next refresh. The current filter is not used
+     * any more, since users may have been created without being added.
+     */
+    void requestRebuild() {
+        rebuildRequests.incrementAndGet();
+        try {
+            scheduler.execute(this::rebuild);
+        } catch (RejectedExecutionException e) {
+            log.debug("User name filter is shut down, rebuild is skipped", e);
+        }
+    }
+
+    /**
+     * @return true if the name is certainly not the name of a user. False if it may be, or if the filter is not
+     * built, is not kept current or is older than the staleness bound.
+     */
+    boolean isUnknown(String userName) {
+        Bits current = getCurrentBits();
+        if (current == null) {
+            return false;
+        }
+        if (current.mightContain(hash(userName))) {
+            passed.incrementAndGet();
+            return false;
+        }
+        rejected.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the directory has no user of the name, which the filter let through if it holds the name.
+     */
+    void recordNotFound(String userName) {
+        Bits current = getCurrentBits();
+        if (current != null && current.mightContain(hash(userName))) {
+            falsePositives.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the name of a user that was created or changed since the last rebuild.
+     */
+    void add(String userName) {
+        // noted before the current bits are read, so that a name added to bits being replaced is not lost.
+        if (rebuilding) {
+            addedWhileRebuilding.add(userName);
+        }
+        Bits current = bits;
+        if (current != null) {
+            current.put(hash(userName));
+        }
+    }
+
+    Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        Bits current = bits;
+        if (current != null) {
+            statistics.put("entries", current.entries.get());
+            statistics.put("bits", current.size);
+            statistics.put("hashFunctions", (long) current.hashFunctions);
+            statistics.put("expectedFalsePositivesPerMillion",
+                    Math.round(current.getExpectedFalsePositiveRate() * 1000000));
+            statistics.put("ageMilliseconds", System.currentTimeMillis() - current.buildTime);
+        }
+        statistics.put("rejected", rejected.get());
+        statistics.put("passed", passed.get());
+        statistics.put("falsePositives", falsePositives.get());
+        statistics.put("rebuilds", rebuilds.get());
+        statistics.put("failures", failures.get());
+        return statistics;
+    }
+
+    private Bits getCurrentBits() {
+        Bits current = bits;
+        if (current == null || System.currentTimeMillis() - current.buildTime > maxStaleness
+                || current.generation < rebuildRequests.get() || !tracking.getAsBoolean()) {
+            return null;
+        }
+        return current;
+    }
+
+    private void rebuild() {
+        addedWhileRebuilding.clear();
+        rebuilding = true;
+        try {
+            long generation = rebuildRequests.get();
+            long startTime = System.currentTimeMillis();
+            List<String> userNames = new ArrayList<>();
+            loader.loadUserNames(userNames::add);
+            Bits newBits = new Bits(Math.max((long) (userNames.size() * GROWTH_FACTOR), 1) * bitsPerUser,
+                    bitsPerUser, startTime, generation);
+            for (String userName : userNames) {
+                newBits.put(hash(userName));
+            }
+            bits = newBits;
+            rebuilding = false;
+            // users created after the listing passed them were added to the replaced bits.
+            String userName;
+            while ((userName = addedWhileRebuilding.poll()) != null) {
+                newBits.put(hash(userName));
+            }
+            rebuilds.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Built the user name filter of " + userNames.size() + " users in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        } catch (UserStoreException | RuntimeException e) {
+            // the current filter is kept, it is no longer used once it is older than the staleness bound.
+            failures.incrementAndGet();
+            log.error("Error occurred while building the user name filter", e);
+        } finally {
+            rebuilding = false;
+        }
+    }
+
+    /*
+     * 64 bit FNV-1a hash of the lower case name, finished with the MurmurHash3 mix so that all bits depend on
+     * all characters.
+     */
+    private static long hash(String userName) {
+        String key = userName.trim().toLowerCase(Locale.ENGLISH);
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Bits of one build of the filter. The bit positions of a name are derived from the two halves of its hash.
+     */
+    private static final class Bits {
+
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashFunctions;
+        private final long buildTime;
+        private final long generation;
+        private final AtomicLong entries = new AtomicLong();
+
+        private Bits(long size, int bitsPerUser, long buildTime, long generation) {
+            long words = (size + Long.SIZE - 1) / Long.SIZE;
+            if (words > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("User name filter of " + size + " bits is too large");
+            }
+            this.words = new AtomicLongArray((int) words);
+            this.size = words * Long.SIZE;
+            // number of hash functions with the lowest false positive rate for the bits per user.
+            this.hashFunctions = Math.max((int) Math.round(bitsPerUser * Math.log(2)), 1);
+            this.buildTime = buildTime;
+            this.generation = generation;
+        }
+
+        private void put(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = Math.floorMod(first + (long) i * second, size);
+                int word = (int) (bit / Long.SIZE);
+                long mask = 1L << (bit % Long.SIZE);
+                long value;
+                do {
+                    value = words.get(word);
+                } while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+            }
+            entries.incrementAndGet();
+        }
+
+        private boolean mightContain(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = Math.floorMod(first + (long) i * second, size);
+                if ((words.get((int) (bit / Long.SIZE)) & (1L << (bit % Long.SIZE))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double getExpectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-hashFunctions * (double) entries.get() / size), hashFunctions);
+        }
+    }
+
+    /**
+     * Lists the user names of the directory.
+     */
+    interface Loader {
+        void loadUserNames(UserNameHandler handler) throws UserStoreException;
+    }
+
+    /**
+     * Takes the user names listed by a {@link Loader}.
+     */
+    interface UserNameHandler {
+        void handle(String userName);
+    }
+}
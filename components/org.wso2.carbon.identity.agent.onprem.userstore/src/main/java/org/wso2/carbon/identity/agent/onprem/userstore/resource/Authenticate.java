@@ -16,13 +16,13 @@
 
 package org.wso2.carbon.identity.agent.onprem.userstore.resource;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
-import org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap.LDAPUserStoreManager;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerHolder;
 import org.wso2.carbon.identity.agent.onprem.userstore.model.User;
 
 import java.util.HashMap;
@@ -41,6 +41,12 @@ import javax.ws.rs.core.Response;
 @Path("/authenticate")
 public class Authenticate {
     private static Logger log = LoggerFactory.getLogger(Authenticate.class);
+    private final UserStoreManagerHolder userStoreManagerHolder;
+
+    public Authenticate(UserStoreManagerHolder userStoreManagerHolder) {
+        this.userStoreManagerHolder = userStoreManagerHolder;
+    }
+
         @POST
         @Produces(MediaType.APPLICATION_JSON)
         @Consumes(MediaType.APPLICATION_JSON)
@@ -48,8 +54,7 @@ public class Authenticate {
             try {
                 Boolean isAuthenticated;
                 Map<String , Boolean> returnMap = new HashMap<>();
-                UserStoreManager ldapUserStoreManager =
-                        new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+                UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
                 isAuthenticated = ldapUserStoreManager.doAuthenticate(user.getUsername(), user.getPassword());
                 returnMap.put("authenticated", isAuthenticated);
                 return Response.status(Response.Status.OK).entity(new JSONObject(returnMap).toString()).build();
@@ -59,4 +64,47 @@ public class Authenticate {
             }
 
         }
+
+    /**
+     * Authenticates a batch of users in one request. The result of each user is returned in the order of the
+     * request.
+     */
+    @POST
+    @Path("batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response authenticateBatch(User[] users) {
+        if (users == null || users.length == 0) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("No users to authenticate").build();
+        }
+        try {
+            String[] userNames = new String[users.length];
+            Object[] credentials = new Object[users.length];
+            for (int i = 0; i < users.length; i++) {
+                if (users[i] != null) {
+                    userNames[i] = users[i].getUsername();
+                    credentials[i] = users[i].getPassword();
+                }
+            }
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            Boolean[] results = ldapUserStoreManager.doAuthenticate(userNames, credentials);
+
+            JSONArray resultArray = new JSONArray();
+            for (int i = 0; i < results.length; i++) {
+                JSONObject result = new JSONObject();
+                result.put("username", userNames[i]);
+                result.put("authenticated", Boolean.TRUE.equals(results[i]));
+                if (results[i] == null) {
+                    result.put("error", true);
+                }
+                resultArray.put(result);
+            }
+            JSONObject returnObject = new JSONObject();
+            returnObject.put("results", resultArray);
+            return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
 }
@@ -20,11 +20,12 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.InvalidCursorException;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.ListingPage;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
-import org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap.LDAPUserStoreManager;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerHolder;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -39,21 +40,50 @@ import javax.ws.rs.core.Response;
 @Path("/groups")
 public class GroupResource {
     private static Logger log = LoggerFactory.getLogger(GroupResource.class);
+    private final UserStoreManagerHolder userStoreManagerHolder;
 
+    public GroupResource(UserStoreManagerHolder userStoreManagerHolder) {
+        this.userStoreManagerHolder = userStoreManagerHolder;
+    }
+
+    /**
+     * Lists role names, page by page with paged=true or a cursor, or streamed with stream=true, in the same way
+     * as the user listing.
+     */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAllRoleNames(@QueryParam("limit") String limit) {
+    public Response getAllRoleNames(@QueryParam("limit") String limit, @QueryParam("cursor") String cursor,
+                                    @QueryParam("paged") String paged, @QueryParam("stream") String stream) {
         try {
-            UserStoreManager ldapUserStoreManager =
-                    new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            if (Boolean.parseBoolean(stream)) {
+                int maxItemLimit = limit == null || limit.isEmpty() ? -1 : Integer.parseInt(limit);
+                return Response.status(Response.Status.OK).entity(new StreamedNameList("roles",
+                        handler -> ldapUserStoreManager.doGetRoleNames("*", maxItemLimit, handler))).build();
+            }
             if (limit == null || limit.isEmpty()) {
                 limit = String.valueOf(CommonConstants.MAX_USER_LIST);
             }
-            String[] usernames = ldapUserStoreManager.doGetRoleNames("*", Integer.parseInt(limit));
+            if (cursor != null && cursor.isEmpty()) {
+                cursor = null;
+            }
             JSONObject returnObject = new JSONObject();
+            String[] usernames;
+            if (cursor != null || Boolean.parseBoolean(paged)) {
+                ListingPage page = ldapUserStoreManager.doGetRoleNamesPage("*", Integer.parseInt(limit), cursor);
+                usernames = page.getNames();
+                if (page.getCursor() != null) {
+                    returnObject.put("cursor", page.getCursor());
+                }
+            } else {
+                usernames = ldapUserStoreManager.doGetRoleNames("*", Integer.parseInt(limit));
+            }
             JSONArray usernameArray = new JSONArray(usernames);
             returnObject.put("roles", usernameArray);
             return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+        } catch (InvalidCursorException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (UserStoreException e) {
             log.error(e.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
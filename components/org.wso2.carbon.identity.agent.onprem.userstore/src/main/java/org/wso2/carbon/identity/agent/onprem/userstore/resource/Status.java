@@ -17,13 +17,15 @@
 */
 package org.wso2.carbon.identity.agent.onprem.userstore.resource;
 
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
-import org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap.LDAPUserStoreManager;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerHolder;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
@@ -35,13 +37,17 @@ import javax.ws.rs.core.Response;
 @Path("/status")
 public class Status {
     private static Logger log = LoggerFactory.getLogger(UserResource.class);
+    private final UserStoreManagerHolder userStoreManagerHolder;
+
+    public Status(UserStoreManagerHolder userStoreManagerHolder) {
+        this.userStoreManagerHolder = userStoreManagerHolder;
+    }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response getUserAttributes() {
         try {
-            UserStoreManager ldapUserStoreManager =
-                    new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
             if (!ldapUserStoreManager.getConnectionStatus()) {
                 return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
             }
@@ -52,4 +58,35 @@ public class Status {
         }
     }
 
+    @GET
+    @Path("statistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStatistics() {
+        try {
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            JSONObject returnObject = new JSONObject(ldapUserStoreManager.getStatistics());
+            return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Reads the user store configuration file again and replaces the user store manager with one built from it.
+     * The current manager is kept if the file cannot be read or the new configuration is invalid.
+     */
+    @POST
+    @Path("reload")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response reload() {
+        try {
+            userStoreManagerHolder.reload(UserStoreConfiguration.getConfiguration().reload());
+            return Response.status(Response.Status.OK).build();
+        } catch (UserStoreException e) {
+            log.error("Error while reloading the user store configuration. " + e.getMessage(), e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
 }
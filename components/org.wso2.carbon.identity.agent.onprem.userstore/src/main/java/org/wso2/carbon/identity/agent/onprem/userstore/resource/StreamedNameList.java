@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.resource;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.NameHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Writes a listing as a JSON object with a single array field, name by name as the names are read from the user
+ * store, so that the listing is never held in memory as a whole. Since the response status is sent before the
+ * listing is read, a failure while listing cuts the response short, which leaves the JSON incomplete.
+ */
+class StreamedNameList implements StreamingOutput {
+
+    private static Logger log = LoggerFactory.getLogger(StreamedNameList.class);
+    private final String fieldName;
+    private final Listing listing;
+
+    StreamedNameList(String fieldName, Listing listing) {
+        this.fieldName = fieldName;
+        this.listing = listing;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        writer.write("{" + JSONObject.quote(fieldName) + ":[");
+        NameWriter nameWriter = new NameWriter(writer);
+        try {
+            listing.list(nameWriter);
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            throw new IOException("Listing of " + fieldName + " failed after " + nameWriter.count + " names", e);
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * A listing of the user store that passes its names to a handler.
+     */
+    interface Listing {
+        void list(NameHandler handler) throws UserStoreException;
+    }
+
+    private static final class NameWriter implements NameHandler {
+
+        private final Writer writer;
+        private long count;
+
+        private NameWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void handle(String name) throws IOException {
+            if (count > 0) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(name));
+            count++;
+        }
+    }
+}
@@ -20,13 +20,17 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.wso2.carbon.identity.agent.onprem.userstore.config.UserStoreConfiguration;
 import org.wso2.carbon.identity.agent.onprem.userstore.constant.CommonConstants;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.InvalidCursorException;
 import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.ListingPage;
 import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManager;
-import org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap.LDAPUserStoreManager;
+import org.wso2.carbon.identity.agent.onprem.userstore.manager.common.UserStoreManagerHolder;
+import org.wso2.carbon.identity.agent.onprem.userstore.model.UserAttributesRequest;
 import java.util.Map;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
@@ -42,6 +46,11 @@ import javax.ws.rs.core.Response;
 @Path("/users")
 public class UserResource {
     private static Logger log = LoggerFactory.getLogger(UserResource.class);
+    private final UserStoreManagerHolder userStoreManagerHolder;
+
+    public UserResource(UserStoreManagerHolder userStoreManagerHolder) {
+        this.userStoreManagerHolder = userStoreManagerHolder;
+    }
 
     @GET
     @Path("{username}")
@@ -54,8 +63,7 @@ public class UserResource {
                         entity("Required User Attributes are not Specified!").build();
             }
             String[] attributeArray = attributes.split(CommonConstants.ATTRIBUTE_LIST_SEPERATOR);
-            UserStoreManager ldapUserStoreManager =
-                    new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
             Map<String, String> propertyMap = ldapUserStoreManager.getUserPropertyValues(username, attributeArray);
             JSONObject returnObject = new JSONObject(propertyMap);
             return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
@@ -65,21 +73,79 @@ public class UserResource {
         }
     }
 
+    /**
+     * Reads the given attributes of several users at once. The result holds the attributes of each user that was
+     * found, keyed by user name.
+     */
+    @POST
+    @Path("attributes:batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response getUserAttributes(UserAttributesRequest request) {
+        try {
+            if (request == null || request.getUsernames() == null || request.getAttributes() == null
+                    || request.getAttributes().length == 0) {
+                return Response.status(Response.Status.BAD_REQUEST).
+                        entity("Required Users and User Attributes are not Specified!").build();
+            }
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            Map<String, Map<String, String>> userValues = ldapUserStoreManager.
+                    getUserPropertyValues(request.getUsernames(), request.getAttributes());
+            JSONObject returnObject = new JSONObject();
+            for (Map.Entry<String, Map<String, String>> entry : userValues.entrySet()) {
+                returnObject.put(entry.getKey(), new JSONObject(entry.getValue()));
+            }
+            return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Lists user names. With paged=true, or with the cursor of a previous page, the listing is returned page by
+     * page of at most limit names, and every page but the last one carries the cursor of the next page. With
+     * stream=true the names are written to the response as they are read from the user store, unsorted, up to
+     * limit or the configured maximum.
+     */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAllUserNames(@QueryParam("limit") String limit) {
+    public Response getAllUserNames(@QueryParam("limit") String limit, @QueryParam("cursor") String cursor,
+                                    @QueryParam("paged") String paged, @QueryParam("stream") String stream) {
         try {
+            if (Boolean.parseBoolean(stream)) {
+                int maxItemLimit = limit == null || limit.isEmpty() ? -1 : Integer.parseInt(limit);
+                UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+                return Response.status(Response.Status.OK).entity(new StreamedNameList("usernames",
+                        handler -> ldapUserStoreManager.doListUsers(CommonConstants.WILD_CARD_FILTER,
+                                maxItemLimit, handler))).build();
+            }
             if (limit == null || limit.isEmpty()) {
                 limit = String.valueOf(CommonConstants.MAX_USER_LIST);
             }
-            UserStoreManager ldapUserStoreManager =
-                    new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
-            String[] usernames = ldapUserStoreManager.
-                    doListUsers(CommonConstants.WILD_CARD_FILTER, Integer.parseInt(limit));
+            if (cursor != null && cursor.isEmpty()) {
+                cursor = null;
+            }
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
             JSONObject jsonObject = new JSONObject();
+            String[] usernames;
+            if (cursor != null || Boolean.parseBoolean(paged)) {
+                ListingPage page = ldapUserStoreManager.
+                        doListUsersPage(CommonConstants.WILD_CARD_FILTER, Integer.parseInt(limit), cursor);
+                usernames = page.getNames();
+                if (page.getCursor() != null) {
+                    jsonObject.put("cursor", page.getCursor());
+                }
+            } else {
+                usernames = ldapUserStoreManager.
+                        doListUsers(CommonConstants.WILD_CARD_FILTER, Integer.parseInt(limit));
+            }
             JSONArray usernameArray = new JSONArray(usernames);
             jsonObject.put("usernames", usernameArray);
             return Response.status(Response.Status.OK).entity(jsonObject.toString()).build();
+        } catch (InvalidCursorException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (UserStoreException e) {
             log.error(e.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
@@ -91,13 +157,39 @@ public class UserResource {
         }
     }
 
+    /**
+     * Reads the groups of several users at once. The request is a list of user names, and the result holds the
+     * groups of each user keyed by user name.
+     */
+    @POST
+    @Path("groups:batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response getUserRoles(String[] usernames) {
+        try {
+            if (usernames == null || usernames.length == 0) {
+                return Response.status(Response.Status.BAD_REQUEST).
+                        entity("Required Users are not Specified!").build();
+            }
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            Map<String, String[]> userRoles = ldapUserStoreManager.doGetExternalRoleListOfUsers(usernames);
+            JSONObject returnObject = new JSONObject();
+            for (Map.Entry<String, String[]> entry : userRoles.entrySet()) {
+                returnObject.put(entry.getKey(), new JSONArray(entry.getValue()));
+            }
+            return Response.status(Response.Status.OK).entity(returnObject.toString()).build();
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
+
     @GET
     @Path("{username}/groups")
     @Produces(MediaType.APPLICATION_JSON)
     public Response getUserRoles(@PathParam("username") String username) {
         try {
-            UserStoreManager ldapUserStoreManager =
-                    new LDAPUserStoreManager(UserStoreConfiguration.getConfiguration().getUserStoreProperties());
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
             String[]  roles = ldapUserStoreManager.doGetExternalRoleListOfUser(username);
             JSONObject jsonObject = new JSONObject();
             JSONArray usernameArray = new JSONArray(roles);
@@ -108,4 +200,21 @@ public class UserResource {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
         }
     }
+
+    @GET
+    @Path("{username}/groups/{groupname}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response isUserInRole(@PathParam("username") String username,
+                                 @PathParam("groupname") String groupname) {
+        try {
+            UserStoreManager ldapUserStoreManager = userStoreManagerHolder.getUserStoreManager();
+            boolean member = ldapUserStoreManager.doCheckIsUserInRole(username, groupname);
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("member", member);
+            return Response.status(Response.Status.OK).entity(jsonObject.toString()).build();
+        } catch (UserStoreException e) {
+            log.error(e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+        }
+    }
 }
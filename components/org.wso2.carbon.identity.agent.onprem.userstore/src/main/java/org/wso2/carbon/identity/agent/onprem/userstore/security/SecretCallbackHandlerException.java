@@ -22,6 +22,9 @@ package org.wso2.carbon.identity.agent.onprem.userstore.security;
  * Base Class for capturing any type of exception that occurs in SecretCallbackHandler.
  */
 class SecretCallbackHandlerException extends RuntimeException {
+
+    private static final long serialVersionUID = -953373486217830869L;
+
     /**
      * Constructs a new exception with the specified detail message.
      *
@@ -16,12 +16,65 @@
 
 package org.wso2.carbon.identity.agent.onprem.userstore.util;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Map;
+
 /**
  *
  */
 public class UserStoreUtils {
+    private static Log log = LogFactory.getLog(UserStoreUtils.class);
+
     public static String getProductHomePath() {
         return System.getProperty("user.dir");
     }
+
+    public static int getIntProperty(Map<String, String> properties, String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logInvalidValue(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLongProperty(Map<String, String> properties, String name, long defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logInvalidValue(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBooleanProperty(Map<String, String> properties, String name, boolean defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        if ("true".equalsIgnoreCase(value.trim())) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value.trim())) {
+            return false;
+        }
+        logInvalidValue(name, value, defaultValue);
+        return defaultValue;
+    }
+
+    private static void logInvalidValue(String name, String value, Object defaultValue) {
+        log.warn("Invalid value '" + value + "' of user store property " + name + ", using the default value "
+                + defaultValue);
+    }
 }
 
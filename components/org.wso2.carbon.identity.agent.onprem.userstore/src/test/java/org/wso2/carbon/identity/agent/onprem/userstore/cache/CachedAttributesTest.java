@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests of {@link CachedAttributes}.
+ */
+public class CachedAttributesTest {
+
+    @Test
+    public void testEachAttributeExpiresOnItsOwn() {
+        CachedAttributes attributes = CachedAttributes.EMPTY
+                .with(Collections.singletonMap("mail", "alice@example.com"), 1000, 0)
+                .with(Collections.singletonMap("description", ""), 2000, 500);
+        Assert.assertEquals(attributes.get("mail", 999), "alice@example.com");
+        Assert.assertEquals(attributes.get("description", 999), "");
+        // caching the description later did not extend the life of the mail.
+        Assert.assertNull(attributes.get("mail", 1000));
+        Assert.assertEquals(attributes.get("description", 1999), "");
+        Assert.assertNull(attributes.get("description", 2000));
+        Assert.assertNull(attributes.get("telephonenumber", 0));
+    }
+
+    @Test
+    public void testAddedValuesReplaceAndExpiredValuesAreDropped() {
+        Map<String, String> values = new HashMap<>();
+        values.put("mail", "alice@example.com");
+        values.put("description", "old");
+        CachedAttributes attributes = CachedAttributes.EMPTY.with(values, 1000, 0)
+                .with(Collections.singletonMap("cn", "alice"), 500, 0)
+                .with(Collections.singletonMap("description", "new"), 3000, 600);
+        Assert.assertEquals(attributes.size(), 2);
+        Assert.assertEquals(attributes.get("description", 2000), "new");
+        Assert.assertEquals(attributes.get("mail", 600), "alice@example.com");
+        Assert.assertNull(attributes.get("cn", 600));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link InMemoryUserStoreCache}.
+ */
+public class InMemoryUserStoreCacheTest {
+
+    private static final long TIME_TO_LIVE = 60000;
+
+    @Test
+    public void testPutAndGet() {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(10, TIME_TO_LIVE);
+        cache.put("alice", "uid=alice,ou=users");
+        Assert.assertEquals(cache.get("alice"), "uid=alice,ou=users");
+        Assert.assertNull(cache.get("bob"));
+        Assert.assertEquals(cache.getStatistics().get("hits"), Long.valueOf(1));
+        Assert.assertEquals(cache.getStatistics().get("misses"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(10, TIME_TO_LIVE);
+        cache.put("alice", "a", 1);
+        cache.put("bob", "b", 0);
+        Thread.sleep(5);
+        Assert.assertNull(cache.get("alice"));
+        Assert.assertNull(cache.get("bob"), "entries without time to live are not cached");
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getStatistics().get("expirations"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(3, TIME_TO_LIVE);
+        cache.put("a", "a");
+        Thread.sleep(2);
+        cache.put("b", "b");
+        Thread.sleep(2);
+        cache.put("c", "c");
+        Thread.sleep(2);
+        cache.get("a");
+        Thread.sleep(2);
+        cache.put("d", "d");
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.get("a"), "a");
+        Assert.assertEquals(cache.get("d"), "d");
+        Assert.assertTrue(cache.size() <= 3);
+    }
+
+    @Test
+    public void testExpiredEntriesAreEvictedFirst() throws Exception {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(2, TIME_TO_LIVE);
+        cache.put("a", "a");
+        cache.put("short", "short", 1);
+        Thread.sleep(5);
+        cache.put("b", "b");
+        Assert.assertEquals(cache.get("a"), "a");
+        Assert.assertEquals(cache.get("b"), "b");
+        Assert.assertEquals(cache.getStatistics().get("evictions"), Long.valueOf(0));
+    }
+
+    @Test
+    public void testComputeMergesWithTheLiveValue() throws Exception {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(10, TIME_TO_LIVE);
+        cache.compute("alice", value -> value == null ? "a" : value + "b", TIME_TO_LIVE);
+        cache.compute("alice", value -> value == null ? "a" : value + "b", TIME_TO_LIVE);
+        Assert.assertEquals(cache.get("alice"), "ab");
+        cache.put("bob", "expired", 1);
+        Thread.sleep(5);
+        cache.compute("bob", value -> value == null ? "fresh" : value, TIME_TO_LIVE);
+        Assert.assertEquals(cache.get("bob"), "fresh");
+        cache.compute("alice", value -> null, TIME_TO_LIVE);
+        Assert.assertNull(cache.get("alice"));
+    }
+
+    @Test
+    public void testConcurrentComputesAreNotLost() throws Exception {
+        InMemoryUserStoreCache<String, Integer> cache = new InMemoryUserStoreCache<>(10, TIME_TO_LIVE);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    cache.compute("count", value -> value == null ? 1 : value + 1, TIME_TO_LIVE);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(cache.get("count"), Integer.valueOf(4000));
+    }
+
+    @Test
+    public void testRemoveAndRemoveIf() {
+        InMemoryUserStoreCache<String, String> cache = new InMemoryUserStoreCache<>(10, TIME_TO_LIVE);
+        cache.put("alice", "a");
+        cache.put("albert", "b");
+        cache.put("bob", "c");
+        cache.remove("bob");
+        Assert.assertNull(cache.get("bob"));
+        cache.removeIf(key -> key.startsWith("ali"));
+        Assert.assertNull(cache.get("alice"));
+        Assert.assertEquals(cache.get("albert"), "b");
+        cache.close();
+        Assert.assertEquals(cache.size(), 0);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link Interner}.
+ */
+public class InternerTest {
+
+    @Test
+    public void testEqualValuesShareOneInstance() {
+        Interner<String> interner = new Interner<>(10);
+        String first = new String("admin");
+        String second = new String("admin");
+        Assert.assertSame(interner.intern(first), first);
+        Assert.assertSame(interner.intern(second), first);
+        Assert.assertNull(interner.intern(null));
+        Assert.assertEquals(interner.size(), 1);
+    }
+
+    @Test
+    public void testValuesBeyondTheMaximumAreNotHeld() {
+        Interner<String> interner = new Interner<>(1);
+        interner.intern("admin");
+        String other = new String("staff");
+        Assert.assertSame(interner.intern(other), other);
+        Assert.assertNotSame(interner.intern(new String("staff")), other);
+        Assert.assertEquals(interner.size(), 1);
+
+        interner.clear();
+        Assert.assertSame(interner.intern(other), other);
+        Assert.assertSame(interner.intern(new String("staff")), other);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests of {@link OffHeapUserStoreCache}.
+ */
+public class OffHeapUserStoreCacheTest {
+
+    private static final long TIME_TO_LIVE = 60000;
+
+    @Test
+    public void testValuesAreReadBack() {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        String large = repeat('x', 1000);
+        cache.put("empty", "");
+        cache.put("small", "value");
+        cache.put("large", large);
+        Assert.assertEquals(cache.get("empty"), "");
+        Assert.assertEquals(cache.get("small"), "value");
+        Assert.assertEquals(cache.get("large"), large);
+        Assert.assertNull(cache.get("missing"));
+        Assert.assertEquals(cache.getStatistics().get("valueBytes"), Long.valueOf(1005));
+    }
+
+    @Test
+    public void testAttributeMapIsStoredAsOneRecord() {
+        OffHeapUserStoreCache<String, Map<String, String>> cache = new OffHeapUserStoreCache<>(10, 1 << 20,
+                TIME_TO_LIVE, OffHeapUserStoreCache.STRING_MAP_CODEC);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("mail", "alice@example.com");
+        attributes.put("description", "");
+        attributes.put("displayname", "\u00c5lice \u00dcnicode");
+        attributes.put("jpegphoto", repeat('p', 300));
+        cache.put("alice", attributes);
+        Assert.assertEquals(cache.get("alice"), attributes);
+        Assert.assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testMapCodecRoundTrip() {
+        Map<String, String> empty = new HashMap<>();
+        Assert.assertEquals(OffHeapUserStoreCache.STRING_MAP_CODEC.decode(
+                OffHeapUserStoreCache.STRING_MAP_CODEC.encode(empty)), empty);
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            values.put("attribute" + i, repeat('v', i * 100));
+        }
+        byte[] bytes = OffHeapUserStoreCache.STRING_MAP_CODEC.encode(values);
+        Assert.assertEquals(OffHeapUserStoreCache.STRING_MAP_CODEC.decode(bytes), values);
+    }
+
+    @Test
+    public void testCachedAttributesKeepTheirExpiryTimes() {
+        OffHeapUserStoreCache<String, CachedAttributes> cache = new OffHeapUserStoreCache<>(10, 1 << 20,
+                TIME_TO_LIVE, OffHeapUserStoreCache.CACHED_ATTRIBUTES_CODEC);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("mail", "alice@example.com");
+        attributes.put("displayname", "\u00c5lice \u00dcnicode");
+        attributes.put("jpegphoto", repeat('p', 300));
+        cache.put("alice", CachedAttributes.EMPTY.with(attributes, 1000, 0)
+                .with(Collections.singletonMap("description", ""), Long.MAX_VALUE, 0));
+        CachedAttributes cached = cache.get("alice");
+        Assert.assertEquals(cached.size(), 4);
+        Assert.assertEquals(cached.get("displayname", 999), "\u00c5lice \u00dcnicode");
+        Assert.assertEquals(cached.get("jpegphoto", 999), repeat('p', 300));
+        Assert.assertNull(cached.get("mail", 1000));
+        Assert.assertEquals(cached.get("description", 1000), "");
+        Assert.assertEquals(OffHeapUserStoreCache.CACHED_ATTRIBUTES_CODEC.decode(
+                OffHeapUserStoreCache.CACHED_ATTRIBUTES_CODEC.encode(CachedAttributes.EMPTY)).size(), 0);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvictedWhenBytesRunOut() {
+        // room for 4 chunks of 60 bytes of data each.
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 256, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.put("a", repeat('a', 100));
+        cache.put("b", repeat('b', 100));
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", repeat('c', 100));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.get("a"), repeat('a', 100));
+        Assert.assertEquals(cache.get("c"), repeat('c', 100));
+        Assert.assertEquals(cache.getStatistics().get("evictions"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testValueLargerThanCacheIsNotCached() {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 256, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.put("a", "a");
+        cache.put("huge", repeat('h', 1000));
+        Assert.assertNull(cache.get("huge"));
+        Assert.assertEquals(cache.get("a"), "a");
+    }
+
+    @Test
+    public void testFreedChunksAreReused() {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.put("a", repeat('a', 500));
+        long allocatedBytes = cache.getStatistics().get("allocatedBytes");
+        cache.remove("a");
+        Assert.assertEquals(cache.getStatistics().get("usedBytes"), Long.valueOf(0));
+        cache.put("b", repeat('b', 500));
+        cache.put("b", repeat('c', 500));
+        Assert.assertEquals(cache.get("b"), repeat('c', 500));
+        Assert.assertEquals(cache.getStatistics().get("allocatedBytes"), Long.valueOf(allocatedBytes));
+    }
+
+    @Test
+    public void testClearKeepsSegmentsAndCloseReleasesThem() {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.put("a", repeat('a', 500));
+        long allocatedBytes = cache.getStatistics().get("allocatedBytes");
+        cache.clear();
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", repeat('a', 500));
+        Assert.assertEquals(cache.getStatistics().get("allocatedBytes"), Long.valueOf(allocatedBytes));
+        cache.close();
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getStatistics().get("allocatedBytes"), Long.valueOf(0));
+    }
+
+    @Test
+    public void testExpiredEntryIsNotReturned() throws Exception {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.put("a", "a", 1);
+        Thread.sleep(5);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(cache.getStatistics().get("expirations"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testComputeMergesWithTheLiveValue() throws Exception {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        cache.compute("alice", value -> value == null ? "a" : value + "b", TIME_TO_LIVE);
+        cache.compute("alice", value -> value == null ? "a" : value + "b", TIME_TO_LIVE);
+        Assert.assertEquals(cache.get("alice"), "ab");
+        cache.put("bob", "expired", 1);
+        Thread.sleep(5);
+        cache.compute("bob", value -> value == null ? "fresh" : value, TIME_TO_LIVE);
+        Assert.assertEquals(cache.get("bob"), "fresh");
+        cache.compute("alice", value -> null, TIME_TO_LIVE);
+        Assert.assertNull(cache.get("alice"));
+        Assert.assertEquals(cache.getStatistics().get("valueBytes"), Long.valueOf(5));
+    }
+
+    @Test
+    public void testRemoveIf() {
+        OffHeapUserStoreCache<String, String> cache = new OffHeapUserStoreCache<>(10, 1 << 20, TIME_TO_LIVE,
+                OffHeapUserStoreCache.STRING_CODEC);
+        for (String key : Arrays.asList("alice", "albert", "bob")) {
+            cache.put(key, key);
+        }
+        cache.removeIf(key -> key.startsWith("al"));
+        Assert.assertNull(cache.get("alice"));
+        Assert.assertNull(cache.get("albert"));
+        Assert.assertEquals(cache.get("bob"), "bob");
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.cache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link VerifiedCredentialCache}.
+ */
+public class VerifiedCredentialCacheTest {
+
+    @Test
+    public void testOnlyTheVerifiedCredentialMatches() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60000);
+        Assert.assertFalse(cache.verify("alice", "secret"));
+        cache.put("alice", "secret");
+        Assert.assertTrue(cache.verify("alice", "secret"));
+        Assert.assertFalse(cache.verify("alice", "Secret"));
+        Assert.assertFalse(cache.verify("alice", ""));
+        Assert.assertFalse(cache.verify("bob", "secret"));
+    }
+
+    @Test
+    public void testNewCredentialReplacesVerifiedOne() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60000);
+        cache.put("alice", "old");
+        cache.put("alice", "new");
+        Assert.assertTrue(cache.verify("alice", "new"));
+        Assert.assertFalse(cache.verify("alice", "old"));
+    }
+
+    @Test
+    public void testRemovedAndExpiredCredentialsDoNotMatch() throws Exception {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(10, 60000);
+        cache.put("alice", "secret");
+        cache.remove("alice");
+        Assert.assertFalse(cache.verify("alice", "secret"));
+
+        VerifiedCredentialCache shortLived = new VerifiedCredentialCache(10, 1);
+        shortLived.put("alice", "secret");
+        Thread.sleep(5);
+        Assert.assertFalse(shortLived.verify("alice", "secret"));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of {@link SingleFlight}.
+ */
+public class SingleFlightTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Test
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(TIMEOUT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> singleFlight.execute("alice", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "roles of alice";
+            }));
+            Assert.assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            Future<String> second = executor.submit(() -> singleFlight.execute("alice", () -> {
+                calls.incrementAndGet();
+                return "second call";
+            }));
+            awaitCoalesced(singleFlight, 1);
+            release.countDown();
+            Assert.assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS), "roles of alice");
+            Assert.assertEquals(second.get(TIMEOUT, TimeUnit.MILLISECONDS), "roles of alice");
+            Assert.assertEquals(calls.get(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsSharedAndNotKept() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(TIMEOUT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> singleFlight.execute("alice", () -> {
+                started.countDown();
+                await(release);
+                throw new UserStoreException("directory unavailable");
+            }));
+            Assert.assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            Future<String> second = executor.submit(() -> singleFlight.execute("alice", () -> "second call"));
+            awaitCoalesced(singleFlight, 1);
+            release.countDown();
+            assertFailsWithUserStoreException(first);
+            assertFailsWithUserStoreException(second);
+        } finally {
+            executor.shutdownNow();
+        }
+        // a failed call is not remembered, the next caller runs the call again.
+        Assert.assertEquals(singleFlight.execute("alice", () -> "next call"), "next call");
+        Assert.assertEquals(singleFlight.getStatistics().get("inFlight"), Long.valueOf(0));
+    }
+
+    @Test
+    public void testDifferentKeysAreNotShared() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(TIMEOUT);
+        Assert.assertEquals(singleFlight.execute("alice", () -> "a"), "a");
+        Assert.assertEquals(singleFlight.execute("bob", () -> "b"), "b");
+        Assert.assertEquals(singleFlight.getStatistics().get("calls"), Long.valueOf(2));
+        Assert.assertEquals(singleFlight.getStatistics().get("coalesced"), Long.valueOf(0));
+    }
+
+    @Test
+    public void testWaitingCallerTimesOut() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(50);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> singleFlight.execute("alice", () -> {
+                started.countDown();
+                await(release);
+                return "a";
+            }));
+            Assert.assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            try {
+                singleFlight.execute("alice", () -> "b");
+                Assert.fail("The waiting caller must time out");
+            } catch (UserStoreException e) {
+                Assert.assertEquals(singleFlight.getStatistics().get("timeouts"), Long.valueOf(1));
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws UserStoreException {
+        try {
+            latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("interrupted", e);
+        }
+    }
+
+    private static void awaitCoalesced(SingleFlight<String, String> singleFlight, long coalesced)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (singleFlight.getStatistics().get("coalesced") < coalesced) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "The caller did not join the call");
+            Thread.sleep(5);
+        }
+    }
+
+    private static void assertFailsWithUserStoreException(Future<String> future) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.fail("The failure of the call must be passed on");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof UserStoreException);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.common;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests of {@link UserStoreManagerHolder}.
+ */
+public class UserStoreManagerHolderTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String ADMIN_DN = "cn=admin";
+    private static final String ADMIN_PASSWORD = "admin";
+
+    private InMemoryDirectoryServer server;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+    }
+
+    @AfterClass
+    public void stopServer() {
+        server.shutDown(true);
+    }
+
+    @Test
+    public void testReloadReplacesTheManager() throws Exception {
+        UserStoreManagerHolder holder = new UserStoreManagerHolder();
+        holder.init(getUserStoreProperties());
+        try {
+            UserStoreManager manager = holder.getUserStoreManager();
+            holder.reload(getUserStoreProperties());
+            Assert.assertNotSame(holder.getUserStoreManager(), manager);
+            Assert.assertTrue(holder.getUserStoreManager().getConnectionStatus());
+        } finally {
+            holder.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedReloadKeepsTheCurrentManager() throws Exception {
+        UserStoreManagerHolder holder = new UserStoreManagerHolder();
+        holder.init(getUserStoreProperties());
+        try {
+            UserStoreManager manager = holder.getUserStoreManager();
+            try {
+                holder.reload(Collections.emptyMap());
+                Assert.fail("a configuration without a connection URL is invalid");
+            } catch (UserStoreException e) {
+                // expected.
+            }
+            Assert.assertSame(holder.getUserStoreManager(), manager);
+            Assert.assertTrue(manager.getConnectionStatus());
+        } finally {
+            holder.shutdown();
+        }
+    }
+
+    private Map<String, String> getUserStoreProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(LDAPConstants.CONNECTION_URL, "ldap://localhost:" + server.getListenPort());
+        properties.put(LDAPConstants.CONNECTION_NAME, ADMIN_DN);
+        properties.put(LDAPConstants.CONNECTION_PASSWORD, ADMIN_PASSWORD);
+        properties.put(LDAPConstants.USER_SEARCH_BASE, BASE_DN);
+        properties.put(LDAPConstants.USER_NAME_LIST_FILTER, "(objectClass=inetOrgPerson)");
+        properties.put(LDAPConstants.USER_NAME_SEARCH_FILTER, "(&(objectClass=inetOrgPerson)(uid=?))");
+        properties.put(LDAPConstants.USER_NAME_ATTRIBUTE, "uid");
+        properties.put(LDAPConstants.GROUP_SEARCH_BASE, BASE_DN);
+        properties.put(LDAPConstants.GROUP_NAME_LIST_FILTER, "(objectClass=groupOfNames)");
+        properties.put(LDAPConstants.GROUP_NAME_ATTRIBUTE, "cn");
+        properties.put(LDAPConstants.MEMBERSHIP_ATTRIBUTE, "member");
+        return properties;
+    }
+}
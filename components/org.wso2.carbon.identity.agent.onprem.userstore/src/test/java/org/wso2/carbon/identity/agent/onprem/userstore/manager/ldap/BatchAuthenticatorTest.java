@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of {@link BatchAuthenticator}.
+ */
+public class BatchAuthenticatorTest {
+
+    private BatchAuthenticator batchAuthenticator;
+
+    @BeforeMethod
+    public void setUp() {
+        batchAuthenticator = new BatchAuthenticator(4, 2);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        batchAuthenticator.shutdown();
+    }
+
+    @Test
+    public void testResultsAreInTheOrderOfTheUserNames() throws Exception {
+        String[] userNames = new String[50];
+        Object[] credentials = new Object[50];
+        for (int i = 0; i < userNames.length; i++) {
+            userNames[i] = "user" + i;
+            credentials[i] = i % 3 == 0 ? "password" + i : "wrong";
+        }
+        Boolean[] results = batchAuthenticator.authenticate(userNames, credentials,
+                (userName, credential) -> credential.equals("password" + userName.substring(4)));
+        for (int i = 0; i < results.length; i++) {
+            Assert.assertEquals(results[i], Boolean.valueOf(i % 3 == 0), userNames[i]);
+        }
+        Assert.assertEquals(batchAuthenticator.getStatistics().get("credentials"), Long.valueOf(50));
+    }
+
+    @Test
+    public void testFailedAuthenticationGivesNull() throws Exception {
+        Boolean[] results = batchAuthenticator.authenticate(new String[]{"a", "b", "c"},
+                new Object[]{"x", "x", "x"}, (userName, credential) -> {
+                    if (userName.equals("b")) {
+                        throw new UserStoreException("Directory unavailable");
+                    }
+                    return true;
+                });
+        Assert.assertEquals(results, new Boolean[]{true, null, true});
+        Assert.assertEquals(batchAuthenticator.getStatistics().get("errors"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testBindsOfABatchAreBounded() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        String[] userNames = new String[20];
+        Object[] credentials = new Object[20];
+        for (int i = 0; i < userNames.length; i++) {
+            userNames[i] = "user" + i;
+            credentials[i] = "password";
+        }
+        batchAuthenticator.authenticate(userNames, credentials, (userName, credential) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return true;
+        });
+        Assert.assertTrue(maxRunning.get() <= 2, "binds at a time: " + maxRunning.get());
+    }
+
+    @Test(expectedExceptions = UserStoreException.class)
+    public void testMismatchedCredentialsAreRejected() throws Exception {
+        batchAuthenticator.authenticate(new String[]{"a", "b"}, new Object[]{"x"}, (userName, credential) -> true);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link DNPatternSelector}.
+ */
+public class DNPatternSelectorTest {
+
+    @Test
+    public void testConfiguredOrderWithoutHistory() {
+        DNPatternSelector selector = new DNPatternSelector(3, 10, 60000);
+        Assert.assertEquals(selector.order("user"), new int[]{0, 1, 2});
+    }
+
+    @Test
+    public void testPatternsAreOrderedByHits() {
+        DNPatternSelector selector = new DNPatternSelector(3, 10, 60000);
+        selector.recordSuccess("a", 2);
+        selector.recordSuccess("b", 2);
+        selector.recordSuccess("c", 1);
+        // patterns with equal hits keep the configured order.
+        Assert.assertEquals(selector.order("other"), new int[]{2, 1, 0});
+    }
+
+    @Test
+    public void testRememberedPatternIsTriedFirst() {
+        DNPatternSelector selector = new DNPatternSelector(3, 10, 60000);
+        selector.recordSuccess("a", 2);
+        selector.recordSuccess("b", 2);
+        selector.recordSuccess("user", 1);
+        Assert.assertEquals(selector.order("user"), new int[]{1, 2, 0});
+    }
+
+    @Test
+    public void testForgottenUserFallsBackToHits() {
+        DNPatternSelector selector = new DNPatternSelector(2, 10, 60000);
+        selector.recordSuccess("a", 0);
+        selector.recordSuccess("b", 0);
+        selector.recordSuccess("user", 1);
+        selector.forget("user");
+        Assert.assertEquals(selector.order("user"), new int[]{0, 1});
+
+        selector.recordSuccess("user", 1);
+        selector.clear();
+        Assert.assertEquals(selector.order("user"), new int[]{0, 1});
+    }
+
+    @Test
+    public void testStatisticsCountHitsPerPattern() {
+        DNPatternSelector selector = new DNPatternSelector(2, 10, 60000);
+        selector.recordSuccess("a", 1);
+        selector.recordSuccess("b", 1);
+        Assert.assertEquals(selector.getStatistics().get("pattern0.hits"), Long.valueOf(0));
+        Assert.assertEquals(selector.getStatistics().get("pattern1.hits"), Long.valueOf(2));
+        Assert.assertEquals(selector.getStatistics().get("size"), Long.valueOf(2));
+    }
+}
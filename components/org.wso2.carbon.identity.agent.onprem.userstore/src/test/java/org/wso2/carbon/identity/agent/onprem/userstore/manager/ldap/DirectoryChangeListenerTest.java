@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.directory.Attribute;
+
+/**
+ * Tests of {@link DirectoryChangeListener}, and of the cache invalidation of {@link LDAPUserStoreManager} driven by
+ * it, against an embedded directory server. The embedded server does not support persistent search, so it is
+ * given the part of it the listener relies on by {@link PersistentSearchInterceptor}.
+ */
+public class DirectoryChangeListenerTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String USERS_DN = "ou=users," + BASE_DN;
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String ADMIN_DN = "cn=admin";
+    private static final String ADMIN_PASSWORD = "admin";
+    private static final String USER_FILTER = "(objectClass=inetOrgPerson)";
+    private static final long TIMEOUT = 10000;
+    private static final long POLL_INTERVAL = 100;
+
+    private final AtomicInteger modifications = new AtomicInteger();
+    private final PersistentSearchInterceptor persistentSearches = new PersistentSearchInterceptor();
+    private InMemoryDirectoryServer server;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        config.addInMemoryOperationInterceptor(persistentSearches);
+        server = new InMemoryDirectoryServer(config);
+        persistentSearches.server = server;
+        server.startListening();
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: " + USERS_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: users");
+        server.add("dn: " + GROUPS_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: groups");
+        addUser("alice");
+        addUser("bob");
+    }
+
+    @AfterClass
+    public void stopServer() {
+        persistentSearches.stopped.countDown();
+        server.shutDown(true);
+    }
+
+    @Test
+    public void testPersistentSearchReportsModifiedEntry() throws Exception {
+        BlockingQueue<String> changed = new LinkedBlockingQueue<>();
+        DirectoryChangeListener listener = createListener(DirectoryChangeListener.MODE_PERSISTENT_SEARCH, changed);
+        try {
+            // the search may not have reached the server yet, so the entry is modified until a change arrives.
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            do {
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "No change reported for alice");
+                modifyDescription("alice", "psearch-" + modifications.incrementAndGet());
+            } while (!isChanged(changed, "alice", POLL_INTERVAL * 5));
+        } finally {
+            listener.shutdown();
+        }
+    }
+
+    @Test
+    public void testPollingReportsNewEntry() throws Exception {
+        BlockingQueue<String> changed = new LinkedBlockingQueue<>();
+        DirectoryChangeListener listener = createListener(DirectoryChangeListener.MODE_POLLING, changed);
+        try {
+            // the first poll reports the entries changed shortly before the listener started.
+            awaitPolls(listener, 2);
+            addUser("carol");
+            Assert.assertTrue(isChanged(changed, "carol", TIMEOUT), "No change reported for carol");
+        } finally {
+            listener.shutdown();
+        }
+    }
+
+    @Test
+    public void testPersistentSearchInvalidatesCachedAttributes() throws Exception {
+        assertAttributeCacheInvalidated(DirectoryChangeListener.MODE_PERSISTENT_SEARCH);
+    }
+
+    @Test
+    public void testPollingInvalidatesCachedAttributes() throws Exception {
+        assertAttributeCacheInvalidated(DirectoryChangeListener.MODE_POLLING);
+    }
+
+    private void assertAttributeCacheInvalidated(String mode) throws Exception {
+        Map<String, String> properties = getUserStoreProperties();
+        properties.put(LDAPConstants.USER_ATTRIBUTE_CACHE_ENABLED, "true");
+        properties.put(LDAPConstants.CHANGE_LISTENER_MODE, mode);
+        properties.put(LDAPConstants.CHANGE_LISTENER_POLL_INTERVAL_MILLISECONDS, String.valueOf(POLL_INTERVAL));
+        properties.put(LDAPConstants.CHANGE_LISTENER_RECONNECT_DELAY_MILLISECONDS, String.valueOf(POLL_INTERVAL));
+        String[] attributes = {"description"};
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(properties);
+        try {
+            String cached = mode + "-" + modifications.incrementAndGet();
+            modifyDescription("bob", cached);
+            Assert.assertEquals(userStoreManager.getUserPropertyValues("bob", attributes).get("description"), cached);
+
+            // the listener may not be watching yet, so the entry is modified until the change is seen.
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (true) {
+                String current = mode + "-" + modifications.incrementAndGet();
+                modifyDescription("bob", current);
+                long retryAt = System.currentTimeMillis() + POLL_INTERVAL * 10;
+                while (System.currentTimeMillis() < retryAt) {
+                    if (current.equals(userStoreManager.getUserPropertyValues("bob", attributes)
+                            .get("description"))) {
+                        return;
+                    }
+                    Thread.sleep(POLL_INTERVAL / 2);
+                }
+                Assert.assertTrue(System.currentTimeMillis() < deadline, "Cached attributes of bob were not dropped");
+            }
+        } finally {
+            userStoreManager.close();
+        }
+    }
+
+    private DirectoryChangeListener createListener(String mode, BlockingQueue<String> changed) throws Exception {
+        DirectoryChangeListener listener = new DirectoryChangeListener(
+                new LDAPConnectionContext(getUserStoreProperties()), mode, "modifyTimestamp", POLL_INTERVAL,
+                POLL_INTERVAL, () -> { });
+        listener.watch(new String[]{USERS_DN}, USER_FILTER, new String[]{"uid"}, entry -> {
+            Attribute uid = entry.getAttributes().get("uid");
+            if (uid != null) {
+                changed.add((String) uid.get());
+            }
+        });
+        listener.start();
+        return listener;
+    }
+
+    private static void awaitPolls(DirectoryChangeListener listener, long polls) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (listener.getStatistics().get("polls") < polls) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "The directory was not polled");
+            Thread.sleep(POLL_INTERVAL / 2);
+        }
+    }
+
+    private static boolean isChanged(BlockingQueue<String> changed, String name, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        String changedName;
+        while ((changedName = changed.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null) {
+            if (name.equals(changedName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // changes are made over a connection, since only those go through the interceptors of the server.
+    private void addUser(String name) throws Exception {
+        try (LDAPConnection connection = server.getConnection()) {
+            connection.add("dn: uid=" + name + "," + USERS_DN, "objectClass: top", "objectClass: person",
+                    "objectClass: organizationalPerson", "objectClass: inetOrgPerson", "uid: " + name,
+                    "cn: " + name, "sn: " + name, "userPassword: " + name + "-password");
+        }
+    }
+
+    private void modifyDescription(String name, String description) throws Exception {
+        try (LDAPConnection connection = server.getConnection()) {
+            connection.modify("uid=" + name + "," + USERS_DN,
+                    new Modification(ModificationType.REPLACE, "description", description));
+        }
+    }
+
+    private Map<String, String> getUserStoreProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(LDAPConstants.CONNECTION_URL, "ldap://localhost:" + server.getListenPort());
+        properties.put(LDAPConstants.CONNECTION_NAME, ADMIN_DN);
+        properties.put(LDAPConstants.CONNECTION_PASSWORD, ADMIN_PASSWORD);
+        properties.put(LDAPConstants.USER_SEARCH_BASE, USERS_DN);
+        properties.put(LDAPConstants.USER_NAME_LIST_FILTER, USER_FILTER);
+        properties.put(LDAPConstants.USER_NAME_SEARCH_FILTER, "(&" + USER_FILTER + "(uid=?))");
+        properties.put(LDAPConstants.USER_NAME_ATTRIBUTE, "uid");
+        properties.put(LDAPConstants.GROUP_SEARCH_BASE, GROUPS_DN);
+        properties.put(LDAPConstants.GROUP_NAME_LIST_FILTER, "(objectClass=groupOfNames)");
+        properties.put(LDAPConstants.GROUP_NAME_ATTRIBUTE, "cn");
+        properties.put(LDAPConstants.MEMBERSHIP_ATTRIBUTE, "member");
+        return properties;
+    }
+
+    /*
+     * Keeps searches with the persistent search control open, without their initial results, and sends them the
+     * entries added or modified afterwards that are in their scope and match their filter.
+     */
+    private static final class PersistentSearchInterceptor extends InMemoryOperationInterceptor {
+
+        private static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private final List<InMemoryInterceptedSearchResult> openSearches = new CopyOnWriteArrayList<>();
+        // set while a change is sent, since the entries sent go through processSearchEntry as well.
+        private final ThreadLocal<Boolean> sendingChange = ThreadLocal.withInitial(() -> false);
+        private volatile InMemoryDirectoryServer server;
+
+        @Override
+        public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+            ReadOnlySearchRequest searchRequest = request.getRequest();
+            if (!searchRequest.hasControl(PERSISTENT_SEARCH_OID)) {
+                return;
+            }
+            // the control is critical and the server does not know it, so it is taken off and the search is
+            // marked by a control the server ignores.
+            List<Control> controls = new ArrayList<>();
+            for (Control control : searchRequest.getControlList()) {
+                if (!PERSISTENT_SEARCH_OID.equals(control.getOID())) {
+                    controls.add(control);
+                }
+            }
+            controls.add(new Control(PERSISTENT_SEARCH_OID + ".open", false));
+            request.setRequest(searchRequest.duplicate(controls.toArray(new Control[controls.size()])));
+        }
+
+        @Override
+        public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+            if (isPersistent(entry.getRequest()) && !sendingChange.get()) {
+                // changes only.
+                entry.setSearchEntry(null);
+            }
+        }
+
+        @Override
+        public void processSearchResult(InMemoryInterceptedSearchResult result) {
+            if (!isPersistent(result.getRequest())) {
+                return;
+            }
+            openSearches.add(result);
+            try {
+                // the search stays open until the server stops, the client ends it by closing its connection.
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            openSearches.remove(result);
+            result.setResult(new LDAPResult(result.getMessageID(), ResultCode.SUCCESS));
+        }
+
+        @Override
+        public void processAddResult(InMemoryInterceptedAddResult result) {
+            if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+                sendChange(result.getRequest().getDN());
+            }
+        }
+
+        @Override
+        public void processModifyResult(InMemoryInterceptedModifyResult result) {
+            if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+                sendChange(result.getRequest().getDN());
+            }
+        }
+
+        private void sendChange(String dn) {
+            try {
+                Entry entry = server.getEntry(dn);
+                if (entry == null) {
+                    return;
+                }
+                for (InMemoryInterceptedSearchResult search : openSearches) {
+                    ReadOnlySearchRequest request = search.getRequest();
+                    if (entry.matchesBaseAndScope(request.getBaseDN(), request.getScope())
+                            && request.getFilter().matchesEntry(entry)) {
+                        sendingChange.set(true);
+                        try {
+                            search.sendSearchEntry(entry);
+                        } catch (LDAPException e) {
+                            // the client closed the connection of the search.
+                            openSearches.remove(search);
+                        } finally {
+                            sendingChange.set(false);
+                        }
+                    }
+                }
+            } catch (LDAPException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static boolean isPersistent(ReadOnlySearchRequest request) {
+            return request.hasControl(PERSISTENT_SEARCH_OID + ".open");
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests of {@link DirectoryReplica}, loaded by a loader that returns the entries changed since a change value.
+ */
+public class DirectoryReplicaTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private FakeLoader loader;
+    private DirectoryReplica replica;
+
+    @BeforeMethod
+    public void setUp() {
+        loader = new FakeLoader();
+        loader.putUser("alice", "3");
+        loader.putUser("bob", "5");
+        loader.putUser("carol", "9");
+        loader.putGroup("admin", "4", "alice");
+        loader.putGroup("staff", "6", "alice", "bob", "uid=nested");
+        replica = new DirectoryReplica(loader, 10, 60000, 60000);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        replica.shutdown();
+    }
+
+    @Test
+    public void testFullLoad() throws Exception {
+        DirectoryReplica.Snapshot snapshot = start();
+        Assert.assertEquals(snapshot.getUser("bob").getName(), "bob");
+        Assert.assertEquals(snapshot.getUser("bob").getAttribute("mail"), "bob@example.com");
+        Assert.assertNull(snapshot.getUser("dave"));
+        Assert.assertEquals(snapshot.getRoles("alice"), Arrays.asList("admin", "staff"));
+        Assert.assertEquals(snapshot.getRoles("carol"), Collections.emptyList());
+        Assert.assertNull(snapshot.getRoles("dave"));
+        Assert.assertTrue(snapshot.isUserInRole("bob", "STAFF"));
+        Assert.assertFalse(snapshot.isUserInRole("bob", "admin"));
+        Assert.assertTrue(snapshot.isRolesComplete());
+        Assert.assertEquals(loader.userQueries.get(0), "full");
+    }
+
+    @Test
+    public void testDeltaLoadAsksForChangesSinceTheLatestChange() throws Exception {
+        start();
+        awaitDeltaSyncs(1);
+        // the latest change values of the users and of the groups, compared as numbers.
+        Assert.assertEquals(loader.userQueries.get(1), "9");
+        Assert.assertEquals(loader.groupQueries.get(1), "6");
+    }
+
+    @Test
+    public void testDeltaLoadAppliesChangedEntries() throws Exception {
+        start();
+        loader.putUser("dave", "10");
+        loader.putGroup("admin", "11", "alice", "dave");
+        // a load may have been under way while the entries changed, the one after it sees all of them.
+        awaitDeltaSyncs(2);
+        DirectoryReplica.Snapshot snapshot = replica.getSnapshot();
+
+        Assert.assertEquals(snapshot.getRoles("dave"), Collections.singletonList("admin"));
+        // the unchanged group keeps its members, which come from the index of the previous snapshot.
+        Assert.assertEquals(snapshot.getRoles("alice"), Arrays.asList("admin", "staff"));
+        Assert.assertEquals(snapshot.getRoles("bob"), Collections.singletonList("staff"));
+        Assert.assertEquals(loader.userQueries.get(loader.userQueries.size() - 1), "10");
+        Assert.assertEquals(replica.getStatistics().get("fullSyncs"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testRequestedFullSyncDropsDeletedEntries() throws Exception {
+        start();
+        loader.users.remove("bob");
+        // a delta load does not see the deletion.
+        awaitDeltaSyncs(2);
+        Assert.assertNotNull(replica.getSnapshot().getUser("bob"));
+
+        replica.requestFullSync();
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (replica.getStatistics().get("fullSyncs") < 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        Assert.assertNull(replica.getSnapshot().getUser("bob"));
+        Assert.assertEquals(replica.getSnapshot().getRoles("alice"), Arrays.asList("admin", "staff"));
+    }
+
+    @Test
+    public void testStaleSnapshotIsNotServed() throws Exception {
+        DirectoryReplica staleReplica = new DirectoryReplica(loader, 60000, 60000, -1);
+        try {
+            staleReplica.start();
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (staleReplica.getStatistics().get("fullSyncs") < 1 && System.currentTimeMillis() < end) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(staleReplica.getStatistics().get("users"), Long.valueOf(3));
+            Assert.assertNull(staleReplica.getSnapshot());
+        } finally {
+            staleReplica.shutdown();
+        }
+    }
+
+    @Test
+    public void testChangesAreComparedAsNumbersOrText() {
+        Assert.assertTrue(DirectoryReplica.compareChanges("10", "9") > 0);
+        Assert.assertTrue(DirectoryReplica.compareChanges("123456789012345678901", "99") > 0);
+        Assert.assertTrue(DirectoryReplica.compareChanges("20170101000000Z", "20161231235959Z") > 0);
+        Assert.assertEquals(DirectoryReplica.compareChanges("7", "7"), 0);
+    }
+
+    @Test
+    public void testListingsAreInNameOrder() throws Exception {
+        DirectoryReplica.Snapshot snapshot = start();
+        Assert.assertEquals(listUsers(snapshot, "*", 0), Arrays.asList("alice", "bob", "carol"));
+        Assert.assertEquals(listUsers(snapshot, "*", 2), Arrays.asList("alice", "bob"));
+        Assert.assertEquals(listUsers(snapshot, "*O*", 0), Arrays.asList("bob", "carol"));
+        Assert.assertEquals(listRoles(snapshot, "*", 0), Arrays.asList("admin", "staff"));
+    }
+
+    @Test
+    public void testPrefixFiltersAreMatchedByRange() throws Exception {
+        loader.putUser("bobby", "2");
+        loader.putUser("bert", "2");
+        DirectoryReplica.Snapshot snapshot = start();
+        Assert.assertEquals(listUsers(snapshot, "B*", 0), Arrays.asList("bert", "bob", "bobby"));
+        Assert.assertEquals(listUsers(snapshot, "bob*", 1), Collections.singletonList("bob"));
+        Assert.assertEquals(listUsers(snapshot, "b*y", 0), Collections.singletonList("bobby"));
+        Assert.assertEquals(listUsers(snapshot, "carol", 0), Collections.singletonList("carol"));
+        Assert.assertEquals(listUsers(snapshot, "x*", 0), Collections.emptyList());
+        Assert.assertEquals(listRoles(snapshot, "st*", 0), Collections.singletonList("staff"));
+    }
+
+    @Test
+    public void testUsersFilteredByAnotherAttributeAreListedInNameOrder() throws Exception {
+        loader.users.clear();
+        loader.putUser("zed", "1", "amy.z");
+        loader.putUser("amy", "1", "zed.a");
+        loader.putUser("ann", "1", "amy.a");
+        DirectoryReplica.Snapshot snapshot = start();
+        Assert.assertEquals(listUsers(snapshot, "amy*", 0), Arrays.asList("ann", "zed"));
+        Assert.assertEquals(listUsers(snapshot, "amy*", 1), Collections.singletonList("ann"));
+        Assert.assertEquals(listUsers(snapshot, "*", 0), Arrays.asList("amy", "ann", "zed"));
+    }
+
+    private static List<String> listUsers(DirectoryReplica.Snapshot snapshot, String filter, int maxItemLimit)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        snapshot.listUsers(filter, maxItemLimit, names::add);
+        return names;
+    }
+
+    private static List<String> listRoles(DirectoryReplica.Snapshot snapshot, String filter, int maxItemLimit)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        snapshot.listRoles(filter, maxItemLimit, names::add);
+        return names;
+    }
+
+    private DirectoryReplica.Snapshot start() throws InterruptedException {
+        replica.start();
+        return awaitSnapshot(1);
+    }
+
+    /*
+     * Waits until the replica has been loaded the given number of times in all.
+     */
+    private DirectoryReplica.Snapshot awaitSnapshot(long loads) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (getLoads() < loads && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        DirectoryReplica.Snapshot snapshot = replica.getSnapshot();
+        Assert.assertNotNull(snapshot, "the replica was not loaded in time");
+        return snapshot;
+    }
+
+    private void awaitDeltaSyncs(long count) throws InterruptedException {
+        awaitSnapshot(getLoads() + count);
+    }
+
+    private long getLoads() {
+        Map<String, Long> statistics = replica.getStatistics();
+        return statistics.get("fullSyncs") + statistics.get("deltaSyncs");
+    }
+
+    /*
+     * A directory whose entries are keyed by name, with the names of users as their membership keys. Users are
+     * matched by listing filters against their names unless given another filter value.
+     */
+    private static final class FakeLoader implements DirectoryReplica.Loader {
+
+        private final Map<String, String> users = new ConcurrentHashMap<>();
+        private final Map<String, String> filterValues = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> groups = new ConcurrentHashMap<>();
+        private final List<String> userQueries = new CopyOnWriteArrayList<>();
+        private final List<String> groupQueries = new CopyOnWriteArrayList<>();
+
+        void putUser(String name, String change) {
+            putUser(name, change, name);
+        }
+
+        void putUser(String name, String change, String filterValue) {
+            users.put(name, change);
+            filterValues.put(name, filterValue);
+        }
+
+        // the change value first, then the members.
+        void putGroup(String name, String change, String... members) {
+            List<String> group = new ArrayList<>();
+            group.add(change);
+            group.addAll(Arrays.asList(members));
+            groups.put(name, group);
+        }
+
+        @Override
+        public void loadUsers(String changedSince, DirectoryReplica.EntryHandler<DirectoryReplica.UserEntry> handler) {
+            userQueries.add(changedSince == null ? "full" : changedSince);
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                if (isChanged(user.getValue(), changedSince)) {
+                    handler.handle(user.getKey(), new DirectoryReplica.UserEntry(user.getKey(),
+                            filterValues.get(user.getKey()), user.getValue(), user.getKey(),
+                            Collections.singletonMap("mail", user.getKey() + "@example.com")));
+                }
+            }
+        }
+
+        @Override
+        public void loadGroups(String changedSince,
+                               DirectoryReplica.EntryHandler<DirectoryReplica.GroupEntry> handler) {
+            groupQueries.add(changedSince == null ? "full" : changedSince);
+            for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                String change = group.getValue().get(0);
+                if (isChanged(change, changedSince)) {
+                    List<Object> memberKeys = new ArrayList<>(group.getValue().subList(1, group.getValue().size()));
+                    handler.handle("cn=" + group.getKey(),
+                            new DirectoryReplica.GroupEntry(group.getKey(), change, memberKeys, true));
+                }
+            }
+        }
+
+        // a change filter of the form (change>=value), so the entries of the latest change are returned again.
+        private static boolean isChanged(String change, String changedSince) {
+            return changedSince == null || DirectoryReplica.compareChanges(change, changedSince) >= 0;
+        }
+    }
+}
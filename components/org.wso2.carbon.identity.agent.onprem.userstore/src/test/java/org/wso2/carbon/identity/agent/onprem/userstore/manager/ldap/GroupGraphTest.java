@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests of {@link GroupGraph}.
+ */
+public class GroupGraphTest {
+
+    private final Map<String, List<String>> parents = new HashMap<>();
+    private final List<String> loads = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() {
+        parents.clear();
+        loads.clear();
+        // engineering and sales are in staff, staff is in everyone, and everyone is in staff again.
+        parents.put("cn=engineering", Collections.singletonList("cn=staff"));
+        parents.put("cn=sales", Collections.singletonList("cn=staff"));
+        parents.put("cn=staff", Collections.singletonList("cn=everyone"));
+        parents.put("cn=everyone", Collections.singletonList("cn=Staff"));
+    }
+
+    @Test
+    public void testGroupsAreReachedThroughParents() throws Exception {
+        GroupGraph graph = new GroupGraph(5, 100, 60000);
+        Assert.assertEquals(graph.resolve(groups("cn=engineering"), this::loadParents),
+                Arrays.asList("engineering", "staff", "everyone"));
+    }
+
+    @Test
+    public void testCycleIsWalkedOnce() throws Exception {
+        GroupGraph graph = new GroupGraph(100, 100, 60000);
+        // the DN of a group is matched ignoring case, so cn=Staff is the group already walked.
+        Assert.assertEquals(graph.resolve(groups("cn=everyone"), this::loadParents),
+                Arrays.asList("everyone", "staff"));
+        Assert.assertEquals(loads, Arrays.asList("cn=everyone", "cn=Staff"));
+    }
+
+    @Test
+    public void testWalkIsBoundedByDepth() throws Exception {
+        Assert.assertEquals(new GroupGraph(0, 100, 60000).resolve(groups("cn=engineering"), this::loadParents),
+                Collections.singletonList("engineering"));
+        Assert.assertEquals(new GroupGraph(1, 100, 60000).resolve(groups("cn=engineering"), this::loadParents),
+                Arrays.asList("engineering", "staff"));
+    }
+
+    @Test
+    public void testParentsAreLoadedOncePerGroup() throws Exception {
+        GroupGraph graph = new GroupGraph(5, 100, 60000);
+        graph.resolve(groups("cn=engineering"), this::loadParents);
+        Assert.assertEquals(graph.resolve(groups("cn=sales", "cn=engineering"), this::loadParents),
+                Arrays.asList("sales", "engineering", "staff", "everyone"));
+        Assert.assertEquals(loads, Arrays.asList("cn=engineering", "cn=staff", "cn=everyone", "cn=sales"));
+
+        graph.clear();
+        loads.clear();
+        graph.resolve(groups("cn=sales"), this::loadParents);
+        Assert.assertEquals(loads, Arrays.asList("cn=sales", "cn=staff", "cn=everyone"));
+    }
+
+    private List<GroupGraph.Group> loadParents(String groupDN) {
+        loads.add(groupDN);
+        return groups(parents.getOrDefault(groupDN, Collections.emptyList()).toArray(new String[0]));
+    }
+
+    private static List<GroupGraph.Group> groups(String... dns) {
+        List<GroupGraph.Group> groups = new ArrayList<>();
+        for (String dn : dns) {
+            groups.add(new GroupGraph.Group(dn, dn.substring(3).toLowerCase(Locale.ENGLISH)));
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Tests of {@link LDAPConnectionPool} with in-memory connections.
+ */
+public class LDAPConnectionPoolTest {
+
+    private static final String PREFIX = "Pool";
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private volatile boolean failSearches;
+    private LDAPConnectionPool pool;
+
+    @BeforeMethod
+    public void setUp() {
+        created.set(0);
+        closed.set(0);
+        failSearches = false;
+        Map<String, String> properties = new HashMap<>();
+        properties.put(PREFIX + "MinSize", "0");
+        properties.put(PREFIX + "MaxSize", "1");
+        properties.put(PREFIX + "BorrowTimeout", "100");
+        properties.put(PREFIX + "ValidationInterval", "0");
+        pool = new LDAPConnectionPool("test-pool", this::createConnection, properties, PREFIX);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        pool.getContext().close();
+        pool.getContext().close();
+        Assert.assertEquals(created.get(), 1);
+        Assert.assertEquals(closed.get(), 0);
+    }
+
+    @Test
+    public void testStaleLeaseCannotUseConnectionOfNextBorrower() throws Exception {
+        LdapContext first = pool.getContext();
+        first.close();
+        LdapContext second = pool.getContext();
+        Assert.assertNotSame(first, second);
+        try {
+            first.getAttributes("");
+            Assert.fail("A released lease must not reach the connection");
+        } catch (NamingException e) {
+            // expected
+        }
+        second.getAttributes("");
+        second.close();
+    }
+
+    @Test
+    public void testStaleCloseDoesNotReturnConnectionOfNextBorrower() throws Exception {
+        LdapContext first = pool.getContext();
+        first.close();
+        LdapContext second = pool.getContext();
+        first.close();
+        // the only connection is still lent to the second borrower, so the pool has none to hand out.
+        try {
+            pool.getContext();
+            Assert.fail("The connection of the second borrower was returned by a stale lease");
+        } catch (UserStoreException e) {
+            // expected
+        }
+        second.getAttributes("");
+        second.close();
+        pool.getContext().close();
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenPoolIsExhausted() throws Exception {
+        LdapContext context = pool.getContext();
+        try {
+            pool.getContext();
+            Assert.fail("Borrowing from an exhausted pool must time out");
+        } catch (UserStoreException e) {
+            Assert.assertEquals(pool.getStatistics().get("borrowTimeouts"), Long.valueOf(1));
+        }
+        context.close();
+    }
+
+    @Test
+    public void testTryGetContextDoesNotWaitForExhaustedPool() throws Exception {
+        LdapContext context = pool.tryGetContext();
+        Assert.assertNotNull(context);
+        Assert.assertNull(pool.tryGetContext());
+        Assert.assertEquals(pool.getStatistics().get("borrowTimeouts"), Long.valueOf(0));
+        context.close();
+        pool.tryGetContext().close();
+    }
+
+    @Test
+    public void testBrokenConnectionIsDiscarded() throws Exception {
+        LdapContext context = pool.getContext();
+        failSearches = true;
+        try {
+            context.getAttributes("");
+            Assert.fail("The connection failure must reach the caller");
+        } catch (CommunicationException e) {
+            // expected
+        }
+        context.close();
+        Assert.assertEquals(closed.get(), 1);
+        failSearches = false;
+        pool.getContext().close();
+        Assert.assertEquals(created.get(), 2);
+    }
+
+    @Test
+    public void testConnectionFailingWhileResultsAreReadIsDiscarded() throws Exception {
+        LdapContext context = pool.getContext();
+        NamingEnumeration<SearchResult> results = context.search("", "(objectClass=*)", new SearchControls());
+        failSearches = true;
+        // the enumerations of the JDK drop the failure in hasMoreElements, as the connection returns them.
+        Assert.assertFalse(results.hasMoreElements());
+        context.close();
+        Assert.assertEquals(closed.get(), 1);
+        failSearches = false;
+        pool.getContext().close();
+        Assert.assertEquals(created.get(), 2);
+    }
+
+    @Test
+    public void testReleaseOfLeaseIsIgnoredTheSecondTime() throws Exception {
+        LDAPConnectionPool.Lease lease = pool.borrow();
+        pool.release(lease, false);
+        LDAPConnectionPool.Lease next = pool.borrow();
+        pool.release(lease, true);
+        Assert.assertEquals(closed.get(), 0);
+        next.getContext().getAttributes("");
+        pool.release(next, false);
+    }
+
+    private LdapContext createConnection() {
+        created.incrementAndGet();
+        return (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[]{LdapContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closed.incrementAndGet();
+                            return null;
+                        case "getAttributes":
+                            if (failSearches) {
+                                throw new CommunicationException("connection reset");
+                            }
+                            return null;
+                        case "search":
+                            return createResults();
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /*
+     * Empty results whose hasMore fails while searches fail, and whose hasMoreElements drops the failure.
+     */
+    private NamingEnumeration<?> createResults() {
+        return (NamingEnumeration<?>) Proxy.newProxyInstance(NamingEnumeration.class.getClassLoader(),
+                new Class<?>[]{NamingEnumeration.class}, (proxy, method, args) -> {
+                    if ("hasMore".equals(method.getName()) && failSearches) {
+                        throw new CommunicationException("connection reset");
+                    }
+                    return false;
+                });
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.controls.MatchedValuesFilter;
+import com.unboundid.ldap.sdk.controls.MatchedValuesRequestControl;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of {@link LDAPUserStoreManager} against an embedded directory server.
+ */
+public class LDAPUserStoreManagerTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String USERS_DN = "ou=users," + BASE_DN;
+    private static final String GROUPS_DN = "ou=groups," + BASE_DN;
+    private static final String ADMIN_DN = "cn=admin";
+    private static final String ADMIN_PASSWORD = "admin";
+    private static final String USER_FILTER = "(objectClass=inetOrgPerson)";
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin"};
+    private static final String MORE_GROUPS_DN = "ou=moregroups," + BASE_DN;
+    private static final String MOVED_USERS_DN = "ou=moved," + USERS_DN;
+    private static final String MOVED_USER = "frank";
+
+    private final GroupSearchInterceptor groupSearches = new GroupSearchInterceptor();
+    private InMemoryDirectoryServer server;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        config.addInMemoryOperationInterceptor(groupSearches);
+        server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: " + USERS_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: users");
+        server.add("dn: " + GROUPS_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: groups");
+        server.add("dn: " + MORE_GROUPS_DN, "objectClass: top", "objectClass: organizationalUnit",
+                "ou: moregroups");
+        server.add("dn: " + MOVED_USERS_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: moved");
+        for (String user : USERS) {
+            addUser(user);
+        }
+        addUser(MOVED_USER);
+        addGroup("admin", "alice");
+        addGroup("staff", "alice", "bob", "carol", "dave");
+        addGroup("ops", "carol");
+        server.add("dn: cn=auditors," + MORE_GROUPS_DN, "objectClass: top", "objectClass: groupOfNames",
+                "cn: auditors", "member: " + memberDN("alice"));
+    }
+
+    @AfterClass
+    public void stopServer() {
+        server.shutDown(true);
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        groupSearches.reset();
+    }
+
+    @Test
+    public void testRolesOfUsersAreReadWithASearchPerChunk() throws Exception {
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(getUserStoreProperties());
+        try {
+            Map<String, String[]> roles = userStoreManager.doGetExternalRoleListOfUsers(USERS);
+            // five users in chunks of two.
+            Assert.assertEquals(groupSearches.searches.get(), 3);
+            // each search asks for the member values of its own chunk only.
+            Assert.assertEquals(groupSearches.matchedValues, Arrays.asList(
+                    Arrays.asList(memberDN("alice"), memberDN("bob")),
+                    Arrays.asList(memberDN("carol"), memberDN("dave")),
+                    Collections.singletonList(memberDN("erin"))));
+            assertRoles(roles, userStoreManager);
+        } finally {
+            userStoreManager.close();
+        }
+    }
+
+    @Test
+    public void testUsersOfGroupsWithoutMemberListsAreLookedUpOneByOne() throws Exception {
+        // as Active Directory does with range retrieval of large groups.
+        groupSearches.dropMembers = true;
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(getUserStoreProperties());
+        try {
+            Map<String, String[]> roles = userStoreManager.doGetExternalRoleListOfUsers(USERS);
+            // a search per chunk, and one per user of the chunks that matched a group. erin matched none.
+            Assert.assertEquals(groupSearches.searches.get(), 3 + 4);
+            groupSearches.dropMembers = false;
+            assertRoles(roles, userStoreManager);
+        } finally {
+            userStoreManager.close();
+        }
+    }
+
+    @Test
+    public void testUserMovedSinceTheDNWasCachedIsAuthenticatedWithTheCurrentDN() throws Exception {
+        Map<String, String> properties = getUserStoreProperties();
+        properties.put(LDAPConstants.USER_DN_CACHE_ENABLED, "true");
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(properties);
+        try {
+            Assert.assertTrue(userStoreManager.doAuthenticate(MOVED_USER, MOVED_USER + "-password"));
+            // the directory answers the bind to the cached DN as it answers a wrong password.
+            server.modifyDN(memberDN(MOVED_USER), "uid=" + MOVED_USER, true, MOVED_USERS_DN);
+            Assert.assertTrue(userStoreManager.doAuthenticate(MOVED_USER, MOVED_USER + "-password"));
+            Assert.assertTrue(userStoreManager.doAuthenticate(MOVED_USER, MOVED_USER + "-password"));
+            Assert.assertFalse(userStoreManager.doAuthenticate(MOVED_USER, "wrong-password"));
+        } finally {
+            userStoreManager.close();
+            server.modifyDN("uid=" + MOVED_USER + "," + MOVED_USERS_DN, "uid=" + MOVED_USER, true, USERS_DN);
+        }
+    }
+
+    @Test
+    public void testFailingSearchBaseDoesNotDropTheNamesOfTheOthers() throws Exception {
+        Map<String, String> properties = getUserStoreProperties();
+        properties.put(LDAPConstants.GROUP_SEARCH_BASE, GROUPS_DN + "#ou=missing," + BASE_DN + "#" + MORE_GROUPS_DN);
+        properties.put(LDAPConstants.SEARCH_BASE_PARALLELISM, "3");
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(properties);
+        try {
+            Assert.assertEquals(sorted(userStoreManager.doGetExternalRoleListOfUser("alice")),
+                    new String[]{"admin", "auditors", "staff"});
+        } finally {
+            userStoreManager.close();
+        }
+    }
+
+    @DataProvider
+    public Object[][] attributeCaches() {
+        return new Object[][]{{"false"}, {"true"}};
+    }
+
+    @Test(dataProvider = "attributeCaches")
+    public void testCachedAttributeExpiresWhenLaterAttributesOfTheUserAreCached(String offHeap) throws Exception {
+        Map<String, String> properties = getUserStoreProperties();
+        properties.put(LDAPConstants.USER_ATTRIBUTE_CACHE_ENABLED, "true");
+        properties.put(LDAPConstants.USER_ATTRIBUTE_CACHE_OFF_HEAP, offHeap);
+        properties.put(LDAPConstants.USER_ATTRIBUTE_CACHE_EXPIRY_MILLISECONDS, "400");
+        LDAPUserStoreManager userStoreManager = new LDAPUserStoreManager(properties);
+        try {
+            setDescription("bob", "first");
+            Assert.assertEquals(userStoreManager.getUserPropertyValues("bob", new String[]{"description"})
+                    .get("description"), "first");
+            Thread.sleep(250);
+            Assert.assertEquals(userStoreManager.getUserPropertyValues("bob", new String[]{"cn"}).get("cn"), "bob");
+            setDescription("bob", "second");
+            Assert.assertEquals(userStoreManager.getUserPropertyValues("bob", new String[]{"description"})
+                    .get("description"), "first", "served from the cache");
+            Thread.sleep(250);
+            // the cn cached later keeps the entry of the user alive, but not the description cached before it.
+            Map<String, String> values = userStoreManager.getUserPropertyValues("bob",
+                    new String[]{"description", "cn"});
+            Assert.assertEquals(values.get("description"), "second");
+            Assert.assertEquals(values.get("cn"), "bob");
+        } finally {
+            userStoreManager.close();
+        }
+    }
+
+    private void assertRoles(Map<String, String[]> roles, LDAPUserStoreManager userStoreManager) throws Exception {
+        Assert.assertEquals(roles.size(), USERS.length);
+        Assert.assertEquals(sorted(roles.get("alice")), new String[]{"admin", "staff"});
+        Assert.assertEquals(sorted(roles.get("bob")), new String[]{"staff"});
+        Assert.assertEquals(sorted(roles.get("carol")), new String[]{"ops", "staff"});
+        Assert.assertEquals(roles.get("erin"), new String[0]);
+        for (String user : USERS) {
+            Assert.assertEquals(sorted(roles.get(user)), sorted(userStoreManager.doGetExternalRoleListOfUser(user)),
+                    user);
+        }
+    }
+
+    private static String[] sorted(String[] values) {
+        String[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    private void setDescription(String user, String description) throws Exception {
+        server.modify("dn: " + memberDN(user), "changetype: modify", "replace: description",
+                "description: " + description);
+    }
+
+    private void addUser(String user) throws Exception {
+        server.add("dn: " + memberDN(user), "objectClass: top", "objectClass: person",
+                "objectClass: organizationalPerson", "objectClass: inetOrgPerson", "uid: " + user, "cn: " + user,
+                "sn: " + user, "userPassword: " + user + "-password");
+    }
+
+    private void addGroup(String name, String... members) throws Exception {
+        String[] lines = new String[4 + members.length];
+        lines[0] = "dn: cn=" + name + "," + GROUPS_DN;
+        lines[1] = "objectClass: top";
+        lines[2] = "objectClass: groupOfNames";
+        lines[3] = "cn: " + name;
+        for (int i = 0; i < members.length; i++) {
+            lines[4 + i] = "member: " + memberDN(members[i]);
+        }
+        server.add(lines);
+    }
+
+    private static String memberDN(String user) {
+        return "uid=" + user + "," + USERS_DN;
+    }
+
+    private Map<String, String> getUserStoreProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(LDAPConstants.CONNECTION_URL, "ldap://localhost:" + server.getListenPort());
+        properties.put(LDAPConstants.CONNECTION_NAME, ADMIN_DN);
+        properties.put(LDAPConstants.CONNECTION_PASSWORD, ADMIN_PASSWORD);
+        properties.put(LDAPConstants.USER_SEARCH_BASE, USERS_DN);
+        properties.put(LDAPConstants.USER_NAME_LIST_FILTER, USER_FILTER);
+        properties.put(LDAPConstants.USER_NAME_SEARCH_FILTER, "(&" + USER_FILTER + "(uid=?))");
+        properties.put(LDAPConstants.USER_NAME_ATTRIBUTE, "uid");
+        properties.put(LDAPConstants.GROUP_SEARCH_BASE, GROUPS_DN);
+        properties.put(LDAPConstants.GROUP_NAME_LIST_FILTER, "(objectClass=groupOfNames)");
+        properties.put(LDAPConstants.GROUP_NAME_ATTRIBUTE, "cn");
+        properties.put(LDAPConstants.MEMBERSHIP_ATTRIBUTE, "member");
+        properties.put(LDAPConstants.BATCH_MEMBERSHIP_SEARCH_CHUNK_SIZE, "2");
+        return properties;
+    }
+
+    /*
+     * Counts the searches for groups by membership and records the member values each asks for. The in-memory
+     * server does not support the matched values control, so it is applied here to the groups returned. Can drop the
+     * member lists from the groups returned.
+     */
+    private static final class GroupSearchInterceptor extends InMemoryOperationInterceptor {
+
+        private final AtomicInteger searches = new AtomicInteger();
+        private final List<List<String>> matchedValues = new CopyOnWriteArrayList<>();
+        private volatile boolean dropMembers;
+
+        void reset() {
+            searches.set(0);
+            matchedValues.clear();
+            dropMembers = false;
+        }
+
+        @Override
+        public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+            if (request.getRequest().getBaseDN().equalsIgnoreCase(GROUPS_DN)
+                    && request.getRequest().getFilter().toString().contains("member=")) {
+                searches.incrementAndGet();
+                List<MatchedValuesFilter> filters = getMatchedValuesFilters(request.getRequest());
+                if (filters != null) {
+                    List<String> values = new ArrayList<>();
+                    for (MatchedValuesFilter filter : filters) {
+                        Assert.assertEquals(filter.getAttributeType(), "member");
+                        values.add(filter.getAssertionValue());
+                    }
+                    matchedValues.add(values);
+                }
+            }
+        }
+
+        @Override
+        public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+            Attribute members = entry.getSearchEntry().getAttribute("member");
+            List<MatchedValuesFilter> filters;
+            try {
+                filters = getMatchedValuesFilters(entry.getRequest());
+            } catch (LDAPException e) {
+                throw new IllegalStateException(e);
+            }
+            if (members == null || (filters == null && !dropMembers)) {
+                return;
+            }
+            Entry returned = entry.getSearchEntry().duplicate();
+            returned.removeAttribute("member");
+            if (!dropMembers) {
+                List<String> matched = new ArrayList<>();
+                for (MatchedValuesFilter filter : filters) {
+                    if (members.hasValue(filter.getAssertionValue())) {
+                        matched.add(filter.getAssertionValue());
+                    }
+                }
+                returned.addAttribute("member", matched);
+            }
+            entry.setSearchEntry(returned);
+        }
+
+        private static List<MatchedValuesFilter> getMatchedValuesFilters(ReadOnlySearchRequest request)
+                throws LDAPException {
+            Control control = request.getControl(MatchedValuesRequestControl.MATCHED_VALUES_REQUEST_OID);
+            if (control == null) {
+                return null;
+            }
+            return Arrays.asList(new MatchedValuesRequestControl(control).getFilters());
+        }
+    }
+}
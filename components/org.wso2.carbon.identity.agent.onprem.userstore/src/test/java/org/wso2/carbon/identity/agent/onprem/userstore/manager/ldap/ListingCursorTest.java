@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.exception.UserStoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Tests of {@link ListingCursor} and {@link ListingCursors} against a directory that pages its results.
+ */
+public class ListingCursorTest {
+
+    private static final String[] SEARCH_BASES = {"ou=a", "ou=b"};
+    private static final ListingCursor.EntryReader NAME_READER = SearchResult::getName;
+
+    private final AtomicInteger closedContexts = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() {
+        closedContexts.set(0);
+    }
+
+    @Test
+    public void testPagesOfAllSearchBasesAreRead() throws Exception {
+        ListingCursor cursor = newCursor("cursor");
+        List<String> names = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        while (!cursor.isExhausted()) {
+            List<String> page = cursor.nextPage(cursor.getToken(), 2);
+            pageSizes.add(page.size());
+            names.addAll(page);
+        }
+        Assert.assertEquals(names, Arrays.asList("a1", "a2", "a3", "b1", "b2"));
+        // a search base ends with a short page, pages never span search bases.
+        Assert.assertEquals(pageSizes, Arrays.asList(2, 1, 2));
+        Assert.assertEquals(cursor.nextPage(cursor.getToken(), 2), Collections.emptyList());
+    }
+
+    @Test
+    public void testOnlyTheCurrentTokenReadsTheNextPage() throws Exception {
+        ListingCursor cursor = newCursor("cursor");
+        String firstToken = cursor.getToken();
+        Assert.assertEquals(cursor.nextPage(firstToken, 2), Arrays.asList("a1", "a2"));
+        Assert.assertNull(cursor.nextPage(firstToken, 2), "a token can only be used once");
+        Assert.assertNull(cursor.nextPage("other.1", 2));
+        Assert.assertEquals(cursor.nextPage(cursor.getToken(), 2), Collections.singletonList("a3"));
+    }
+
+    @Test
+    public void testSkippedEntriesAreNotListed() throws Exception {
+        ListingCursor cursor = new ListingCursor("cursor", newContext(), SEARCH_BASES, "(objectClass=*)",
+                new SearchControls(), result -> result.getName().endsWith("2") ? null : result.getName());
+        Assert.assertEquals(cursor.nextPage(cursor.getToken(), 2), Collections.singletonList("a1"));
+    }
+
+    @Test
+    public void testCursorsAreLookedUpByToken() throws Exception {
+        ListingCursors cursors = new ListingCursors(2, 60000);
+        ListingCursor cursor = openCursor(cursors);
+        Assert.assertSame(cursors.get(cursor.getToken()), cursor);
+        Assert.assertNull(cursors.get("unknown.0"));
+        Assert.assertNull(cursors.get("malformed"));
+        cursors.close(cursor);
+        Assert.assertNull(cursors.get(cursor.getToken()));
+        Assert.assertEquals(closedContexts.get(), 1);
+    }
+
+    @Test
+    public void testNumberOfOpenCursorsIsBounded() throws Exception {
+        ListingCursors cursors = new ListingCursors(1, 60000);
+        openCursor(cursors);
+        try {
+            openCursor(cursors);
+            Assert.fail("Opening more cursors than allowed must fail");
+        } catch (UserStoreException e) {
+            // the connection of the rejected cursor is not leaked.
+            Assert.assertEquals(closedContexts.get(), 1);
+        }
+        cursors.closeAll();
+        Assert.assertEquals(cursors.size(), 0);
+        Assert.assertEquals(closedContexts.get(), 2);
+    }
+
+    @Test
+    public void testIdleCursorsAreClosed() throws Exception {
+        ListingCursors cursors = new ListingCursors(1, 1);
+        ListingCursor cursor = openCursor(cursors);
+        Thread.sleep(5);
+        Assert.assertNull(cursors.get(cursor.getToken()));
+        Assert.assertEquals(closedContexts.get(), 1);
+        openCursor(cursors);
+    }
+
+    private ListingCursor openCursor(ListingCursors cursors) throws UserStoreException {
+        return cursors.open(newContext(), SEARCH_BASES, "(objectClass=*)", new SearchControls(), NAME_READER);
+    }
+
+    private ListingCursor newCursor(String id) {
+        return new ListingCursor(id, newContext(), SEARCH_BASES, "(objectClass=*)", new SearchControls(),
+                NAME_READER);
+    }
+
+    /*
+     * A connection to a directory with three entries under ou=a and two under ou=b, that pages the results of a
+     * search by the paged results control set on it. The cookie is the offset of the next page.
+     */
+    private LdapContext newContext() {
+        Map<String, List<String>> entries = new HashMap<>();
+        entries.put("ou=a", Arrays.asList("a1", "a2", "a3"));
+        entries.put("ou=b", Arrays.asList("b1", "b2"));
+        Control[][] requestControls = new Control[1][];
+        Control[][] responseControls = new Control[1][];
+        return (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[]{LdapContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setRequestControls":
+                            requestControls[0] = (Control[]) args[0];
+                            return null;
+                        case "getResponseControls":
+                            return responseControls[0];
+                        case "close":
+                            closedContexts.incrementAndGet();
+                            return null;
+                        case "search":
+                            byte[] request = requestControls[0][0].getEncodedValue();
+                            int pageSize = request[4];
+                            int offset = request[6] == 0 ? 0 : request[7];
+                            List<String> names = entries.get((String) args[0]);
+                            int end = Math.min(offset + pageSize, names.size());
+                            byte[] cookie = end < names.size() ? new byte[]{(byte) end} : new byte[0];
+                            responseControls[0] = new Control[]{new PagedResultsResponseControl(
+                                    PagedResultsResponseControl.OID, false, encodeResponse(cookie))};
+                            List<SearchResult> results = new ArrayList<>();
+                            for (String name : names.subList(offset, end)) {
+                                results.add(new SearchResult(name, null, new BasicAttributes()));
+                            }
+                            return new ResultEnumeration(results.iterator());
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // SEQUENCE { INTEGER 0, OCTET STRING cookie }
+    private static byte[] encodeResponse(byte[] cookie) {
+        byte[] value = new byte[7 + cookie.length];
+        value[0] = 0x30;
+        value[1] = (byte) (5 + cookie.length);
+        value[2] = 0x02;
+        value[3] = 0x01;
+        value[4] = 0x00;
+        value[5] = 0x04;
+        value[6] = (byte) cookie.length;
+        System.arraycopy(cookie, 0, value, 7, cookie.length);
+        return value;
+    }
+
+    private static final class ResultEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Iterator<SearchResult> results;
+
+        private ResultEnumeration(Iterator<SearchResult> results) {
+            this.results = results;
+        }
+
+        @Override
+        public SearchResult next() {
+            return results.next();
+        }
+
+        @Override
+        public boolean hasMore() {
+            return results.hasNext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return results.next();
+        }
+    }
+}
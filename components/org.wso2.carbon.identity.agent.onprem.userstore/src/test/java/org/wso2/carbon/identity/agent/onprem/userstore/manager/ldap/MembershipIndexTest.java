@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of {@link MembershipIndex}.
+ */
+public class MembershipIndexTest {
+
+    @Test
+    public void testGroupsOfUsersAreSorted() {
+        MembershipIndex index = new MembershipIndex(4, new int[][]{{1, 3}, {}, {0, 1}, {1}});
+        Assert.assertEquals(index.getGroupIds(0), new int[]{2});
+        Assert.assertEquals(index.getGroupIds(1), new int[]{0, 2, 3});
+        Assert.assertEquals(index.getGroupIds(2), new int[0]);
+        Assert.assertEquals(index.getGroupIds(3), new int[]{0});
+        Assert.assertEquals(index.getMemberships(), 5);
+    }
+
+    @Test
+    public void testMembersOfArrayAndBitmapGroups() {
+        // with 64 users, a group of more than two members is held as a bitmap.
+        int[] large = new int[40];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = i + 10;
+        }
+        MembershipIndex index = new MembershipIndex(64, new int[][]{{5, 63}, large});
+        Assert.assertEquals(index.getMemberIds(0), new int[]{5, 63});
+        Assert.assertEquals(index.getMemberIds(1), large);
+        Assert.assertTrue(index.isMember(63, 0));
+        Assert.assertFalse(index.isMember(6, 0));
+        Assert.assertTrue(index.isMember(49, 1));
+        Assert.assertFalse(index.isMember(50, 1));
+        Assert.assertFalse(index.isMember(5, 1));
+    }
+
+    @Test
+    public void testMemberIdsCannotChangeTheIndex() {
+        MembershipIndex index = new MembershipIndex(100, new int[][]{{1, 2}});
+        index.getMemberIds(0)[0] = 7;
+        Assert.assertEquals(index.getMemberIds(0), new int[]{1, 2});
+    }
+
+    @Test
+    public void testLookupsAgreeWithTheMemberLists() {
+        Random random = new Random(42);
+        int userCount = 500;
+        int[][] groupMembers = new int[30][];
+        boolean[][] expected = new boolean[groupMembers.length][userCount];
+        for (int groupId = 0; groupId < groupMembers.length; groupId++) {
+            // from a few members to most users, so that both representations are used.
+            int share = 1 + groupId * groupId;
+            int count = 0;
+            int[] members = new int[userCount];
+            for (int userId = 0; userId < userCount; userId++) {
+                if (random.nextInt(1000) < share) {
+                    members[count++] = userId;
+                    expected[groupId][userId] = true;
+                }
+            }
+            groupMembers[groupId] = Arrays.copyOf(members, count);
+        }
+        MembershipIndex index = new MembershipIndex(userCount, groupMembers);
+        for (int groupId = 0; groupId < groupMembers.length; groupId++) {
+            Assert.assertEquals(index.getMemberIds(groupId), groupMembers[groupId]);
+            for (int userId = 0; userId < userCount; userId++) {
+                Assert.assertEquals(index.isMember(userId, groupId), expected[groupId][userId]);
+            }
+        }
+        for (int userId = 0; userId < userCount; userId++) {
+            int previous = -1;
+            for (int groupId : index.getGroupIds(userId)) {
+                Assert.assertTrue(groupId > previous);
+                Assert.assertTrue(expected[groupId][userId]);
+                previous = groupId;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.wso2.carbon.identity.agent.onprem.userstore.constant.LDAPConstants;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.naming.directory.DirContext;
+
+/**
+ * Tests of {@link SearchBaseExecutor} when no pooled connection can be spared.
+ */
+public class SearchBaseExecutorTest {
+
+    private static final String[] SEARCH_BASES = {"ou=a", "ou=b", "ou=c"};
+
+    private final DirContext callerContext = (DirContext) Proxy.newProxyInstance(
+            DirContext.class.getClassLoader(), new Class<?>[]{DirContext.class}, (proxy, method, args) -> null);
+    private SearchBaseExecutor executor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(LDAPConstants.CONNECTION_URL, "ldap://localhost:389");
+        properties.put(LDAPConstants.CONNECTION_POOLING_ENABLED, "false");
+        executor = new SearchBaseExecutor(new LDAPConnectionContext(properties), 2);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSearchAllRunsOnCallerContextInOrder() throws Exception {
+        List<String> searched = new ArrayList<>();
+        List<String> results = executor.searchAll(SEARCH_BASES, callerContext, (searchBase, context) -> {
+            Assert.assertSame(context, callerContext);
+            Assert.assertFalse(Thread.currentThread().getName().startsWith("ldap-search-base-"));
+            searched.add(searchBase);
+            return searchBase.toUpperCase();
+        });
+        Assert.assertEquals(searched, Arrays.asList(SEARCH_BASES));
+        Assert.assertEquals(results, Arrays.asList("OU=A", "OU=B", "OU=C"));
+    }
+
+    @Test
+    public void testSearchFirstStopsAtFirstResult() throws Exception {
+        List<String> searched = new ArrayList<>();
+        String result = executor.searchFirst(SEARCH_BASES, callerContext, (searchBase, context) -> {
+            searched.add(searchBase);
+            return "ou=b".equals(searchBase) ? searchBase : null;
+        });
+        Assert.assertEquals(result, "ou=b");
+        Assert.assertEquals(searched, Arrays.asList("ou=a", "ou=b"));
+    }
+
+    @Test
+    public void testSearchFirstWithoutResult() throws Exception {
+        Assert.assertNull(executor.searchFirst(SEARCH_BASES, callerContext, (searchBase, context) -> null));
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+
+/**
+ * Tests of {@link SortedSearchSource} and of merging the sorted sources of several search bases.
+ */
+public class SortedSearchSourceTest {
+
+    private static final ListingCursor.EntryReader NAME_READER = SearchResult::getName;
+
+    private final Map<String, List<String>> entries = new HashMap<>();
+    private final AtomicInteger searches = new AtomicInteger();
+    private final AtomicInteger closedContexts = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() {
+        entries.clear();
+        entries.put("ou=a", Arrays.asList("delta", "Alpha", "echo"));
+        entries.put("ou=b", Arrays.asList("charlie", "Bravo"));
+        entries.put("ou=c", Collections.emptyList());
+        searches.set(0);
+        closedContexts.set(0);
+    }
+
+    @Test
+    public void testNamesAreReadInSortedOrder() throws Exception {
+        SortedSearchSource source = newSource("ou=a", 0, NAME_READER);
+        source.open();
+        Assert.assertEquals(readAll(source), Arrays.asList("Alpha", "delta", "echo"));
+        Assert.assertEquals(searches.get(), 1);
+        source.close();
+        Assert.assertEquals(closedContexts.get(), 1);
+    }
+
+    @Test
+    public void testPagesAreReadUntilTheLastCookie() throws Exception {
+        SortedSearchSource source = newSource("ou=a", 2, NAME_READER);
+        source.open();
+        Assert.assertEquals(readAll(source), Arrays.asList("Alpha", "delta", "echo"));
+        Assert.assertEquals(searches.get(), 2);
+    }
+
+    @Test
+    public void testSkippedEntriesAreNotPeeked() throws Exception {
+        // the skipped names end the first page, so the source has to move on to the next page to find a name.
+        SortedSearchSource source = newSource("ou=a", 1,
+                result -> result.getName().equals("echo") ? result.getName() : null);
+        source.open();
+        Assert.assertEquals(readAll(source), Collections.singletonList("echo"));
+        Assert.assertEquals(searches.get(), 3);
+    }
+
+    @Test
+    public void testEmptySearchBaseIsExhaustedOnOpen() throws Exception {
+        SortedSearchSource source = newSource("ou=c", 2, NAME_READER);
+        source.open();
+        Assert.assertNull(source.peek());
+    }
+
+    @Test
+    public void testSourcesOfSearchBasesAreMergedInOrder() throws Exception {
+        Assert.assertEquals(merge(new String[]{"ou=a", "ou=b", "ou=c"}, 2, 0),
+                Arrays.asList("Alpha", "Bravo", "charlie", "delta", "echo"));
+        Assert.assertEquals(closedContexts.get(), 3);
+    }
+
+    @Test
+    public void testMergeStopsAtTheLimit() throws Exception {
+        Assert.assertEquals(merge(new String[]{"ou=b", "ou=a"}, 0, 3), Arrays.asList("Alpha", "Bravo", "charlie"));
+        // the rest of the names are never read, but the sources are closed.
+        Assert.assertEquals(closedContexts.get(), 2);
+    }
+
+    private SortedSearchSource newSource(String searchBase, int pageSize, ListingCursor.EntryReader reader) {
+        return new SortedSearchSource(newContext(), searchBase, "(objectClass=*)", new SearchControls(), "uid",
+                pageSize, reader);
+    }
+
+    private static List<String> readAll(SortedSearchSource source) throws NamingException {
+        List<String> names = new ArrayList<>();
+        while (source.peek() != null) {
+            names.add(source.peek());
+            source.advance();
+        }
+        return names;
+    }
+
+    // the merge of LDAPUserStoreManager, over sources of the given search bases.
+    private List<String> merge(String[] searchBases, int pageSize, int limit) throws NamingException {
+        PriorityQueue<SortedSearchSource> sources = new PriorityQueue<>(
+                (first, second) -> String.CASE_INSENSITIVE_ORDER.compare(first.peek(), second.peek()));
+        List<SortedSearchSource> openedSources = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try {
+            for (String searchBase : searchBases) {
+                SortedSearchSource source = newSource(searchBase, pageSize, NAME_READER);
+                openedSources.add(source);
+                source.open();
+                if (source.peek() != null) {
+                    sources.add(source);
+                }
+            }
+            while (!sources.isEmpty() && (limit <= 0 || names.size() < limit)) {
+                SortedSearchSource source = sources.poll();
+                names.add(source.peek());
+                source.advance();
+                if (source.peek() != null) {
+                    sources.add(source);
+                }
+            }
+        } finally {
+            for (SortedSearchSource source : openedSources) {
+                source.close();
+            }
+        }
+        return names;
+    }
+
+    /*
+     * A connection to a directory that sorts the results of a search by the critical sort control set on it, and
+     * pages them if a paged results control follows. The cookie is the offset of the next page.
+     */
+    private LdapContext newContext() {
+        Control[][] requestControls = new Control[1][];
+        Control[][] responseControls = new Control[1][];
+        return (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[]{LdapContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setRequestControls":
+                            requestControls[0] = (Control[]) args[0];
+                            return null;
+                        case "getResponseControls":
+                            return responseControls[0];
+                        case "close":
+                            closedContexts.incrementAndGet();
+                            return null;
+                        case "search":
+                            searches.incrementAndGet();
+                            Control[] controls = requestControls[0];
+                            Assert.assertTrue(controls[0] instanceof SortControl);
+                            Assert.assertTrue(controls[0].isCritical(), "an unsorted result cannot be merged");
+                            List<String> names = new ArrayList<>(entries.get((String) args[0]));
+                            names.sort(String.CASE_INSENSITIVE_ORDER);
+                            int offset = 0;
+                            int end = names.size();
+                            if (controls.length > 1) {
+                                Assert.assertTrue(controls[1] instanceof PagedResultsControl);
+                                byte[] request = controls[1].getEncodedValue();
+                                offset = request[6] == 0 ? 0 : request[7];
+                                end = Math.min(offset + request[4], names.size());
+                                byte[] cookie = end < names.size() ? new byte[]{(byte) end} : new byte[0];
+                                responseControls[0] = new Control[]{new PagedResultsResponseControl(
+                                        PagedResultsResponseControl.OID, false, encodeResponse(cookie))};
+                            } else {
+                                responseControls[0] = null;
+                            }
+                            List<SearchResult> results = new ArrayList<>();
+                            for (String name : names.subList(offset, end)) {
+                                results.add(new SearchResult(name, null, new BasicAttributes()));
+                            }
+                            return new ResultEnumeration(results.iterator());
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // SEQUENCE { INTEGER 0, OCTET STRING cookie }
+    private static byte[] encodeResponse(byte[] cookie) {
+        byte[] value = new byte[7 + cookie.length];
+        value[0] = 0x30;
+        value[1] = (byte) (5 + cookie.length);
+        value[2] = 0x02;
+        value[3] = 0x01;
+        value[4] = 0x00;
+        value[5] = 0x04;
+        value[6] = (byte) cookie.length;
+        System.arraycopy(cookie, 0, value, 7, cookie.length);
+        return value;
+    }
+
+    private static final class ResultEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Iterator<SearchResult> results;
+
+        private ResultEnumeration(Iterator<SearchResult> results) {
+            this.results = results;
+        }
+
+        @Override
+        public SearchResult next() {
+            return results.next();
+        }
+
+        @Override
+        public boolean hasMore() {
+            return results.hasNext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return results.next();
+        }
+    }
+}
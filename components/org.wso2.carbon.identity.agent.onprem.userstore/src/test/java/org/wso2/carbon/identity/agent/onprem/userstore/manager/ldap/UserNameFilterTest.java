@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.manager.ldap;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link UserNameFilter}.
+ */
+public class UserNameFilterTest {
+
+    private static final long TIMEOUT = 10000;
+    private static final long REFRESH_INTERVAL = 3600000;
+
+    private final List<String> userNames = new ArrayList<>();
+    private volatile boolean tracking = true;
+    private volatile CountDownLatch loading;
+    private volatile CountDownLatch loaded;
+    private UserNameFilter filter;
+
+    @AfterMethod
+    public void tearDown() {
+        if (filter != null) {
+            filter.shutdown();
+        }
+        userNames.clear();
+        tracking = true;
+        loading = null;
+        loaded = null;
+    }
+
+    @Test
+    public void testListedUsersAreNeverUnknown() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            userNames.add("user" + i);
+        }
+        startFilter();
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertFalse(filter.isUnknown("user" + i));
+        }
+        Assert.assertFalse(filter.isUnknown("USER42"), "names are compared ignoring case");
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.isUnknown("stranger" + i)) {
+                rejected++;
+            }
+        }
+        // 10 bits per user give about 1% false positives.
+        Assert.assertTrue(rejected > 9500, "only " + rejected + " unknown names rejected");
+    }
+
+    @Test
+    public void testNotUsedBeforeBuild() {
+        filter = new UserNameFilter(handler -> { }, 10, REFRESH_INTERVAL, REFRESH_INTERVAL, () -> tracking);
+        Assert.assertFalse(filter.isUnknown("alice"));
+    }
+
+    @Test
+    public void testNotUsedWhileNewUsersAreNotTracked() throws Exception {
+        userNames.add("alice");
+        startFilter();
+        Assert.assertTrue(filter.isUnknown("bob"));
+        tracking = false;
+        Assert.assertFalse(filter.isUnknown("bob"));
+    }
+
+    @Test
+    public void testAddedUserIsKnown() throws Exception {
+        userNames.add("alice");
+        startFilter();
+        Assert.assertTrue(filter.isUnknown("bob"));
+        filter.add("bob");
+        Assert.assertFalse(filter.isUnknown("bob"));
+    }
+
+    @Test
+    public void testNotUsedUntilRequestedRebuildIsDone() throws Exception {
+        userNames.add("alice");
+        startFilter();
+        Assert.assertTrue(filter.isUnknown("bob"));
+
+        loading = new CountDownLatch(1);
+        loaded = new CountDownLatch(1);
+        filter.requestRebuild();
+        Assert.assertFalse(filter.isUnknown("bob"), "the filter may have missed users");
+        userNames.add("bob");
+        loaded.countDown();
+        awaitRebuilds(2);
+        Assert.assertFalse(filter.isUnknown("bob"));
+        Assert.assertTrue(filter.isUnknown("carol"));
+    }
+
+    @Test
+    public void testUserAddedWhileRebuildingIsKept() throws Exception {
+        userNames.add("alice");
+        startFilter();
+
+        loading = new CountDownLatch(1);
+        loaded = new CountDownLatch(1);
+        filter.requestRebuild();
+        Assert.assertTrue(loading.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // created after the listing passed it, and reported by the change listener.
+        filter.add("bob");
+        loaded.countDown();
+        awaitRebuilds(2);
+        Assert.assertFalse(filter.isUnknown("alice"));
+        Assert.assertFalse(filter.isUnknown("bob"));
+        Assert.assertTrue(filter.isUnknown("carol"));
+    }
+
+    @Test
+    public void testNotFoundNamesLetThroughAreCounted() throws Exception {
+        userNames.addAll(Arrays.asList("alice", "bob"));
+        startFilter();
+        filter.recordNotFound("alice");
+        filter.recordNotFound("carol");
+        long falsePositives = filter.getStatistics().get("falsePositives");
+        Assert.assertTrue(falsePositives >= 1 && falsePositives <= 2);
+    }
+
+    private void startFilter() throws InterruptedException {
+        filter = new UserNameFilter(handler -> {
+            CountDownLatch currentLoading = loading;
+            if (currentLoading != null) {
+                currentLoading.countDown();
+                try {
+                    loaded.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (String userName : new ArrayList<>(userNames)) {
+                handler.handle(userName);
+            }
+        }, 10, REFRESH_INTERVAL, REFRESH_INTERVAL, () -> tracking);
+        filter.start();
+        awaitRebuilds(1);
+    }
+
+    private void awaitRebuilds(long rebuilds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (filter.getStatistics().get("rebuilds") < rebuilds) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "The user name filter was not built");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2016, WSO2 Inc. (http://wso2.com) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.wso2.carbon.identity.agent.onprem.userstore.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests of {@link UserStoreUtils}.
+ */
+public class UserStoreUtilsTest {
+
+    @Test
+    public void testValidValuesAreParsed() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Int", " 42 ");
+        properties.put("Long", "9000000000");
+        properties.put("Boolean", "TRUE");
+        Assert.assertEquals(UserStoreUtils.getIntProperty(properties, "Int", 1), 42);
+        Assert.assertEquals(UserStoreUtils.getLongProperty(properties, "Long", 1), 9000000000L);
+        Assert.assertTrue(UserStoreUtils.getBooleanProperty(properties, "Boolean", false));
+        Assert.assertEquals(UserStoreUtils.getIntProperty(properties, "Missing", 7), 7);
+    }
+
+    @Test
+    public void testInvalidValuesFallBackToTheDefault() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Int", "10s");
+        properties.put("Long", "");
+        properties.put("Boolean", "yes");
+        Assert.assertEquals(UserStoreUtils.getIntProperty(properties, "Int", 1), 1);
+        Assert.assertEquals(UserStoreUtils.getLongProperty(properties, "Long", 2), 2);
+        // a value that is neither true nor false no longer turns the setting off.
+        Assert.assertTrue(UserStoreUtils.getBooleanProperty(properties, "Boolean", true));
+        Assert.assertFalse(UserStoreUtils.getBooleanProperty(properties, "Boolean", false));
+    }
+}